@@ -10,15 +10,12 @@ package gov.nist.healthcare.core.message;
 
 import gov.nist.healthcare.core.Constants.ElementType;
 import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileNode;
 import gov.nist.healthcare.message.MessageElement;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.namespace.QName;
-import org.apache.xmlbeans.XmlCursor;
-import org.apache.xmlbeans.XmlObject;
 
 /**
  * @author Caroline Rosin (NIST)
@@ -609,87 +606,7 @@ public class MessageLocation {
      * @return a boolean set to true if the location is possible
      */
     public boolean isExistInProfile(Profile profile) {
-        boolean exist = false;
-        if (profile != null) {
-            XmlObject xmlProfile = profile.getDocument();
-            XmlObject start = null;
-            XmlObject[] rs = xmlProfile.selectPath("/HL7v2xConformanceProfile/HL7v2xStaticDef");
-            if (rs.length == 1) {
-                start = rs[0];
-            }
-            // Segment Group
-            boolean segmentGroupFound = false;
-            String s = "";
-            if (segmentGroups != null && segmentGroups.size() > 0) {
-                Iterator<SegmentGroupInstanceNumber> sgIt = segmentGroups.iterator();
-                SegmentGroupInstanceNumber sg = null;
-                while (sgIt.hasNext()) {
-                    sg = sgIt.next();
-                    segmentGroupFound = false;
-                    rs = start.selectPath("SegGroup[@Name='" + sg.getName()
-                            + "']");
-                    if (rs.length > 0) {
-                        start = checkUsageCardinality(rs,
-                                sg.getInstanceNumber());
-                        segmentGroupFound = (start != null);
-                        s = segmentName;
-                    } else {
-                        sg = null;
-                    }
-                }
-            } else {
-                segmentGroupFound = true;
-                s = segmentName;
-            }
-            if (segmentGroupFound) {
-                // Segment
-                boolean segmentFound = false;
-                rs = start.selectPath("Segment[@Name='" + s + "']");
-                if (rs.length > 0) {
-                    start = checkUsageCardinality(rs, segmentInstanceNumber);
-                    segmentFound = (start != null);
-                }
-                if (segmentFound) {
-                    int f = fieldPosition;
-                    if (f > 0) {
-                        boolean fieldFound = false;
-                        rs = start.selectPath("Field[" + fieldPosition + "]");
-                        if (rs.length == 1) {
-                            start = checkUsageCardinality(rs,
-                                    fieldInstanceNumber);
-                            fieldFound = (start != null);
-                        }
-                        if (fieldFound) {
-                            int c = componentPosition;
-                            if (c <= 0) {
-                                exist = true;
-                            } else {
-                                boolean componentFound = false;
-                                rs = start.selectPath("Component["
-                                        + componentPosition + "]");
-                                if (rs.length == 1) {
-                                    start = rs[0];
-                                    componentFound = true;
-                                }
-                                if (componentFound) {
-                                    int sc = subComponentPosition;
-                                    if (sc <= 0) {
-                                        exist = true;
-                                    } else {
-                                        rs = start.selectPath("SubComponent["
-                                                + subComponentPosition + "]");
-                                        if (rs.length == 1) {
-                                            exist = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        return exist;
+        return getProfileNode(profile) != null;
     }
 
     /**
@@ -700,126 +617,62 @@ public class MessageLocation {
      * @return a boolean set to true if the location is a primitive element.
      */
     public boolean isPrimitive(Profile profile) {
-        boolean primitive = false;
-        if (profile != null) {
-            XmlObject xmlProfile = profile.getDocument();
-            XmlObject start = null;
-            XmlObject[] rs = xmlProfile.selectPath("/HL7v2xConformanceProfile/HL7v2xStaticDef");
-            if (rs.length == 1) {
-                start = rs[0];
-            }
-            // Segment Group
-            boolean segmentGroupFound = false;
-            String s = "";
-            if (segmentGroups != null && segmentGroups.size() > 0) {
-                Iterator<SegmentGroupInstanceNumber> sgIt = segmentGroups.iterator();
-                SegmentGroupInstanceNumber sg = null;
-                while (sgIt.hasNext()) {
-                    sg = sgIt.next();
-                    segmentGroupFound = false;
-                    rs = start.selectPath("SegGroup[@Name='" + sg.getName()
-                            + "']");
-                    if (rs.length > 0) {
-                        start = checkUsageCardinality(rs,
-                                sg.getInstanceNumber());
-                        segmentGroupFound = (start != null);
-                        s = segmentName;
-                    } else {
-                        sg = null;
-                    }
-                }
-            } else {
-                segmentGroupFound = true;
-                s = segmentName;
-            }
-            if (segmentGroupFound) {
-                // Segment
-                boolean segmentFound = false;
-                rs = start.selectPath("Segment[@Name='" + s + "']");
-                if (rs.length > 0) {
-                    start = checkUsageCardinality(rs, segmentInstanceNumber);
-                    segmentFound = (start != null);
-                }
-                if (segmentFound) {
-                    int f = fieldPosition;
-                    if (f > 0) {
-                        boolean fieldFound = false;
-                        rs = start.selectPath("Field[" + fieldPosition + "]");
-                        if (rs.length == 1) {
-                            start = checkUsageCardinality(rs,
-                                    fieldInstanceNumber);
-                            fieldFound = (start != null);
-                        }
-                        if (fieldFound) {
-                            int c = componentPosition;
-                            if (c <= 0) {
-                                rs = start.selectPath("Component");
-                                primitive = rs.length == 0;
-                            } else {
-                                boolean componentFound = false;
-                                rs = start.selectPath("Component["
-                                        + componentPosition + "]");
-                                if (rs.length == 1) {
-                                    start = rs[0];
-                                    componentFound = true;
-                                }
-                                if (componentFound) {
-                                    int sc = subComponentPosition;
-                                    if (sc <= 0) {
-                                        rs = start.selectPath("SubComponent");
-                                        primitive = rs.length == 0;
-                                    } else {
-                                        rs = start.selectPath("SubComponent["
-                                                + subComponentPosition + "]");
-                                        if (rs.length == 1) {
-                                            primitive = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        return primitive;
+        ProfileNode node = getProfileNode(profile);
+        return node != null && node.isPrimitive();
     }
 
     /**
-     * Check the usage and cardinality in the profile to the location in the
-     * context.
+     * Get the element of the compiled profile at the location. The usage and
+     * the cardinality of the segment groups, the segment and the field are
+     * checked against the instance numbers.
      * 
-     * @param rs
-     * @param instanceNumberContext
-     * @return the location in the profile if everything went fine; null
-     *         otherwise
+     * @param profile
+     *        the profile
+     * @return the profile element; null if the location is not a field,
+     *         component or subcomponent location of the profile
      */
-    private XmlObject checkUsageCardinality(XmlObject[] rs,
-            int instanceNumberContext) {
-        XmlObject xmlObj = null;
-        boolean end = false;
-        int i = 0;
-        while (!end && i < rs.length) {
-            XmlCursor cursor = rs[i].newCursor();
-            // Check the usage
-            String usage = cursor.getAttributeText(QName.valueOf("Usage"));
-            if (!"X".equals(usage)) {
-                // Check the cardinality
-                String sInstanceNumberProfile = cursor.getAttributeText(QName.valueOf("Max"));
-                if (!"*".equals(sInstanceNumberProfile)) {
-                    int instanceNumberProfile = Integer.parseInt(sInstanceNumberProfile);
-                    if (instanceNumberContext <= instanceNumberProfile) {
-                        end = true;
-                        xmlObj = rs[i];
+    private ProfileNode getProfileNode(Profile profile) {
+        if (profile == null || fieldPosition <= 0) {
+            return null;
+        }
+        ProfileNode start = profile.getCompiledProfile().getRoot();
+        // Segment Group
+        boolean segmentGroupFound = true;
+        if (segmentGroups != null && segmentGroups.size() > 0) {
+            for (SegmentGroupInstanceNumber sg : segmentGroups) {
+                segmentGroupFound = false;
+                if (start.hasChild(ElementType.SEGMENT_GROUP, sg.getName())) {
+                    start = start.getChild(ElementType.SEGMENT_GROUP,
+                            sg.getName(), sg.getInstanceNumber());
+                    if (start == null) {
+                        return null;
                     }
-                } else {
-                    end = true;
-                    xmlObj = rs[i];
+                    segmentGroupFound = true;
                 }
             }
-            i++;
         }
-        return xmlObj;
+        if (!segmentGroupFound) {
+            return null;
+        }
+        // Segment
+        ProfileNode node = start.getChild(ElementType.SEGMENT, segmentName,
+                segmentInstanceNumber);
+        // Field
+        if (node != null) {
+            node = node.getChildAt(fieldPosition);
+            if (node != null && !node.isInstanceAllowed(fieldInstanceNumber)) {
+                node = null;
+            }
+        }
+        // Component
+        if (node != null && componentPosition > 0) {
+            node = node.getChildAt(componentPosition);
+            // SubComponent
+            if (node != null && subComponentPosition > 0) {
+                node = node.getChildAt(subComponentPosition);
+            }
+        }
+        return node;
     }
 
 }
@@ -44,6 +44,11 @@ import java.util.regex.Pattern;
  */
 public class Er7Message extends HL7V2MessageImpl {
 
+    /* The location syntax of getValues */
+    private static final Pattern EPATH = Pattern.compile("([A-Z0-9]{3})\\[(?:(\\d+|\\*))\\]"
+            + "(?:\\.(\\d+)\\[(?:(\\d+|\\*))\\]"
+            + "(?:\\.(\\d+)(?:\\.(\\d+))?)?)?");
+
     private File messageFile;
     protected HashMap<Integer, String> er7Mapping;
     protected Map<String, List<ESegment>> segments;
@@ -344,6 +349,49 @@ public class Er7Message extends HL7V2MessageImpl {
         return sb.toString();
     }
 
+    /**
+     * Get the number of lines of the message.
+     * 
+     * @return the number of lines
+     */
+    public int getLineCount() {
+        return er7Mapping.size();
+    }
+
+    /**
+     * Get a line of the message. Unlike getMessageAsString, the message is
+     * not rebuilt.
+     * 
+     * @param lineNumber
+     *        the line number (starting at 1)
+     * @return the line; null if there is no such line
+     */
+    public String getSegmentLine(int lineNumber) {
+        return er7Mapping.get(lineNumber);
+    }
+
+    /**
+     * Get the parsed segment of a line.
+     * 
+     * @param lineNumber
+     *        the line number (starting at 1)
+     * @return the segment; null if the line has no segment
+     */
+    public ESegment getESegment(int lineNumber) {
+        String line = er7Mapping.get(lineNumber);
+        if (line != null && line.length() >= 3) {
+            List<ESegment> list = segments.get(line.substring(0, 3));
+            if (list != null) {
+                for (ESegment esegment : list) {
+                    if (esegment.getLine() == lineNumber) {
+                        return esegment;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     protected String getSegment(String segmentName, int segmentInstanceNumber) {
         String segment = null;
         MessageLocation location = new MessageLocation(segmentName,
@@ -1128,6 +1176,11 @@ public class Er7Message extends HL7V2MessageImpl {
     // }
 
     public int getSegmentCount(String segmentName) {
+        if (segmentName.length() == 3) {
+            // The segments are indexed by the first 3 characters of the line
+            List<ESegment> list = segments.get(segmentName);
+            return list == null ? 0 : list.size();
+        }
         int count = 0;
         Iterator<Integer> lines = er7Mapping.keySet().iterator();
         while (lines.hasNext()) {
@@ -1171,10 +1224,7 @@ public class Er7Message extends HL7V2MessageImpl {
 
     public List<String> getValues(String location) {
         ArrayList<String> values = new ArrayList<String>();
-        Pattern p = Pattern.compile("([A-Z0-9]{3})\\[(?:(\\d+|\\*))\\]"
-                + "(?:\\.(\\d+)\\[(?:(\\d+|\\*))\\]"
-                + "(?:\\.(\\d+)(?:\\.(\\d+))?)?)?");
-        Matcher m = p.matcher(location);
+        Matcher m = EPATH.matcher(location);
         if (m.matches()) {
             String segmentName = m.group(1);
             String segmentInstanceNumber = m.group(2);
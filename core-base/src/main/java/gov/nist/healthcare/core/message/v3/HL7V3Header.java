@@ -0,0 +1,115 @@
+/*
+ * NIST Healthcare Core
+ * HL7V3Header.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.message.v3;
+
+/**
+ * This class represents the transmission wrapper of an HL7 V3 message
+ * (sender, receiver, id, creationTime and interactionId). Instances are
+ * immutable; the name and message id getters return new objects.
+ */
+public final class HL7V3Header {
+
+    private final String rootElementName;
+    private final String sendingApplicationName;
+    private final String sendingFacilityName;
+    private final String receivingApplicationName;
+    private final String receivingFacilityName;
+    private final String messageIdRoot;
+    private final String messageIdExtension;
+    private final String creationTime;
+    private final String interactionId;
+
+    /**
+     * Constructor.
+     *
+     * @param rootElementName
+     *        the local name of the root element
+     * @param sendingApplicationName
+     * @param sendingFacilityName
+     * @param receivingApplicationName
+     * @param receivingFacilityName
+     * @param messageIdRoot
+     * @param messageIdExtension
+     * @param creationTime
+     * @param interactionId
+     */
+    public HL7V3Header(String rootElementName, String sendingApplicationName,
+            String sendingFacilityName, String receivingApplicationName,
+            String receivingFacilityName, String messageIdRoot,
+            String messageIdExtension, String creationTime,
+            String interactionId) {
+        this.rootElementName = rootElementName;
+        this.sendingApplicationName = sendingApplicationName;
+        this.sendingFacilityName = sendingFacilityName;
+        this.receivingApplicationName = receivingApplicationName;
+        this.receivingFacilityName = receivingFacilityName;
+        this.messageIdRoot = messageIdRoot;
+        this.messageIdExtension = messageIdExtension;
+        this.creationTime = creationTime;
+        this.interactionId = interactionId;
+    }
+
+    public String getRootElementName() {
+        return rootElementName;
+    }
+
+    /**
+     * Get the sender of the message.
+     *
+     * @return a new HL7V3Name
+     */
+    public HL7V3Name getSending() {
+        return new HL7V3Name(sendingApplicationName, sendingFacilityName);
+    }
+
+    /**
+     * Get the receiver of the message.
+     *
+     * @return a new HL7V3Name
+     */
+    public HL7V3Name getReceiving() {
+        return new HL7V3Name(receivingApplicationName, receivingFacilityName);
+    }
+
+    /**
+     * Get the message id. It returns null when the id element has neither a
+     * root nor an extension.
+     *
+     * @return a new HL7V3MessageId; null otherwise
+     */
+    public HL7V3MessageId getMessageId() {
+        HL7V3MessageId messageId = null;
+        if (messageIdRoot != null || messageIdExtension != null) {
+            messageId = new HL7V3MessageId(messageIdRoot, messageIdExtension);
+        }
+        return messageId;
+    }
+
+    public String getCreationTime() {
+        return creationTime;
+    }
+
+    public String getInteractionId() {
+        return interactionId;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(interactionId).append(" ");
+        sb.append(messageIdRoot).append("/").append(messageIdExtension);
+        sb.append(" ").append(creationTime);
+        sb.append(" ").append(sendingApplicationName).append(" / ").append(
+                sendingFacilityName);
+        sb.append(" -> ").append(receivingApplicationName).append(" / ").append(
+                receivingFacilityName);
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * NIST Healthcare Core
+ * HL7V3HeaderSniffer.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.message.v3;
+
+import gov.nist.healthcare.core.MalformedMessageException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * This class reads the transmission wrapper of an HL7 V3 message using StAX.
+ * Only the sender, receiver, id, creationTime and interactionId elements are
+ * read: the parsing stops at the end of the sender element or at the start of
+ * the controlActProcess element, so the payload is never loaded. The values
+ * are the ones returned by the header XPath expressions of HL7V3Message.
+ */
+public final class HL7V3HeaderSniffer {
+
+    private static final XMLInputFactory FACTORY;
+
+    static {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+    }
+
+    private HL7V3HeaderSniffer() {
+    }
+
+    /**
+     * Read the header of a message.
+     *
+     * @param messageFile
+     * @return the header
+     * @throws MalformedMessageException
+     */
+    public static HL7V3Header sniff(File messageFile)
+            throws MalformedMessageException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(messageFile);
+            return sniff(is);
+        } catch (IOException ioe) {
+            throw new MalformedMessageException(ioe.getMessage());
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the header of a message. The stream is not closed.
+     *
+     * @param is
+     * @return the header
+     * @throws MalformedMessageException
+     */
+    public static HL7V3Header sniff(InputStream is)
+            throws MalformedMessageException {
+        XMLStreamReader reader = null;
+        try {
+            synchronized (FACTORY) {
+                reader = FACTORY.createXMLStreamReader(is);
+            }
+            return sniff(reader);
+        } catch (XMLStreamException xse) {
+            throw new MalformedMessageException(xse.getMessage());
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Read the header of a message.
+     *
+     * @param messageString
+     * @return the header
+     * @throws MalformedMessageException
+     */
+    public static HL7V3Header sniff(String messageString)
+            throws MalformedMessageException {
+        return sniff(new StringReader(messageString));
+    }
+
+    /**
+     * Read the header of a message. The reader is not closed.
+     *
+     * @param r
+     * @return the header
+     * @throws MalformedMessageException
+     */
+    public static HL7V3Header sniff(Reader r) throws MalformedMessageException {
+        XMLStreamReader reader = null;
+        try {
+            synchronized (FACTORY) {
+                reader = FACTORY.createXMLStreamReader(r);
+            }
+            return sniff(reader);
+        } catch (XMLStreamException xse) {
+            throw new MalformedMessageException(xse.getMessage());
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Walk the wrapper elements. The path array holds the local names of the
+     * V3 elements from the root to the current element (null for elements in
+     * another namespace).
+     *
+     * @param reader
+     * @return the header
+     * @throws XMLStreamException
+     */
+    private static HL7V3Header sniff(XMLStreamReader reader)
+            throws XMLStreamException {
+        String rootElementName = null;
+        String[] names = new String[4];
+        String idRoot = null;
+        String idExtension = null;
+        boolean idFound = false;
+        String creationTime = null;
+        String interactionId = null;
+        String[] path = new String[7];
+        int depth = 0;
+        boolean end = false;
+        while (!end && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String name = null;
+                if (HL7V3Message.V3_NAMESPACE.equals(reader.getNamespaceURI())) {
+                    name = reader.getLocalName();
+                }
+                if (depth < path.length) {
+                    path[depth] = name;
+                }
+                if (depth == 1) {
+                    rootElementName = reader.getLocalName();
+                } else if (depth == 2 && name != null) {
+                    if ("id".equals(name) && !idFound) {
+                        idFound = true;
+                        idRoot = reader.getAttributeValue(null, "root");
+                        idExtension = reader.getAttributeValue(null,
+                                "extension");
+                    } else if ("creationTime".equals(name)
+                            && creationTime == null) {
+                        creationTime = reader.getAttributeValue(null, "value");
+                    } else if ("interactionId".equals(name)
+                            && interactionId == null) {
+                        interactionId = reader.getAttributeValue(null,
+                                "extension");
+                    } else if ("controlActProcess".equals(name)) {
+                        end = true;
+                    }
+                } else if (depth == 4 && "id".equals(name)
+                        && "device".equals(path[3])) {
+                    int idx = getNameIndex(path[2]);
+                    if (idx != -1 && names[idx] == null) {
+                        names[idx] = reader.getAttributeValue(null, "root");
+                    }
+                } else if (depth == 6 && "id".equals(name)
+                        && "device".equals(path[3])
+                        && "asAgent".equals(path[4])
+                        && "representedOrganization".equals(path[5])) {
+                    int idx = getNameIndex(path[2]);
+                    if (idx != -1 && names[idx + 1] == null) {
+                        names[idx + 1] = reader.getAttributeValue(null, "root");
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 2 && "sender".equals(path[2])) {
+                    end = true;
+                }
+                if (depth < path.length) {
+                    path[depth] = null;
+                }
+                depth--;
+            }
+        }
+        return new HL7V3Header(rootElementName, names[0], names[1], names[2],
+                names[3], idRoot, idExtension, creationTime,
+                interactionId);
+    }
+
+    /**
+     * Get the index of the application name in the names array.
+     *
+     * @param name
+     *        the wrapper element name
+     * @return 0 for sender, 2 for receiver; -1 otherwise
+     */
+    private static int getNameIndex(String name) {
+        int idx = -1;
+        if ("sender".equals(name)) {
+            idx = 0;
+        } else if ("receiver".equals(name)) {
+            idx = 2;
+        }
+        return idx;
+    }
+
+    /**
+     * Close the StAX reader quietly.
+     *
+     * @param reader
+     */
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException xse) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * NIST Healthcare Core
+ * CompiledProfile.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * This class is an immutable representation of the static definition of a
+ * profile. The profile document is walked once and each element is turned
+ * into a ProfileNode; validation can then read the Usage, cardinalities,
+ * length, table, constant and datatype without creating any XmlCursor.
+ */
+public final class CompiledProfile {
+
+    private static final QName NAME = QName.valueOf("Name");
+    private static final QName USAGE = QName.valueOf("Usage");
+    private static final QName MIN = QName.valueOf("Min");
+    private static final QName MAX = QName.valueOf("Max");
+    private static final QName LENGTH = QName.valueOf("Length");
+    private static final QName DATATYPE = QName.valueOf("Datatype");
+    private static final QName TABLE = QName.valueOf("Table");
+    private static final QName CONSTANT_VALUE = QName.valueOf("ConstantValue");
+
+    private final ProfileNode root;
+    private final Map<XmlObject, ProfileNode> nodes;
+    private final String hl7Version;
+    private final String messageType;
+    private final String messageEvent;
+    private final String messageStructureID;
+
+    /**
+     * Constructor. The profiles are created by compile and by
+     * ProfileSnapshot.read.
+     *
+     * @param root
+     * @param nodes
+     *        the nodes by element of the profile document
+     * @param hl7Version
+     * @param messageType
+     * @param messageEvent
+     * @param messageStructureID
+     */
+    CompiledProfile(ProfileNode root,
+            Map<XmlObject, ProfileNode> nodes, String hl7Version,
+            String messageType, String messageEvent, String messageStructureID) {
+        this.root = root;
+        this.nodes = nodes;
+        this.hl7Version = hl7Version;
+        this.messageType = messageType;
+        this.messageEvent = messageEvent;
+        this.messageStructureID = messageStructureID;
+    }
+
+    /**
+     * Compile the profile document.
+     *
+     * @param profileDoc
+     *        the document root of an implementation profile
+     * @return the compiled profile
+     * @throws IllegalArgumentException
+     *         if the document has no static definition
+     */
+    public static CompiledProfile compile(XmlObject profileDoc) {
+        XmlCursor cursor = profileDoc.newCursor();
+        try {
+            if (!cursor.toChild("HL7v2xConformanceProfile")) {
+                throw new IllegalArgumentException(
+                        "The profile has no HL7v2xConformanceProfile element.");
+            }
+            String hl7Version = cursor.getAttributeText(QName.valueOf("HL7Version"));
+            if (!cursor.toChild("HL7v2xStaticDef")) {
+                throw new IllegalArgumentException(
+                        "The profile has no HL7v2xStaticDef element.");
+            }
+            String messageStructureID = cursor.getAttributeText(QName.valueOf("MsgStructID"));
+            Map<XmlObject, ProfileNode> nodes = new HashMap<XmlObject, ProfileNode>();
+            ProfileNode root = new ProfileNode(null, messageStructureID,
+                    Usage.R, 1, 1, ProfileNode.NOT_SPECIFIED, null, null, null,
+                    1, null, cursor.getObject());
+            nodes.put(root.getXmlObject(), root);
+            compileChildren(cursor, root, nodes);
+            return new CompiledProfile(root, Collections.unmodifiableMap(nodes),
+                    hl7Version, cursor.getAttributeText(QName.valueOf("MsgType")),
+                    cursor.getAttributeText(QName.valueOf("EventType")),
+                    messageStructureID);
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+    /**
+     * Compile the children of the element at the cursor position.
+     *
+     * @param cursor
+     * @param parent
+     * @param nodes
+     */
+    private static void compileChildren(XmlCursor cursor, ProfileNode parent,
+            Map<XmlObject, ProfileNode> nodes) {
+        List<ProfileNode> children = new ArrayList<ProfileNode>();
+        cursor.push();
+        if (cursor.toFirstChild()) {
+            Map<ElementType, Integer> positions = new HashMap<ElementType, Integer>();
+            String inheritedTable = getInheritedTable(parent,
+                    cursor.getAttributeText(TABLE));
+            do {
+                ElementType type = getElementType(parent.getType(),
+                        cursor.getName().getLocalPart());
+                if (type != null) {
+                    Integer position = positions.get(type);
+                    position = position == null ? 1 : position + 1;
+                    positions.put(type, position);
+                    String table = cursor.getAttributeText(TABLE);
+                    if (inheritedTable != null
+                            && type == ElementType.COMPONENT && position == 1) {
+                        table = inheritedTable;
+                    }
+                    ProfileNode node = new ProfileNode(type,
+                            cursor.getAttributeText(NAME),
+                            Usage.fromString(cursor.getAttributeText(USAGE)),
+                            parseInt(cursor.getAttributeText(MIN)),
+                            parseInt(cursor.getAttributeText(MAX)),
+                            parseInt(cursor.getAttributeText(LENGTH)),
+                            intern(cursor.getAttributeText(DATATYPE)),
+                            intern(table),
+                            cursor.getAttributeText(CONSTANT_VALUE), position,
+                            parent, cursor.getObject());
+                    nodes.put(node.getXmlObject(), node);
+                    compileChildren(cursor, node, nodes);
+                    children.add(node);
+                }
+            } while (cursor.toNextSibling());
+        }
+        cursor.pop();
+        parent.setChildren(children.toArray(new ProfileNode[children.size()]));
+    }
+
+    /**
+     * Get the table given to the first component of a CE field. A table
+     * specified at the field level applies to CE.1 unless the first child
+     * element of the field has its own table. The profile document is not
+     * modified.
+     * 
+     * @param parent
+     * @param firstChildTable
+     *        the table of the first child element of the parent (can be null)
+     * @return the table; null if the components keep their own table
+     */
+    private static String getInheritedTable(ProfileNode parent,
+            String firstChildTable) {
+        String table = null;
+        if (parent.getType() == ElementType.FIELD
+                && "CE".equals(parent.getDatatype())
+                && parent.getTable() != null && firstChildTable == null) {
+            table = parent.getTable();
+        }
+        return table;
+    }
+
+    /**
+     * Get the type of a child element.
+     *
+     * @param parentType
+     *        the type of the parent; null for the static definition
+     * @param elementName
+     *        the local name of the child element
+     * @return the element type; null if the element is not part of the
+     *         structure (e.g. a Predicate or a Reference)
+     */
+    private static ElementType getElementType(ElementType parentType,
+            String elementName) {
+        ElementType type = null;
+        if (parentType == null || parentType == ElementType.SEGMENT_GROUP) {
+            if ("SegGroup".equals(elementName)) {
+                type = ElementType.SEGMENT_GROUP;
+            } else if ("Segment".equals(elementName)) {
+                type = ElementType.SEGMENT;
+            }
+        } else if (parentType == ElementType.SEGMENT
+                && "Field".equals(elementName)) {
+            type = ElementType.FIELD;
+        } else if (parentType == ElementType.FIELD
+                && "Component".equals(elementName)) {
+            type = ElementType.COMPONENT;
+        } else if (parentType == ElementType.COMPONENT
+                && "SubComponent".equals(elementName)) {
+            type = ElementType.SUBCOMPONENT;
+        }
+        return type;
+    }
+
+    /**
+     * Parse an integer attribute.
+     *
+     * @param value
+     * @return the value; UNBOUNDED for *; NOT_SPECIFIED if the value is null
+     */
+    private static int parseInt(String value) {
+        int i = ProfileNode.NOT_SPECIFIED;
+        if (value != null) {
+            String v = value.trim();
+            if ("*".equals(v)) {
+                i = ProfileNode.UNBOUNDED;
+            } else {
+                i = Integer.parseInt(v);
+            }
+        }
+        return i;
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    /**
+     * Get the static definition. Its children are the SegGroup and Segment
+     * elements of the message.
+     *
+     * @return the root node
+     */
+    public ProfileNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Get the compiled node for an element of the profile document.
+     *
+     * @param xmlObject
+     *        a SegGroup, Segment, Field, Component or SubComponent element
+     * @return the node; null otherwise (always null if the profile was read
+     *         from a snapshot)
+     */
+    public ProfileNode getNode(XmlObject xmlObject) {
+        return nodes.get(xmlObject);
+    }
+
+    public String getHl7Version() {
+        return hl7Version;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getMessageEvent() {
+        return messageEvent;
+    }
+
+    public String getMessageStructureID() {
+        return messageStructureID;
+    }
+
+}
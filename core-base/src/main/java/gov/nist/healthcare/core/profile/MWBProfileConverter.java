@@ -0,0 +1,187 @@
+/*
+ * NIST Healthcare Core
+ * MWBProfileConverter.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.Constants;
+import gov.nist.healthcare.core.MalformedProfileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
+import org.apache.xmlbeans.XmlSaxHandler;
+
+/**
+ * This class converts an MWB profile into an implementation profile. The
+ * stylesheet is compiled once and the result of the transformation is loaded
+ * directly into an XmlBeans store.
+ * <p>
+ * The converted profiles can also be kept on disk (see setCacheDirectory).
+ * The files are named after a hash of the MWB profile and of the stylesheet,
+ * so a modified profile or a new stylesheet is converted again.
+ */
+public final class MWBProfileConverter {
+
+    private static Templates templates;
+    private static String stylesheetHash;
+    private static volatile File cacheDirectory;
+
+    private MWBProfileConverter() {
+    }
+
+    /**
+     * Set the directory where the converted profiles are kept.
+     *
+     * @param directory
+     *        the directory; null to disable the cache (default)
+     */
+    public static void setCacheDirectory(File directory) {
+        if (directory != null && !directory.isDirectory()
+                && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create the directory "
+                    + directory);
+        }
+        cacheDirectory = directory;
+    }
+
+    /**
+     * Get the directory where the converted profiles are kept.
+     *
+     * @return the directory; null if the cache is disabled
+     */
+    public static File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Convert an MWB profile into an implementation profile.
+     *
+     * @param mwbProfile
+     *        the MWB profile document
+     * @return the implementation profile document
+     * @throws MalformedProfileException
+     */
+    public static XmlObject convert(XmlObject mwbProfile)
+            throws MalformedProfileException {
+        try {
+            Templates t = getTemplates();
+            File directory = cacheDirectory;
+            File cached = null;
+            if (directory != null) {
+                cached = new File(directory, ProfileRegistry.getContentHash(
+                        mwbProfile)
+                        + "-" + stylesheetHash + ".xml");
+                if (cached.isFile()) {
+                    return XmlObject.Factory.parse(cached,
+                            (new XmlOptions()).setLoadLineNumbers());
+                }
+            }
+            XmlObject implProfile = transform(t, mwbProfile);
+            if (cached != null) {
+                save(implProfile, cached);
+            }
+            return implProfile;
+        } catch (MalformedProfileException mpe) {
+            throw mpe;
+        } catch (Exception e) {
+            throw new MalformedProfileException(e.getClass() + " "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Transform the MWB profile. The output of the transformation is loaded
+     * into the XmlBeans store through SAX.
+     *
+     * @param t
+     * @param mwbProfile
+     * @return the implementation profile document
+     * @throws Exception
+     */
+    private static XmlObject transform(Templates t, XmlObject mwbProfile)
+            throws Exception {
+        Transformer transformer = t.newTransformer();
+        XmlSaxHandler handler = XmlObject.Factory.newXmlSaxHandler((new XmlOptions()).setLoadLineNumbers());
+        SAXResult result = new SAXResult(handler.getContentHandler());
+        result.setLexicalHandler(handler.getLexicalHandler());
+        InputStream is = mwbProfile.newInputStream();
+        try {
+            transformer.transform(new StreamSource(is), result);
+        } finally {
+            is.close();
+        }
+        return handler.getObject();
+    }
+
+    /**
+     * Save a converted profile in the cache. The file is written under a
+     * temporary name first so that a partial file is never read.
+     *
+     * @param implProfile
+     * @param file
+     */
+    private static void save(XmlObject implProfile, File file) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("MWB", ".tmp", file.getParentFile());
+            implProfile.save(tmp);
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            // The cache is optional
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the compiled stylesheet.
+     *
+     * @return the compiled stylesheet
+     * @throws Exception
+     */
+    private static synchronized Templates getTemplates() throws Exception {
+        if (templates == null) {
+            InputStream is = MWBProfileConverter.class.getClassLoader().getResourceAsStream(
+                    Constants.XSLT_MWB2IMPL_RESOURCE);
+            if (is == null) {
+                throw new IOException("Can't find the resource "
+                        + Constants.XSLT_MWB2IMPL_RESOURCE);
+            }
+            byte[] stylesheet = null;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read = 0;
+                while ((read = is.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                stylesheet = out.toByteArray();
+            } finally {
+                is.close();
+            }
+            stylesheetHash = ProfileRegistry.toHexString(
+                    ProfileRegistry.newDigest().digest(stylesheet)).substring(
+                    0, 8);
+            templates = TransformerFactory.newInstance().newTemplates(
+                    new StreamSource(new ByteArrayInputStream(stylesheet)));
+        }
+        return templates;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * NIST Healthcare Core
+ * NameResolver.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class gives the names of the profile elements for a message location.
+ * The names are computed once per segment name from the compiled profile: a
+ * call only parses the location and walks down an array based tree.
+ * <p>
+ * When a segment is defined several times in the profile (e.g. OBX), the
+ * names are given only if all the definitions agree.
+ */
+public final class NameResolver {
+
+    private static final int DEPTH = 4;
+
+    /* Segment name -> names */
+    private final Map<String, Names> segments;
+
+    /**
+     * Constructor
+     *
+     * @param cp
+     *        the compiled profile
+     */
+    public NameResolver(CompiledProfile cp) {
+        Map<String, List<ProfileNode>> definitions = new HashMap<String, List<ProfileNode>>();
+        collectSegments(cp.getRoot(), definitions);
+        segments = new HashMap<String, Names>();
+        for (Map.Entry<String, List<ProfileNode>> e : definitions.entrySet()) {
+            List<ProfileNode> nodes = e.getValue();
+            segments.put(e.getKey(), merge(
+                    nodes.toArray(new ProfileNode[nodes.size()]), 0,
+                    new String[0]));
+        }
+    }
+
+    /**
+     * Get the names for a message location
+     *
+     * @param path
+     *        a path with form PID[1].2[3].4.5 or /PID[1].2[3].4.5 or
+     *        /SEGMENT_GROUP/PID[1].2[3].4.5
+     * @return a list of names (String) 1st: Segment, 2nd: Field, 3rd:
+     *         Component, 4th: SubComponent, the following items contains the
+     *         segment group; null if the location can't be resolved
+     */
+    public List<String> getNames(String path) {
+        List<String> names = null;
+        List<String> segmentGroupNames = null;
+        String segment = null;
+        int[] positions = null;
+        int start = 0;
+        int length = path.length();
+        while (start <= length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            String token = path.substring(start, end).trim();
+            int[] p = parseLocation(token);
+            if (p != null) {
+                segment = token.substring(0, 3);
+                positions = p;
+            } else if (token.length() > 0 && token.charAt(0) == '.') {
+                if (segmentGroupNames == null) {
+                    segmentGroupNames = new ArrayList<String>();
+                }
+                segmentGroupNames.add(token.substring(1));
+            }
+            start = end + 1;
+        }
+        if (segment != null) {
+            Names n = segments.get(segment);
+            for (int i = 0; n != null && n != Names.AMBIGUOUS
+                    && i < positions.length && positions[i] != 0; i++) {
+                Names child = n.getChild(positions[i]);
+                if (child == null) {
+                    break;
+                }
+                n = child;
+            }
+            if (n != null && n != Names.AMBIGUOUS) {
+                names = n.names;
+            }
+        }
+        if (segmentGroupNames != null) {
+            List<String> l = new ArrayList<String>(DEPTH
+                    + segmentGroupNames.size());
+            l.addAll(names == null ? Names.NONE : names);
+            l.addAll(segmentGroupNames);
+            names = l;
+        }
+        return names;
+    }
+
+    /**
+     * Parse a location with form PID[1].2[3].4.5 (the instance numbers can
+     * be *).
+     *
+     * @param token
+     * @return the field, component and subcomponent positions (0 if not
+     *         specified); null if the token is not a location
+     */
+    private static int[] parseLocation(String token) {
+        int length = token.length();
+        if (length < 6 || token.charAt(3) != '[') {
+            return null;
+        }
+        for (int i = 0; i < 3; i++) {
+            char c = token.charAt(i);
+            if (!(c >= 'A' && c <= 'Z' || c >= '0' && c <= '9')) {
+                return null;
+            }
+        }
+        int idx = skipInstance(token, 3);
+        int[] positions = new int[DEPTH - 1];
+        for (int i = 0; i < positions.length && idx != -1 && idx < length; i++) {
+            if (token.charAt(idx) != '.') {
+                return null;
+            }
+            int end = skipDigits(token, idx + 1);
+            if (end == idx + 1) {
+                return null;
+            }
+            positions[i] = Integer.parseInt(token.substring(idx + 1, end));
+            idx = i == 0 ? skipInstance(token, end) : end;
+        }
+        return idx == length ? positions : null;
+    }
+
+    /**
+     * Skip an instance number ([1] or [*]).
+     *
+     * @param token
+     * @param idx
+     *        the index of the opening bracket
+     * @return the index after the closing bracket; -1 if there is no
+     *         instance number
+     */
+    private static int skipInstance(String token, int idx) {
+        if (idx >= token.length() || token.charAt(idx) != '[') {
+            return -1;
+        }
+        int end = idx + 1;
+        if (end < token.length() && token.charAt(end) == '*') {
+            end++;
+        } else {
+            end = skipDigits(token, end);
+            if (end == idx + 1) {
+                return -1;
+            }
+        }
+        if (end >= token.length() || token.charAt(end) != ']') {
+            return -1;
+        }
+        return end + 1;
+    }
+
+    private static int skipDigits(String token, int idx) {
+        while (idx < token.length() && Character.isDigit(token.charAt(idx))) {
+            idx++;
+        }
+        return idx;
+    }
+
+    /**
+     * Collect the segment definitions by name.
+     *
+     * @param node
+     * @param definitions
+     */
+    private static void collectSegments(ProfileNode node,
+            Map<String, List<ProfileNode>> definitions) {
+        for (ProfileNode child : node.getChildren()) {
+            if (child.getType() == ElementType.SEGMENT) {
+                List<ProfileNode> nodes = definitions.get(child.getName());
+                if (nodes == null) {
+                    nodes = new ArrayList<ProfileNode>(1);
+                    definitions.put(child.getName(), nodes);
+                }
+                nodes.add(child);
+            } else if (child.getType() == ElementType.SEGMENT_GROUP) {
+                collectSegments(child, definitions);
+            }
+        }
+    }
+
+    /**
+     * Merge the names of the definitions of an element.
+     *
+     * @param nodes
+     *        the definitions (same position in each segment definition)
+     * @param level
+     *        0 for the segment, 3 for the subcomponent
+     * @param parentNames
+     *        the names of the ancestors
+     * @return the names; AMBIGUOUS if the definitions have different names
+     */
+    private static Names merge(ProfileNode[] nodes, int level,
+            String[] parentNames) {
+        String name = nodes[0].getName();
+        for (ProfileNode node : nodes) {
+            if (name == null ? node.getName() != null
+                    : !name.equals(node.getName())) {
+                return Names.AMBIGUOUS;
+            }
+        }
+        String[] names = new String[level + 1];
+        System.arraycopy(parentNames, 0, names, 0, Math.min(
+                parentNames.length, names.length));
+        names[level] = name;
+        Names n = new Names(names);
+        if (level < DEPTH - 1) {
+            int count = 0;
+            for (ProfileNode node : nodes) {
+                count = Math.max(count, getChildCount(node));
+            }
+            n.children = new Names[count];
+            for (int i = 0; i < count; i++) {
+                ProfileNode[] children = new ProfileNode[nodes.length];
+                boolean missing = false;
+                for (int j = 0; j < nodes.length; j++) {
+                    children[j] = getChild(nodes[j], i + 1);
+                    missing |= children[j] == null;
+                }
+                n.children[i] = missing ? Names.AMBIGUOUS : merge(children,
+                        level + 1, names);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get the number of children of an element. An element without children
+     * is seen as its own first child, as in the message locations of
+     * primitive elements.
+     *
+     * @param node
+     * @return the number of children
+     */
+    private static int getChildCount(ProfileNode node) {
+        return Math.max(1, node.getChildCount());
+    }
+
+    private static ProfileNode getChild(ProfileNode node, int position) {
+        if (node.isPrimitive()) {
+            return position == 1 ? node : null;
+        }
+        return node.getChildAt(position);
+    }
+
+    /**
+     * The names for an element and the names of its children by position.
+     */
+    private static final class Names {
+
+        private static final List<String> NONE = Collections.unmodifiableList(Arrays.asList(new String[DEPTH]));
+        private static final Names AMBIGUOUS = new Names(new String[0]);
+
+        private final List<String> names;
+        private Names[] children;
+
+        private Names(String[] names) {
+            String[] copy = new String[DEPTH];
+            System.arraycopy(names, 0, copy, 0, Math.min(names.length, DEPTH));
+            this.names = Collections.unmodifiableList(Arrays.asList(copy));
+        }
+
+        /**
+         * Get the names of a child.
+         *
+         * @param position
+         *        the position (starting at 1)
+         * @return the names; null if there is no such child
+         */
+        private Names getChild(int position) {
+            Names child = null;
+            if (children != null && position >= 1
+                    && position <= children.length) {
+                child = children[position - 1];
+            }
+            return child;
+        }
+    }
+
+}
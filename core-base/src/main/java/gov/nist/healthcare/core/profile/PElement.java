@@ -12,7 +12,10 @@ package gov.nist.healthcare.core.profile;
  * This class represents an element in the profile.
  * 
  * @author Sydney Henrard (NIST)
+ * @deprecated Profile does not build this model anymore; use the
+ *             ProfileNode tree of Profile.getCompiledProfile().
  */
+@Deprecated
 public class PElement {
 
     protected String name;
@@ -17,7 +17,10 @@ import org.apache.xmlbeans.XmlCursor;
  * This class represents a field in a profile.
  * 
  * @author Sydney Henrard (NIST)
+ * @deprecated Profile does not build this model anymore; use the
+ *             ProfileNode tree of Profile.getCompiledProfile().
  */
+@Deprecated
 public class PField extends PElement {
 
     private final List<PComponent> components;
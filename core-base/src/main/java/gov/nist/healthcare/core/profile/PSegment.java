@@ -17,7 +17,10 @@ import org.apache.xmlbeans.XmlCursor;
  * This class represents a segment in a profile.
  * 
  * @author Sydney Henrard (NIST)
+ * @deprecated Profile does not build this model anymore; use the
+ *             ProfileNode tree of Profile.getCompiledProfile().
  */
+@Deprecated
 public class PSegment extends PElement {
 
     private final List<PField> fields;
@@ -15,7 +15,10 @@ import org.apache.xmlbeans.XmlCursor;
  * This class represents a subcomponent in a profile.
  * 
  * @author Sydney Henrard (NIST)
+ * @deprecated Profile does not build this model anymore; use the
+ *             ProfileNode tree of Profile.getCompiledProfile().
  */
+@Deprecated
 public class PSubComponent extends PElement {
 
     /**
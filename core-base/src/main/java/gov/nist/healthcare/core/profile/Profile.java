@@ -8,13 +8,10 @@
  */
 package gov.nist.healthcare.core.profile;
 
-import gov.nist.healthcare.core.Constants;
 import gov.nist.healthcare.core.Constants.ProfileType;
 import gov.nist.healthcare.core.MalformedProfileException;
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.util.XmlBeansUtils;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -22,13 +19,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.xml.namespace.QName;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
@@ -42,11 +33,21 @@ import org.apache.xmlbeans.impl.values.XmlObjectBase;
 public class Profile implements Cloneable {
 
     private String id;
-    private XmlObject profileDoc;
+    /* Null until the document of a profile created from a snapshot is loaded */
+    private volatile XmlObject profileDoc;
     private File profileFile;
+    private long profileFileTimestamp;
     private int cardinalityUpperbound = 3;
     private XmlMessage template;
-    private Map<String, PSegment> segments;
+    private volatile CompiledProfile compiledProfile;
+    private volatile XmlCursor.ChangeStamp compiledStamp;
+    private volatile NameResolver nameResolver;
+    /* Detect the changes of the document after the loading */
+    private XmlCursor.ChangeStamp loadStamp;
+    private String sourceKey;
+    private XmlCursor.ChangeStamp sourceStamp;
+    /* The compiled profile read from a snapshot */
+    private CompiledProfile snapshot;
 
     /**
      * Create a profile from a File
@@ -57,10 +58,10 @@ public class Profile implements Cloneable {
     public Profile(File xmlProfile) throws MalformedProfileException {
         try {
             this.profileFile = xmlProfile;
+            profileFileTimestamp = xmlProfile.lastModified();
             profileDoc = XmlObject.Factory.parse(xmlProfile,
                     (new XmlOptions()).setLoadLineNumbers());
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
@@ -79,10 +80,10 @@ public class Profile implements Cloneable {
         try {
             this.id = id;
             this.profileFile = xmlProfile;
+            profileFileTimestamp = xmlProfile.lastModified();
             profileDoc = XmlObject.Factory.parse(xmlProfile,
                     (new XmlOptions()).setLoadLineNumbers());
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
@@ -99,7 +100,6 @@ public class Profile implements Cloneable {
         try {
             profileDoc = xmloProfile;
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
@@ -120,7 +120,6 @@ public class Profile implements Cloneable {
             this.id = id;
             profileDoc = xmloProfile;
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
@@ -138,7 +137,6 @@ public class Profile implements Cloneable {
             profileDoc = XmlObject.Factory.parse(strProfile,
                     (new XmlOptions()).setLoadLineNumbers());
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
@@ -160,7 +158,6 @@ public class Profile implements Cloneable {
             profileDoc = XmlObject.Factory.parse(strProfile,
                     (new XmlOptions()).setLoadLineNumbers());
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
@@ -178,32 +175,49 @@ public class Profile implements Cloneable {
             profileDoc = XmlObject.Factory.parse(isProfile,
                     (new XmlOptions()).setLoadLineNumbers());
             handleProfileType();
-            load();
         } catch (Exception e) {
             throw new MalformedProfileException(e.getClass() + " "
                     + e.getMessage());
         }
     }
 
+    /**
+     * Create a profile from a File and the compiled profile of its snapshot
+     * (see ProfileSnapshot). The document is loaded when it is needed.
+     * 
+     * @param xmlProfile
+     * @param snapshot
+     *        the compiled profile read from the snapshot
+     */
+    Profile(File xmlProfile, CompiledProfile snapshot) {
+        this.profileFile = xmlProfile;
+        profileFileTimestamp = xmlProfile.lastModified();
+        this.snapshot = snapshot;
+    }
+
     /**
      * Handle MWB profile
      * 
      * @throws MalformedProfileException
      */
     private void handleProfileType() throws MalformedProfileException {
-        if (getProfileType() == ProfileType.MWB_PROFILE) {
+        if (getProfileType(profileDoc) == ProfileType.MWB_PROFILE) {
             transformMWB2Impl();
         }
+        loadStamp = newChangeStamp(profileDoc);
     }
 
     /**
      * Return the profile type
      * 
+     * @param doc
+     *        the profile document
      * @return the profile type
      * @throws MalformedProfileException
      */
-    private ProfileType getProfileType() throws MalformedProfileException {
-        XmlCursor cursor = profileDoc.newCursor();
+    private static ProfileType getProfileType(XmlObject doc)
+            throws MalformedProfileException {
+        XmlCursor cursor = doc.newCursor();
         cursor.toFirstChild();
         if (cursor.getName().getLocalPart().equals("Specification")) {
             return ProfileType.MWB_PROFILE;
@@ -221,22 +235,7 @@ public class Profile implements Cloneable {
      * @throws MalformedProfileException
      */
     private void transformMWB2Impl() throws MalformedProfileException {
-        try {
-            StreamSource xsltStream = new StreamSource(
-                    getClass().getClassLoader().getResourceAsStream(
-                            Constants.XSLT_MWB2IMPL_RESOURCE));
-            Transformer t = TransformerFactory.newInstance().newTransformer(
-                    xsltStream);
-            StreamSource src = new StreamSource(profileDoc.newInputStream());
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            t.transform(src, new StreamResult(out));
-            profileDoc = XmlObject.Factory.parse(
-                    new ByteArrayInputStream(out.toByteArray()),
-                    (new XmlOptions()).setLoadLineNumbers());
-        } catch (Exception e) {
-            throw new MalformedProfileException(e.getClass() + " "
-                    + e.getMessage());
-        }
+        profileDoc = MWBProfileConverter.convert(profileDoc);
     }
 
     /**
@@ -264,9 +263,60 @@ public class Profile implements Cloneable {
      * @return the document root of the XML representatin of the profile
      */
     public XmlObject getDocument() {
+        XmlObject doc = profileDoc;
+        if (doc == null) {
+            doc = loadDocument();
+        }
+        return doc;
+    }
+
+    /**
+     * Tell if the document is loaded. The document of a profile created from
+     * a snapshot is loaded on the first call which needs it.
+     * 
+     * @return true if the document is loaded; false otherwise
+     */
+    public boolean isDocumentLoaded() {
+        return profileDoc != null;
+    }
+
+    /**
+     * Load the document of a profile created from a snapshot.
+     * 
+     * @return the document
+     * @throws IllegalStateException
+     *         if the document can't be loaded
+     */
+    private synchronized XmlObject loadDocument() {
+        if (profileDoc == null) {
+            try {
+                XmlObject doc = XmlObject.Factory.parse(profileFile,
+                        (new XmlOptions()).setLoadLineNumbers());
+                if (getProfileType(doc) == ProfileType.MWB_PROFILE) {
+                    doc = MWBProfileConverter.convert(doc);
+                }
+                loadStamp = newChangeStamp(doc);
+                profileDoc = doc;
+            } catch (Exception e) {
+                throw new IllegalStateException("The profile " + profileFile
+                        + " can't be loaded: " + e.getClass() + " "
+                        + e.getMessage());
+            }
+        }
         return profileDoc;
     }
 
+    /**
+     * Get the compiled profile of the snapshot while the document is not
+     * loaded.
+     * 
+     * @return the compiled profile; null if the document is loaded or if the
+     *         profile has no snapshot
+     */
+    private CompiledProfile getSnapshot() {
+        return profileDoc == null ? snapshot : null;
+    }
+
     /**
      * Define the upperbound for a cardinality with an unlimited value
      * (designated with a *). There is a default defined for this setting.
@@ -304,13 +354,112 @@ public class Profile implements Cloneable {
     public synchronized Object clone() {
         Profile p = null;
         try {
-            p = new Profile(id, profileDoc.copy());
+            p = new Profile(id, getDocument().copy());
         } catch (MalformedProfileException e) {
             e.printStackTrace();
         }
         return p;
     }
 
+    /**
+     * Get the compiled representation of the profile. It is built on the
+     * first call and shared afterwards.
+     * 
+     * @return the compiled profile
+     */
+    public CompiledProfile getCompiledProfile() {
+        return getCompiledProfile(true);
+    }
+
+    /**
+     * Get the compiled representation of the profile. For a profile created
+     * from a snapshot, the compiled profile of the snapshot can be returned
+     * as long as the document is not modified: its nodes have no XmlObject,
+     * but the document is not loaded.
+     * 
+     * @param xmlObjects
+     *        true if the nodes must have their XmlObject
+     * @return the compiled profile
+     */
+    public CompiledProfile getCompiledProfile(boolean xmlObjects) {
+        CompiledProfile cp = compiledProfile;
+        if (!xmlObjects && cp == null && snapshot != null
+                && (profileDoc == null || !loadStamp.hasChanged())) {
+            return snapshot;
+        }
+        if (cp == null || compiledStamp.hasChanged()) {
+            synchronized (this) {
+                cp = compiledProfile;
+                if (cp == null || compiledStamp.hasChanged()) {
+                    // The document has been modified
+                    XmlObject doc = getDocument();
+                    nameResolver = null;
+                    compiledStamp = newChangeStamp(doc);
+                    cp = CompiledProfile.compile(doc);
+                    compiledProfile = cp;
+                }
+            }
+        }
+        return cp;
+    }
+
+    /**
+     * Discard the compiled representation of the profile. The modifications
+     * of the document returned by getDocument are detected, so it only has
+     * to be called to release the memory. The profile is also removed from
+     * the shared ProfileRegistry.
+     */
+    public void invalidateCompiledProfile() {
+        compiledProfile = null;
+        nameResolver = null;
+        ProfileRegistry.getInstance().remove(this);
+    }
+
+    /**
+     * Get a key identifying the source of the profile. It is the file and
+     * its modification time when the profile has been loaded from a file and
+     * not modified since; otherwise it is the hash of the document, computed
+     * on the first call and again after a modification of the document.
+     * 
+     * @return the source key
+     */
+    synchronized String getSourceKey() {
+        if (sourceKey == null || sourceStamp.hasChanged()) {
+            sourceStamp = newChangeStamp();
+            if (profileFile != null
+                    && (profileDoc == null || !loadStamp.hasChanged())) {
+                sourceKey = "file:" + profileFile.getAbsolutePath() + "@"
+                        + profileFileTimestamp;
+            } else {
+                sourceKey = "sha1:"
+                        + ProfileRegistry.getContentHash(getDocument());
+            }
+        }
+        return sourceKey;
+    }
+
+    /**
+     * Get a stamp to detect the modifications of the document.
+     * 
+     * @return the change stamp
+     */
+    XmlCursor.ChangeStamp newChangeStamp() {
+        if (profileDoc == null) {
+            // The document can't be modified before it is loaded
+            return new LoadStamp();
+        }
+        return newChangeStamp(profileDoc);
+    }
+
+    private static XmlCursor.ChangeStamp newChangeStamp(XmlObject doc) {
+        XmlCursor cursor = doc.newCursor();
+        try {
+            return cursor.getDocChangeStamp();
+        } finally {
+            cursor.dispose();
+        }
+    }
+
     /**
      * Get the value of the element in the profile at the specified location.
      * 
@@ -321,7 +470,7 @@ public class Profile implements Cloneable {
     public String getValue(String location) {
         String value = null;
         XmlObject[] rs = null;
-        rs = profileDoc.selectPath(location);
+        rs = getDocument().selectPath(location);
         if (rs.length == 1) {
             value = XmlBeansUtils.getValueFromXmlObject(rs[0]);
         } else if (rs.length == 0) {
@@ -338,7 +487,7 @@ public class Profile implements Cloneable {
     public List<String> getValues(String location) {
         ArrayList<String> results = new ArrayList<String>();
         XmlObject[] rs = null;
-        rs = profileDoc.selectPath(location);
+        rs = getDocument().selectPath(location);
         for (int i = 0; i < rs.length; i++) {
             XmlCursor cursor = rs[i].newCursor();
             if (cursor.isAttr() || !cursor.toFirstChild()) {
@@ -358,7 +507,11 @@ public class Profile implements Cloneable {
      * @return the version
      */
     public String getHl7VersionAsString() {
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        CompiledProfile cp = getSnapshot();
+        if (cp != null) {
+            return cp.getHl7Version();
+        }
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             return xmlCursor.getAttributeText(QName.valueOf("HL7Version"));
         }
@@ -371,7 +524,7 @@ public class Profile implements Cloneable {
      * @return the version
      */
     public String getVersion() {
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             if (xmlCursor.toChild("MetaData")) {
                 return xmlCursor.getAttributeText(QName.valueOf("Version"));
@@ -388,7 +541,7 @@ public class Profile implements Cloneable {
      * @return the profile type
      */
     public String getType() {
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             return xmlCursor.getAttributeText(QName.valueOf("ProfileType"));
         }
@@ -401,7 +554,11 @@ public class Profile implements Cloneable {
      * @return the message type
      */
     public String getMessageType() {
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        CompiledProfile cp = getSnapshot();
+        if (cp != null) {
+            return cp.getMessageType();
+        }
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             if (xmlCursor.toChild("HL7v2xStaticDef")) {
                 return xmlCursor.getAttributeText(QName.valueOf("MsgType"));
@@ -416,7 +573,11 @@ public class Profile implements Cloneable {
      * @return the messsage event
      */
     public String getMessageEvent() {
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        CompiledProfile cp = getSnapshot();
+        if (cp != null) {
+            return cp.getMessageEvent();
+        }
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             if (xmlCursor.toChild("HL7v2xStaticDef")) {
                 return xmlCursor.getAttributeText(QName.valueOf("EventType"));
@@ -431,7 +592,11 @@ public class Profile implements Cloneable {
      * @return the message structure id
      */
     public String getMessageStructureID() {
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        CompiledProfile cp = getSnapshot();
+        if (cp != null) {
+            return cp.getMessageStructureID();
+        }
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             if (xmlCursor.toChild("HL7v2xStaticDef")) {
                 return xmlCursor.getAttributeText(QName.valueOf("MsgStructID"));
@@ -447,7 +612,7 @@ public class Profile implements Cloneable {
      */
     public String getName() {
         String name = "";
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             if (xmlCursor.toChild("MetaData")) {
                 name = xmlCursor.getAttributeText(QName.valueOf("Name"));
@@ -463,7 +628,7 @@ public class Profile implements Cloneable {
      */
     public String getOrganization() {
         String orgName = "";
-        XmlCursor xmlCursor = profileDoc.newCursor();
+        XmlCursor xmlCursor = getDocument().newCursor();
         if (xmlCursor.toChild("HL7v2xConformanceProfile")) {
             if (xmlCursor.toChild("MetaData")) {
                 orgName = xmlCursor.getAttributeText(QName.valueOf("OrgName"));
@@ -514,7 +679,7 @@ public class Profile implements Cloneable {
         Map<String, XmlObject> uniqueSegments = new HashMap<String, XmlObject>();
         String xpath = "//Segment[@Usage != 'X']";
         Map<String, List<XmlObject>> hUniqueSegmentDefinition = new HashMap<String, List<XmlObject>>();
-        XmlObject[] rs = profileDoc.selectPath(xpath);
+        XmlObject[] rs = getDocument().selectPath(xpath);
         for (XmlObject segment : rs) {
             String segmentName = segment.newCursor().getAttributeText(
                     QName.valueOf("Name"));
@@ -536,38 +701,6 @@ public class Profile implements Cloneable {
         return uniqueSegments;
     }
 
-    /**
-     * Load the profile into a special internal representation to handles names
-     */
-    private void load() {
-        segments = new HashMap<String, PSegment>();
-        StringBuffer sb = new StringBuffer();
-        XmlCursor cursor = profileDoc.newCursor();
-        boolean end = false;
-        do {
-            if (cursor.toFirstChild()) {
-                // Do Nothing
-            } else {
-                while (!end && !cursor.toNextSibling()) {
-                    end = !cursor.toParent();
-                }
-            }
-            String elementName = cursor.getName() != null ? cursor.getName().getLocalPart()
-                    : "";
-            String name = cursor.getAttributeText(QName.valueOf("Name"));
-            if ("SegGroup".equals(elementName)) {
-                sb.append("/").append(name);
-            } else if ("Segment".equals(elementName)) {
-                sb.append("/").append(name);
-                cursor.push();
-                PSegment pSegment = new PSegment(cursor);
-                segments.put(sb.toString(), pSegment);
-                sb.delete(0, sb.length());
-                cursor.pop();
-            }
-        } while (!end);
-    }
-
     /**
      * Get the names for a message location
      * 
@@ -579,97 +712,24 @@ public class Profile implements Cloneable {
      *         segment group
      */
     public List<String> getNames(String path) {
-        List<String> names = null;
-        Pattern p = Pattern.compile("([A-Z0-9]{3})\\[(?:(\\d+|\\*))\\]"
-                + "(?:\\.(\\d+)\\[(?:(\\d+|\\*))\\]"
-                + "(?:\\.(\\d+)(?:\\.(\\d+))?)?)?");
-        String[] tokens = path.split("/");
-        String location = "";
-        List<String> segmentGroupNames = new ArrayList<String>();
-        for (int i = 0; i < tokens.length; i++) {
-            String token = tokens[i].trim();
-            if (p.matcher(token).matches()) {
-                location = token;
-            } else if (!"".equals(token) && token.indexOf(".") == 0) {
-                segmentGroupNames.add(token.substring(1));
-            }
+        CompiledProfile cp = getCompiledProfile();
+        NameResolver resolver = nameResolver;
+        if (resolver == null) {
+            resolver = new NameResolver(cp);
+            nameResolver = resolver;
         }
-        Matcher m = p.matcher(location);
-        if (m.matches()) {
-            String segment = m.group(1);
-            List<PSegment> pSegments = new ArrayList<PSegment>();
-            int countSegment = 0;
-            for (String key : segments.keySet()) {
-                if (key.endsWith(segment)) {
-                    countSegment++;
-                    pSegments.add(segments.get(key));
-                }
-            }
-            if (countSegment == 1 && pSegments.size() == 1) {
-                names = getNames(pSegments.get(0), m);
-            } else if (countSegment == 2 && pSegments.size() == 2) {
-                // If there are two segments with the same name (e.g. OBX)
-                // we only keep the names if they all matching
-                List<String> names_1 = getNames(pSegments.get(0), m);
-                List<String> names_2 = getNames(pSegments.get(1), m);
-                if (names_1.equals(names_2)) {
-                    names = names_1;
-                }
-            }
-        }
-        if (segmentGroupNames.size() > 0) {
-            if (names == null) {
-                names = new ArrayList<String>();
-                names.add(null);
-                names.add(null);
-                names.add(null);
-                names.add(null);
-            }
-            names.addAll(segmentGroupNames);
-        }
-        return names;
+        return resolver.getNames(path);
     }
 
     /**
-     * Get the names from the PSegment
-     * 
-     * @param pSegment
-     * @param m
-     *        a Matcher
-     * @return a list of names (String) 1st: Segment, 2nd: Field, 3rd:
-     *         Component, 4th: SubComponent
-     */
-    private List<String> getNames(PSegment pSegment, Matcher m) {
-        List<String> names = new ArrayList<String>();
-        names.add(pSegment.getName());
-        String field = m.group(3);
-        if (field != null) {
-            int iField = Integer.parseInt(field);
-            PField pField = pSegment.getField(iField);
-            if (pField != null) {
-                names.add(pField.getName());
-                String component = m.group(5);
-                if (component != null) {
-                    int iComponent = Integer.parseInt(component);
-                    PComponent pComponent = pField.getComponent(iComponent);
-                    if (pComponent != null) {
-                        names.add(pComponent.getName());
-                        String subComponent = m.group(6);
-                        if (subComponent != null) {
-                            int iSubComponent = Integer.parseInt(subComponent);
-                            PSubComponent pSubComponent = pComponent.getSubComponent(iSubComponent);
-                            if (pSubComponent != null) {
-                                names.add(pSubComponent.getName());
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        for (int i = names.size(); i < 4; i++) {
-            names.add(null);
+     * The stamp of a document which is not loaded yet: the modifications are
+     * detected from the loading.
+     */
+    private final class LoadStamp implements XmlCursor.ChangeStamp {
+
+        public boolean hasChanged() {
+            return profileDoc != null && loadStamp.hasChanged();
         }
-        return names;
     }
 
 }
@@ -0,0 +1,37 @@
+/*
+ * NIST Healthcare Core
+ * ProfileArtifactFactory.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+/**
+ * This interface creates an object derived from a profile (schema, finite
+ * state machine, index, ...). The created objects are cached by the
+ * ProfileRegistry under the factory name, so they must not be modified once
+ * created.
+ * @param <T>
+ *        the type of the derived object
+ */
+public interface ProfileArtifactFactory<T> {
+
+    /**
+     * Get the name under which the artifact is cached. Two factories creating
+     * different artifacts must have different names.
+     *
+     * @return the name of the artifact
+     */
+    String getName();
+
+    /**
+     * Create the artifact for a profile.
+     *
+     * @param profile
+     * @return the artifact (can't be null)
+     */
+    T create(Profile profile);
+
+}
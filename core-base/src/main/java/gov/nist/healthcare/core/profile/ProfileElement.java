@@ -8,9 +8,7 @@
  */
 package gov.nist.healthcare.core.profile;
 
-import gov.nist.healthcare.core.Constants;
 import gov.nist.healthcare.core.Constants.ElementType;
-import gov.nist.healthcare.generation.message.SequenceNumbersDocument;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -479,17 +477,8 @@ public class ProfileElement {
         int sn = -1;
         if (xmlObj != null) {
             if (type == ElementType.FIELD) {
-                SequenceNumbersDocument sequenceNumbersDoc = SequenceNumbersDocument.Factory.parse(this.getClass().getResourceAsStream(
-                        Constants.getSequenceNumbers(version)));
-                XmlObject[] rs = sequenceNumbersDoc.selectPath(String.format(
-                        "/*:SequenceNumbers/Segment[@Name='%s']/Field[@Name='%s']",
-                        segment, escape(field)));
-                if (rs.length == 1) {
-                    XmlObject xmlField = rs[0];
-                    XmlCursor cursor = xmlField.newCursor();
-                    sn = Integer.parseInt(cursor.getAttributeText(QName.valueOf("Position")));
-                    cursor.dispose();
-                }
+                sn = SequenceNumbers.getInstance(version).getPosition(segment,
+                        field);
             }
             if (sn == -1 || type == ElementType.COMPONENT
                     || type == ElementType.SUBCOMPONENT) {
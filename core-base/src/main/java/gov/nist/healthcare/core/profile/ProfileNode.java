@@ -0,0 +1,311 @@
+/*
+ * NIST Healthcare Core
+ * ProfileNode.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * This class represents an element (SegGroup, Segment, Field, Component or
+ * SubComponent) of a compiled profile. The attributes are read once when the
+ * profile is compiled; a ProfileNode is immutable and can be shared between
+ * threads.
+ */
+public final class ProfileNode {
+
+    /**
+     * The value of min, max and length when the attribute is not specified
+     */
+    public static final int NOT_SPECIFIED = -1;
+
+    /**
+     * The value of max when the cardinality is unlimited (*)
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private static final ProfileNode[] NO_CHILDREN = new ProfileNode[0];
+
+    private final ElementType type;
+    private final String name;
+    private final Usage usage;
+    private final int min;
+    private final int max;
+    private final int length;
+    private final String datatype;
+    private final String table;
+    private final String constantValue;
+    private final int position;
+    private final ProfileNode parent;
+    private final XmlObject xmlObject;
+    private ProfileNode[] children = NO_CHILDREN;
+    private List<ProfileNode> childList = Collections.emptyList();
+    /* Segment group and segment children by name */
+    private Map<String, ProfileNode[]> namedChildren = Collections.emptyMap();
+
+    /**
+     * Constructor. The children are set by CompiledProfile.compile or
+     * ProfileSnapshot.read.
+     *
+     * @param type
+     *        the element type; null for the static definition
+     * @param name
+     * @param usage
+     * @param min
+     * @param max
+     * @param length
+     * @param datatype
+     * @param table
+     * @param constantValue
+     * @param position
+     *        the position (starting at 1) among the siblings of the same type
+     * @param parent
+     * @param xmlObject
+     *        the element in the profile document (can be null)
+     */
+    ProfileNode(ElementType type, String name, Usage usage, int min, int max,
+            int length, String datatype, String table, String constantValue,
+            int position, ProfileNode parent, XmlObject xmlObject) {
+        this.type = type;
+        this.name = name;
+        this.usage = usage;
+        this.min = min;
+        this.max = max;
+        this.length = length;
+        this.datatype = datatype;
+        this.table = table;
+        this.constantValue = constantValue;
+        this.position = position;
+        this.parent = parent;
+        this.xmlObject = xmlObject;
+    }
+
+    /**
+     * Set the children. It is called only once, while compiling.
+     *
+     * @param children
+     */
+    void setChildren(ProfileNode[] children) {
+        if (children.length > 0) {
+            this.children = children;
+            childList = Collections.unmodifiableList(Arrays.asList(children));
+            Map<String, ProfileNode[]> named = new HashMap<String, ProfileNode[]>();
+            for (ProfileNode child : children) {
+                if (child.type == ElementType.SEGMENT_GROUP
+                        || child.type == ElementType.SEGMENT) {
+                    ProfileNode[] nodes = named.get(child.name);
+                    if (nodes == null) {
+                        nodes = new ProfileNode[] { child };
+                    } else {
+                        ProfileNode[] more = new ProfileNode[nodes.length + 1];
+                        System.arraycopy(nodes, 0, more, 0, nodes.length);
+                        more[nodes.length] = child;
+                        nodes = more;
+                    }
+                    named.put(child.name, nodes);
+                }
+            }
+            if (named.size() > 0) {
+                namedChildren = named;
+            }
+        }
+    }
+
+    /**
+     * Get the element type
+     *
+     * @return the element type; null for the static definition
+     */
+    public ElementType getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Usage getUsage() {
+        return usage;
+    }
+
+    /**
+     * Get the minimum cardinality
+     *
+     * @return the minimum cardinality; NOT_SPECIFIED otherwise
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * Get the maximum cardinality
+     *
+     * @return the maximum cardinality; UNBOUNDED for *; NOT_SPECIFIED
+     *         otherwise
+     */
+    public int getMax() {
+        return max;
+    }
+
+    public boolean isUnbounded() {
+        return max == UNBOUNDED;
+    }
+
+    /**
+     * Get the maximum length
+     *
+     * @return the maximum length; NOT_SPECIFIED otherwise
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public String getDatatype() {
+        return datatype;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getConstantValue() {
+        return constantValue;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public ProfileNode getParent() {
+        return parent;
+    }
+
+    /**
+     * Get the element in the profile document
+     *
+     * @return an XmlObject; null if the profile was read from a snapshot
+     */
+    public XmlObject getXmlObject() {
+        return xmlObject;
+    }
+
+    /**
+     * Return true if the element has no children
+     *
+     * @return true if it is a primitive element
+     */
+    public boolean isPrimitive() {
+        return children.length == 0;
+    }
+
+    public int getChildCount() {
+        return children.length;
+    }
+
+    /**
+     * Get the child at the specified index
+     *
+     * @param idx
+     *        the index (starting at 0)
+     * @return the child
+     */
+    public ProfileNode getChild(int idx) {
+        return children[idx];
+    }
+
+    /**
+     * Get the child at the specified position. It applies to Segment, Field
+     * and Component, where the children are all of the same type.
+     *
+     * @param position
+     *        the position (starting at 1)
+     * @return the child; null otherwise
+     */
+    public ProfileNode getChildAt(int position) {
+        ProfileNode child = null;
+        if (position >= 1 && position <= children.length) {
+            child = children[position - 1];
+        }
+        return child;
+    }
+
+    /**
+     * Get the first segment group or segment child with the specified name
+     * that can hold the instance (see isInstanceAllowed). It applies to the
+     * static definition and the segment groups.
+     *
+     * @param type
+     *        SEGMENT_GROUP or SEGMENT
+     * @param name
+     * @param instanceNumber
+     * @return the child; null otherwise
+     */
+    public ProfileNode getChild(ElementType type, String name,
+            int instanceNumber) {
+        ProfileNode[] nodes = namedChildren.get(name);
+        if (nodes != null) {
+            for (ProfileNode node : nodes) {
+                if (node.type == type && node.isInstanceAllowed(instanceNumber)) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if the element is not excluded (usage X) and if its
+     * maximum cardinality is greater or equal to the instance number.
+     *
+     * @param instanceNumber
+     * @return true if the instance is allowed
+     */
+    public boolean isInstanceAllowed(int instanceNumber) {
+        return usage != Usage.X && instanceNumber <= max;
+    }
+
+    /**
+     * Return true if the element has a segment group or segment child with
+     * the specified name.
+     *
+     * @param type
+     * @param name
+     * @return true if there is such a child
+     */
+    public boolean hasChild(ElementType type, String name) {
+        ProfileNode[] nodes = namedChildren.get(name);
+        if (nodes != null) {
+            for (ProfileNode node : nodes) {
+                if (node.type == type) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the children
+     *
+     * @return an unmodifiable list of children
+     */
+    public List<ProfileNode> getChildren() {
+        return childList;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + name;
+    }
+
+}
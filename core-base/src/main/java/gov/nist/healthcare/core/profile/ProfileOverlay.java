@@ -0,0 +1,315 @@
+/*
+ * NIST Healthcare Core
+ * ProfileOverlay.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.MalformedProfileException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * This class represents a profile derived from a base profile by modifying
+ * some attributes. The modifications are kept in a map next to the base
+ * profile, which is never modified: creating a derived profile does not copy
+ * the profile document.
+ * <p>
+ * An attribute can be overridden on an element (setAttribute) or copied
+ * under another name on all the elements (addAttributeCopy). The attributes
+ * are read with getAttribute and the derived document is produced with save
+ * or toProfile.
+ */
+public class ProfileOverlay {
+
+    private final Profile base;
+    private final Map<XmlObject, Map<String, String>> overrides;
+    /* Copy name -> source name */
+    private final Map<String, String> copies;
+
+    /**
+     * Constructor
+     *
+     * @param base
+     *        the base profile
+     */
+    public ProfileOverlay(Profile base) {
+        this.base = base;
+        overrides = new HashMap<XmlObject, Map<String, String>>();
+        copies = new LinkedHashMap<String, String>();
+    }
+
+    /**
+     * Get the base profile
+     *
+     * @return the base profile
+     */
+    public Profile getBase() {
+        return base;
+    }
+
+    /**
+     * Get the value of an attribute of an element of the base profile
+     * document, taking the modifications into account.
+     *
+     * @param element
+     *        an element of the base profile document
+     * @param name
+     *        the attribute name
+     * @return the value; null if the attribute is not set
+     */
+    public String getAttribute(XmlObject element, String name) {
+        Map<String, String> attributes = overrides.get(element);
+        if (attributes != null && attributes.containsKey(name)) {
+            return attributes.get(name);
+        }
+        String source = copies.get(name);
+        return getBaseAttribute(element, source == null ? name : source);
+    }
+
+    /**
+     * Set the value of an attribute of an element of the base profile
+     * document.
+     *
+     * @param element
+     *        an element of the base profile document
+     * @param name
+     *        the attribute name
+     * @param value
+     *        the value
+     */
+    public void setAttribute(XmlObject element, String name, String value) {
+        Map<String, String> attributes = overrides.get(element);
+        if (attributes == null) {
+            attributes = new LinkedHashMap<String, String>(4);
+            overrides.put(element, attributes);
+        }
+        attributes.put(name, value);
+    }
+
+    /**
+     * Copy an attribute of the base profile under another name, on every
+     * element that has it.
+     *
+     * @param source
+     *        the attribute name in the base profile
+     * @param name
+     *        the name of the copy
+     */
+    public void addAttributeCopy(String source, String name) {
+        copies.put(name, source);
+    }
+
+    /**
+     * Return true if an attribute has been modified or copied.
+     *
+     * @return true if the overlay differs from the base profile
+     */
+    public boolean isModified() {
+        return overrides.size() > 0 || copies.size() > 0;
+    }
+
+    /**
+     * Write the derived profile document as SAX events.
+     *
+     * @param contentHandler
+     * @param lexicalHandler
+     *        can be null
+     * @throws SAXException
+     */
+    public void save(ContentHandler contentHandler,
+            LexicalHandler lexicalHandler) throws SAXException {
+        base.getDocument().save(
+                new OverlayContentHandler(contentHandler, getOverridesByIndex()),
+                lexicalHandler);
+    }
+
+    /**
+     * Create a profile with the modifications applied. The base document is
+     * copied.
+     *
+     * @return a new Profile
+     * @throws MalformedProfileException
+     */
+    public Profile toProfile() throws MalformedProfileException {
+        XmlObject doc = base.getDocument().copy();
+        Map<Integer, Map<String, String>> byIndex = getOverridesByIndex();
+        XmlCursor cursor = doc.newCursor();
+        int index = 0;
+        while (cursor.toNextToken() != XmlCursor.TokenType.ENDDOC) {
+            if (cursor.isStart()) {
+                Map<String, String> attributes = getCopies(cursor);
+                Map<String, String> overridden = byIndex.get(index);
+                if (overridden != null) {
+                    attributes.putAll(overridden);
+                }
+                for (Map.Entry<String, String> e : attributes.entrySet()) {
+                    cursor.setAttributeText(QName.valueOf(e.getKey()),
+                            e.getValue());
+                }
+                index++;
+            }
+        }
+        cursor.dispose();
+        Profile p = new Profile(base.getId(), doc);
+        p.setCardinalityUpperbound(base.getCardinalityUpperbound());
+        return p;
+    }
+
+    /**
+     * Get the attribute copies for the element at the cursor position.
+     *
+     * @param cursor
+     * @return a map of attribute values
+     */
+    private Map<String, String> getCopies(XmlCursor cursor) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> e : copies.entrySet()) {
+            String value = cursor.getAttributeText(QName.valueOf(e.getValue()));
+            if (value != null) {
+                attributes.put(e.getKey(), value);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Get the overrides by element index (document order).
+     *
+     * @return a map of the overrides by element index
+     */
+    private Map<Integer, Map<String, String>> getOverridesByIndex() {
+        Map<Integer, Map<String, String>> byIndex = new HashMap<Integer, Map<String, String>>();
+        if (overrides.size() > 0) {
+            XmlCursor cursor = base.getDocument().newCursor();
+            int index = 0;
+            while (byIndex.size() < overrides.size()
+                    && cursor.toNextToken() != XmlCursor.TokenType.ENDDOC) {
+                if (cursor.isStart()) {
+                    Map<String, String> attributes = overrides.get(cursor.getObject());
+                    if (attributes != null) {
+                        byIndex.put(index, attributes);
+                    }
+                    index++;
+                }
+            }
+            cursor.dispose();
+        }
+        return byIndex;
+    }
+
+    private static String getBaseAttribute(XmlObject element, String name) {
+        XmlCursor cursor = element.newCursor();
+        String value = cursor.getAttributeText(QName.valueOf(name));
+        cursor.dispose();
+        return value;
+    }
+
+    /**
+     * This class applies the modifications to the SAX events of the base
+     * profile document.
+     */
+    private class OverlayContentHandler implements ContentHandler {
+
+        private final ContentHandler handler;
+        private final Map<Integer, Map<String, String>> byIndex;
+        private int index;
+
+        private OverlayContentHandler(ContentHandler handler,
+                Map<Integer, Map<String, String>> byIndex) {
+            this.handler = handler;
+            this.byIndex = byIndex;
+        }
+
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            Map<String, String> overridden = byIndex.get(index++);
+            if (overridden == null && copies.size() == 0) {
+                handler.startElement(uri, localName, qName, atts);
+            } else {
+                AttributesImpl attributes = new AttributesImpl(atts);
+                for (Map.Entry<String, String> e : copies.entrySet()) {
+                    int idx = atts.getIndex("", e.getValue());
+                    if (idx != -1) {
+                        setAttribute(attributes, e.getKey(), atts.getValue(idx));
+                    }
+                }
+                if (overridden != null) {
+                    for (Map.Entry<String, String> e : overridden.entrySet()) {
+                        setAttribute(attributes, e.getKey(), e.getValue());
+                    }
+                }
+                handler.startElement(uri, localName, qName, attributes);
+            }
+        }
+
+        private void setAttribute(AttributesImpl attributes, String name,
+                String value) {
+            int idx = attributes.getIndex("", name);
+            if (idx == -1) {
+                attributes.addAttribute("", name, name, "CDATA", value);
+            } else {
+                attributes.setValue(idx, value);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            handler.endElement(uri, localName, qName);
+        }
+
+        public void characters(char[] ch, int start, int length)
+                throws SAXException {
+            handler.characters(ch, start, length);
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int length)
+                throws SAXException {
+            handler.ignorableWhitespace(ch, start, length);
+        }
+
+        public void processingInstruction(String target, String data)
+                throws SAXException {
+            handler.processingInstruction(target, data);
+        }
+
+        public void setDocumentLocator(Locator locator) {
+            handler.setDocumentLocator(locator);
+        }
+
+        public void skippedEntity(String name) throws SAXException {
+            handler.skippedEntity(name);
+        }
+
+        public void startDocument() throws SAXException {
+            handler.startDocument();
+        }
+
+        public void endDocument() throws SAXException {
+            handler.endDocument();
+        }
+
+        public void startPrefixMapping(String prefix, String uri)
+                throws SAXException {
+            handler.startPrefixMapping(prefix, uri);
+        }
+
+        public void endPrefixMapping(String prefix) throws SAXException {
+            handler.endPrefixMapping(prefix);
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * NIST Healthcare Core
+ * ProfileRegistry.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * This class keeps the profiles used by the validation and the generation
+ * together with the objects derived from them (schema, finite state machine,
+ * ...). A profile is identified by its id and its source: the file and its
+ * modification time when the profile has been loaded from a file, the hash of
+ * the document otherwise (computed once per Profile object). Two Profile
+ * objects with the same id and source share the same entry, and the derived
+ * objects are computed only once. The registry holds a bounded number of
+ * profiles; the least recently used one is evicted when it is full.
+ * <p>
+ * The modifications of a registered profile document are detected: the
+ * profile is registered again and the objects derived from the previous
+ * content are dropped.
+ */
+public final class ProfileRegistry {
+
+    /**
+     * The default number of profiles kept by the registry
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * The system property giving the capacity of the shared registry
+     */
+    public static final String CAPACITY_PROPERTY = "gov.nist.healthcare.core.profile.registryCapacity";
+
+    private static final ProfileRegistry INSTANCE = new ProfileRegistry(
+            getDefaultCapacity());
+
+    private volatile int capacity;
+    /* Entries by key in access order */
+    private final LinkedHashMap<String, Entry> entries;
+    /* Registrations by Profile object */
+    private final Map<Profile, Registration> profiles;
+
+    /**
+     * Get the registry shared by the validation and the generation. Its
+     * capacity is given by the system property CAPACITY_PROPERTY,
+     * DEFAULT_CAPACITY if not set; it can be changed with setCapacity.
+     *
+     * @return the shared registry
+     */
+    public static ProfileRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity
+     *        the maximum number of profiles kept by the registry
+     */
+    public ProfileRegistry(int capacity) {
+        checkCapacity(capacity);
+        this.capacity = capacity;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean remove = size() > ProfileRegistry.this.capacity;
+                if (remove) {
+                    removeProfiles(eldest.getValue());
+                }
+                return remove;
+            }
+        };
+        profiles = new WeakHashMap<Profile, Registration>();
+    }
+
+    /**
+     * Register a profile. If a profile with the same id and the same source
+     * is already registered, this profile is returned so that the derived
+     * objects can be shared.
+     *
+     * @param profile
+     * @return the registered profile
+     */
+    public Profile register(Profile profile) {
+        return getEntry(profile).profile;
+    }
+
+    /**
+     * Get the registered profile with the same id and the same source as a
+     * profile.
+     *
+     * @param profile
+     * @return the registered profile; null if it is not registered
+     */
+    public Profile getProfile(Profile profile) {
+        String key = getKey(profile);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            return entry == null || !isRegistered(entry) ? null
+                    : entry.profile;
+        }
+    }
+
+    /**
+     * Look for the registered profiles for a message. A null parameter
+     * matches any value.
+     *
+     * @param hl7Version
+     * @param messageType
+     * @param messageEvent
+     * @param messageStructureID
+     * @return a list of profiles, the most recently used first
+     */
+    public synchronized List<Profile> lookup(String hl7Version,
+            String messageType, String messageEvent, String messageStructureID) {
+        List<Profile> result = new ArrayList<Profile>();
+        List<Entry> modified = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            CompiledProfile cp = entry.compiledProfile;
+            if (entry.stamp.hasChanged()) {
+                modified.add(entry);
+            } else if (matches(hl7Version, cp.getHl7Version())
+                    && matches(messageType, cp.getMessageType())
+                    && matches(messageEvent, cp.getMessageEvent())
+                    && matches(messageStructureID,
+                            cp.getMessageStructureID())) {
+                result.add(0, entry.profile);
+            }
+        }
+        for (Entry entry : modified) {
+            entries.remove(entry.key);
+            removeProfiles(entry);
+        }
+        return result;
+    }
+    /**
+     * Get an object derived from a profile. It is created by the factory on
+     * the first call for the profile (or a profile with the same content)
+     * and cached afterwards. The profile is registered if needed.
+     *
+     * @param <T>
+     * @param profile
+     * @param factory
+     * @return the derived object
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getArtifact(Profile profile, ProfileArtifactFactory<T> factory) {
+        Entry entry = getEntry(profile);
+        synchronized (entry) {
+            Object artifact = entry.artifacts.get(factory.getName());
+            if (artifact == null) {
+                artifact = factory.create(entry.profile);
+                entry.artifacts.put(factory.getName(), artifact);
+            }
+            return (T) artifact;
+        }
+    }
+
+    /**
+     * Remove a profile and its derived objects from the registry.
+     *
+     * @param profile
+     */
+    public synchronized void remove(Profile profile) {
+        Registration registration = profiles.get(profile);
+        if (registration != null) {
+            Entry entry = registration.entry;
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+            removeProfiles(entry);
+        }
+    }
+
+    /**
+     * Remove all the profiles from the registry.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        profiles.clear();
+    }
+
+    /**
+     * Get the number of registered profiles.
+     *
+     * @return the number of profiles
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of profiles kept by the registry. The least
+     * recently used profiles are removed if there are too many.
+     *
+     * @param capacity
+     */
+    public synchronized void setCapacity(int capacity) {
+        checkCapacity(capacity);
+        this.capacity = capacity;
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > capacity) {
+            removeProfiles(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Compute the hash of the content of a profile.
+     *
+     * @param profile
+     * @return the hash as an hexadecimal String
+     */
+    public static String getContentHash(Profile profile) {
+        return getContentHash(profile.getDocument());
+    }
+
+    /**
+     * Compute the hash of the content of a profile document.
+     *
+     * @param document
+     * @return the hash as an hexadecimal String
+     */
+    public static String getContentHash(XmlObject document) {
+        MessageDigest md = newDigest();
+        try {
+            DigestOutputStream out = new DigestOutputStream(
+                    new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    }, md);
+            document.save(out);
+            out.close();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage());
+        }
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Create the message digest used for the content hashes.
+     *
+     * @return a SHA-1 message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae.getMessage());
+        }
+    }
+
+    static String toHexString(byte[] digest) {
+        StringBuffer sb = new StringBuffer();
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the entry of a profile, register it if needed.
+     *
+     * @param profile
+     * @return the entry
+     */
+    private Entry getEntry(Profile profile) {
+        synchronized (this) {
+            Registration registration = profiles.get(profile);
+            if (registration != null && !registration.stamp.hasChanged()
+                    && isRegistered(registration.entry)) {
+                return registration.entry;
+            }
+        }
+        // Compute the key outside of the lock, the stamp is taken first to
+        // detect a modification made meanwhile
+        XmlCursor.ChangeStamp stamp = profile.newChangeStamp();
+        String key = getKey(profile);
+        // Only the metadata of the compiled profile is used, the one of a
+        // snapshot is enough
+        CompiledProfile cp = profile.getCompiledProfile(false);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || !isRegistered(entry)) {
+                entry = new Entry(key, profile, cp, stamp);
+                entries.put(key, entry);
+            }
+            profiles.put(profile, new Registration(entry, stamp));
+            return entry;
+        }
+    }
+
+    /**
+     * Check that an entry is still registered. An entry whose profile has
+     * been modified since its registration is removed.
+     *
+     * @param entry
+     * @return true if the entry is registered; false otherwise
+     */
+    private boolean isRegistered(Entry entry) {
+        if (entries.get(entry.key) != entry) {
+            return false;
+        }
+        if (entry.stamp.hasChanged()) {
+            entries.remove(entry.key);
+            removeProfiles(entry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the profiles associated with an entry.
+     *
+     * @param entry
+     */
+    private void removeProfiles(Entry entry) {
+        Iterator<Registration> it = profiles.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().entry == entry) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String getKey(Profile profile) {
+        String id = profile.getId();
+        return (id == null ? "" : id) + "#" + profile.getSourceKey();
+    }
+
+    private static void checkCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "The capacity of the registry has to be a positive number");
+        }
+    }
+
+    private static int getDefaultCapacity() {
+        Integer capacity = Integer.getInteger(CAPACITY_PROPERTY);
+        return capacity == null || capacity <= 0 ? DEFAULT_CAPACITY
+                : capacity;
+    }
+
+    private static boolean matches(String expected, String value) {
+        return expected == null || expected.equals(value);
+    }
+
+    /**
+     * A registered profile and its derived objects.
+     */
+    private static final class Entry {
+
+        private final String key;
+        private final Profile profile;
+        private final CompiledProfile compiledProfile;
+        private final XmlCursor.ChangeStamp stamp;
+        private final Map<String, Object> artifacts;
+
+        private Entry(String key, Profile profile,
+                CompiledProfile compiledProfile, XmlCursor.ChangeStamp stamp) {
+            this.key = key;
+            this.profile = profile;
+            this.compiledProfile = compiledProfile;
+            this.stamp = stamp;
+            artifacts = new HashMap<String, Object>();
+        }
+    }
+
+    /**
+     * The entry of a Profile object and the state of its document when it
+     * has been registered.
+     */
+    private static final class Registration {
+
+        private final Entry entry;
+        private final XmlCursor.ChangeStamp stamp;
+
+        private Registration(Entry entry, XmlCursor.ChangeStamp stamp) {
+            this.entry = entry;
+            this.stamp = stamp;
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * NIST Healthcare Core
+ * ProfileSnapshot.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import gov.nist.healthcare.core.MalformedProfileException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * This class reads and writes compiled profiles in a binary format, so that
+ * a service can load its profiles without parsing the profile documents. The
+ * profile document remains the reference: a snapshot records the checksum of
+ * the document it was created from and it is ignored when the document has
+ * changed.
+ * <p>
+ * A Profile loaded from a snapshot (see load) answers the metadata and the
+ * compiled profile requests from the snapshot; its document is parsed on the
+ * first call which needs it (getDocument, getCompiledProfile()).
+ * <p>
+ * The snapshot is made of a header, a string table and a node table. The
+ * nodes are fixed size records in document order; each record refers to its
+ * strings by index and to its parent by node index. A CRC32 of the whole
+ * content ends the file. The nodes of a compiled profile read from a snapshot
+ * have no XmlObject (see ProfileNode.getXmlObject).
+ */
+public final class ProfileSnapshot {
+
+    /* "NHCP" */
+    private static final int MAGIC = 0x4E484350;
+    /**
+     * The extension of the snapshot files
+     */
+    public static final String EXTENSION = ".snapshot";
+    /**
+     * The version of the format. It has to be incremented when the format,
+     * the Usage or the ElementType enums change.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int NULL = -1;
+    private static final ElementType[] TYPES = ElementType.values();
+    private static final Usage[] USAGES = Usage.values();
+
+    private ProfileSnapshot() {
+    }
+
+    /**
+     * Create a profile from a profile document and its snapshot. The
+     * snapshot is used if it was created from the same document: the
+     * document is not parsed until it is needed. Otherwise the document is
+     * loaded and compiled, and the snapshot is written again.
+     *
+     * @param source
+     *        the profile document
+     * @param snapshot
+     *        the snapshot file
+     * @return the profile
+     * @throws MalformedProfileException
+     */
+    public static Profile load(File source, File snapshot)
+            throws MalformedProfileException {
+        String checksum = null;
+        try {
+            checksum = getChecksum(source);
+            CompiledProfile cp = read(snapshot, checksum);
+            if (cp != null) {
+                return new Profile(source, cp);
+            }
+        } catch (IOException ioe) {
+            throw new MalformedProfileException(ioe.getClass() + " "
+                    + ioe.getMessage());
+        }
+        Profile profile = new Profile(source);
+        try {
+            write(profile.getCompiledProfile(), checksum, snapshot);
+        } catch (IOException ioe) {
+            // The snapshot is optional
+        }
+        return profile;
+    }
+
+    /**
+     * Compute the checksum of a profile document.
+     *
+     * @param source
+     *        the profile document
+     * @return the checksum as an hexadecimal String
+     * @throws IOException
+     */
+    public static String getChecksum(File source) throws IOException {
+        MessageDigest md = ProfileRegistry.newDigest();
+        InputStream is = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[8192];
+            int read = 0;
+            while ((read = is.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return ProfileRegistry.toHexString(md.digest());
+    }
+
+    /**
+     * Write a compiled profile. The file is written under a temporary name
+     * first so that a partial snapshot is never read.
+     *
+     * @param cp
+     *        the compiled profile
+     * @param checksum
+     *        the checksum of the profile document
+     * @param snapshot
+     *        the snapshot file
+     * @throws IOException
+     */
+    public static void write(CompiledProfile cp, String checksum,
+            File snapshot) throws IOException {
+        List<ProfileNode> nodes = new ArrayList<ProfileNode>();
+        addNodes(cp.getRoot(), nodes);
+        Map<ProfileNode, Integer> indexes = new HashMap<ProfileNode, Integer>();
+        List<String> strings = new ArrayList<String>();
+        Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(checksum);
+        out.writeInt(getStringIndex(cp.getHl7Version(), strings, stringIndexes));
+        out.writeInt(getStringIndex(cp.getMessageType(), strings, stringIndexes));
+        out.writeInt(getStringIndex(cp.getMessageEvent(), strings,
+                stringIndexes));
+        out.writeInt(getStringIndex(cp.getMessageStructureID(), strings,
+                stringIndexes));
+        // The node table is built first to fill the string table
+        ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+        DataOutputStream nodeOut = new DataOutputStream(nodeBytes);
+        for (int i = 0; i < nodes.size(); i++) {
+            ProfileNode node = nodes.get(i);
+            indexes.put(node, i);
+            nodeOut.writeByte(node.getType() == null ? NULL
+                    : node.getType().ordinal());
+            nodeOut.writeByte(node.getUsage() == null ? NULL
+                    : node.getUsage().ordinal());
+            nodeOut.writeInt(getStringIndex(node.getName(), strings,
+                    stringIndexes));
+            nodeOut.writeInt(node.getMin());
+            nodeOut.writeInt(node.getMax());
+            nodeOut.writeInt(node.getLength());
+            nodeOut.writeInt(getStringIndex(node.getDatatype(), strings,
+                    stringIndexes));
+            nodeOut.writeInt(getStringIndex(node.getTable(), strings,
+                    stringIndexes));
+            nodeOut.writeInt(getStringIndex(node.getConstantValue(), strings,
+                    stringIndexes));
+            nodeOut.writeInt(node.getPosition());
+            nodeOut.writeInt(node.getParent() == null ? NULL
+                    : indexes.get(node.getParent()));
+        }
+        nodeOut.close();
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+        out.writeInt(nodes.size());
+        nodeBytes.writeTo(out);
+        out.close();
+        byte[] content = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        File tmp = File.createTempFile("profile", ".tmp",
+                snapshot.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream fileOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                fileOut.write(content);
+                fileOut.writeInt((int) crc.getValue());
+            } finally {
+                fileOut.close();
+            }
+            if (snapshot.exists() && !snapshot.delete()
+                    || !tmp.renameTo(snapshot)) {
+                throw new IOException("Can't write the snapshot " + snapshot);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Read a compiled profile. The file is memory-mapped.
+     *
+     * @param snapshot
+     *        the snapshot file
+     * @param checksum
+     *        the checksum of the profile document; null to skip the check
+     * @return the compiled profile; null if the snapshot does not exist, is
+     *         corrupted, has another format version or was created from
+     *         another document
+     * @throws IOException
+     */
+    public static CompiledProfile read(File snapshot, String checksum)
+            throws IOException {
+        if (!snapshot.isFile() || snapshot.length() < 12) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || !isValid(buffer)) {
+                return null;
+            }
+            buffer.position(8);
+            String snapshotChecksum = readUTF(buffer);
+            if (checksum != null && !checksum.equals(snapshotChecksum)) {
+                return null;
+            }
+            int hl7Version = buffer.getInt();
+            int messageType = buffer.getInt();
+            int messageEvent = buffer.getInt();
+            int messageStructureID = buffer.getInt();
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] b = new byte[buffer.getInt()];
+                buffer.get(b);
+                strings[i] = new String(b, "UTF-8").intern();
+            }
+            ProfileNode[] nodes = new ProfileNode[buffer.getInt()];
+            List<List<ProfileNode>> children = new ArrayList<List<ProfileNode>>(
+                    nodes.length);
+            for (int i = 0; i < nodes.length; i++) {
+                int type = buffer.get();
+                int usage = buffer.get();
+                String name = getString(strings, buffer.getInt());
+                int min = buffer.getInt();
+                int max = buffer.getInt();
+                int length = buffer.getInt();
+                String datatype = getString(strings, buffer.getInt());
+                String table = getString(strings, buffer.getInt());
+                String constantValue = getString(strings, buffer.getInt());
+                int position = buffer.getInt();
+                int parent = buffer.getInt();
+                nodes[i] = new ProfileNode(type == NULL ? null : TYPES[type],
+                        name, usage == NULL ? null : USAGES[usage], min, max,
+                        length, datatype, table, constantValue, position,
+                        parent == NULL ? null : nodes[parent], null);
+                children.add(new ArrayList<ProfileNode>());
+                if (parent != NULL) {
+                    children.get(parent).add(nodes[i]);
+                }
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                List<ProfileNode> c = children.get(i);
+                nodes[i].setChildren(c.toArray(new ProfileNode[c.size()]));
+            }
+            Map<XmlObject, ProfileNode> noNodes = Collections.emptyMap();
+            return new CompiledProfile(nodes[0], noNodes, getString(strings,
+                    hl7Version), getString(strings, messageType), getString(
+                    strings, messageEvent), getString(strings,
+                    messageStructureID));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Check the CRC32 at the end of the snapshot.
+     *
+     * @param buffer
+     * @return true if the content matches the CRC32
+     */
+    private static boolean isValid(ByteBuffer buffer) {
+        int end = buffer.limit() - 4;
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        buffer.position(0);
+        while (buffer.position() < end) {
+            int len = Math.min(chunk.length, end - buffer.position());
+            buffer.get(chunk, 0, len);
+            crc.update(chunk, 0, len);
+        }
+        return buffer.getInt() == (int) crc.getValue();
+    }
+
+    /**
+     * Read a String written by DataOutputStream.writeUTF. The checksum is
+     * ASCII, so the modified UTF-8 encoding does not matter.
+     *
+     * @param buffer
+     * @return the String
+     * @throws IOException
+     */
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        byte[] b = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static void addNodes(ProfileNode node, List<ProfileNode> nodes) {
+        nodes.add(node);
+        for (ProfileNode child : node.getChildren()) {
+            addNodes(child, nodes);
+        }
+    }
+
+    private static int getStringIndex(String s, List<String> strings,
+            Map<String, Integer> stringIndexes) {
+        if (s == null) {
+            return NULL;
+        }
+        Integer idx = stringIndexes.get(s);
+        if (idx == null) {
+            idx = strings.size();
+            strings.add(s);
+            stringIndexes.put(s, idx);
+        }
+        return idx;
+    }
+
+    private static String getString(String[] strings, int idx) {
+        return idx == NULL ? null : strings[idx];
+    }
+
+}
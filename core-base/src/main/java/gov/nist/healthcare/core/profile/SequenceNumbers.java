@@ -0,0 +1,176 @@
+/*
+ * NIST Healthcare Core
+ * SequenceNumbers.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+import gov.nist.healthcare.core.Constants;
+import gov.nist.healthcare.generation.message.SequenceNumbersDocument;
+import gov.nist.healthcare.generation.message.SequenceNumbersDocument.SequenceNumbers.Segment;
+import gov.nist.healthcare.generation.message.SequenceNumbersDocument.SequenceNumbers.Segment.Field;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.xmlbeans.XmlException;
+
+/**
+ * This class gives the position of the fields of the HL7 V2 segments from the
+ * sequence numbers file of a version. The file is read once per version, the
+ * instances are immutable and shared.
+ */
+public final class SequenceNumbers {
+
+    private static final Map<String, SequenceNumbers> INSTANCES = new ConcurrentHashMap<String, SequenceNumbers>();
+
+    private static final Integer AMBIGUOUS = -1;
+
+    /*
+     * Segment name -> field name -> position; AMBIGUOUS if several fields of
+     * the segment have the name
+     */
+    private final Map<String, Map<String, Integer>> positions;
+    /* Segment name -> field name -> position of the first field */
+    private final Map<String, Map<String, Integer>> firstPositions;
+
+    private SequenceNumbers(Map<String, Map<String, Integer>> positions,
+            Map<String, Map<String, Integer>> firstPositions) {
+        this.positions = positions;
+        this.firstPositions = firstPositions;
+    }
+
+    /**
+     * Get the sequence numbers for a version.
+     *
+     * @param version
+     *        the HL7 version
+     * @return the sequence numbers
+     * @throws XmlException
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *         if the version is not supported
+     */
+    public static SequenceNumbers getInstance(String version)
+            throws XmlException, IOException {
+        String resource = Constants.getSequenceNumbers(version);
+        SequenceNumbers sequenceNumbers = INSTANCES.get(resource);
+        if (sequenceNumbers == null) {
+            // Loading it twice is harmless, both instances are equal
+            sequenceNumbers = load(resource);
+            INSTANCES.put(resource, sequenceNumbers);
+        }
+        return sequenceNumbers;
+    }
+
+    /**
+     * Load a sequence numbers file.
+     *
+     * @param resource
+     * @return the sequence numbers
+     * @throws XmlException
+     * @throws IOException
+     */
+    private static SequenceNumbers load(String resource) throws XmlException,
+            IOException {
+        InputStream is = SequenceNumbers.class.getResourceAsStream(resource);
+        if (is == null) {
+            throw new IOException("Can't find the resource " + resource);
+        }
+        SequenceNumbersDocument doc = null;
+        try {
+            doc = SequenceNumbersDocument.Factory.parse(is);
+        } finally {
+            is.close();
+        }
+        Map<String, Map<String, Integer>> positions = new HashMap<String, Map<String, Integer>>();
+        Map<String, Map<String, Integer>> firstPositions = new HashMap<String, Map<String, Integer>>();
+        for (Segment segment : doc.getSequenceNumbers().getSegmentList()) {
+            Map<String, Integer> fields = positions.get(segment.getName());
+            if (fields == null) {
+                fields = new HashMap<String, Integer>();
+                positions.put(segment.getName(), fields);
+            }
+            Map<String, Integer> firstFields = null;
+            if (!firstPositions.containsKey(segment.getName())) {
+                firstFields = new HashMap<String, Integer>();
+                firstPositions.put(segment.getName(),
+                        Collections.unmodifiableMap(firstFields));
+            }
+            for (Field field : segment.getFieldList()) {
+                if (fields.containsKey(field.getName())) {
+                    fields.put(field.getName(), AMBIGUOUS);
+                } else {
+                    fields.put(field.getName(), field.getPosition());
+                }
+                if (firstFields != null
+                        && !firstFields.containsKey(field.getName())) {
+                    firstFields.put(field.getName(), field.getPosition());
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Integer>> entry : positions.entrySet()) {
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+        return new SequenceNumbers(Collections.unmodifiableMap(positions),
+                Collections.unmodifiableMap(firstPositions));
+    }
+
+    /**
+     * Return true if the segment is defined.
+     *
+     * @param segment
+     *        the segment name
+     * @return true if the segment is defined
+     */
+    public boolean hasSegment(String segment) {
+        return positions.containsKey(segment);
+    }
+
+    /**
+     * Get the position of a field.
+     *
+     * @param segment
+     *        the segment name
+     * @param field
+     *        the field name
+     * @return the position; -1 if the field is not defined or if several
+     *         fields of the segment have this name
+     */
+    public int getPosition(String segment, String field) {
+        return getPosition(positions, segment, field);
+    }
+
+    /**
+     * Get the position of the first field with this name in the first
+     * definition of the segment.
+     *
+     * @param segment
+     *        the segment name
+     * @param field
+     *        the field name
+     * @return the position; -1 if the field is not defined
+     */
+    public int getFirstPosition(String segment, String field) {
+        return getPosition(firstPositions, segment, field);
+    }
+
+    private static int getPosition(Map<String, Map<String, Integer>> map,
+            String segment, String field) {
+        int position = -1;
+        Map<String, Integer> fields = map.get(segment);
+        if (fields != null) {
+            Integer p = fields.get(field);
+            if (p != null) {
+                position = p;
+            }
+        }
+        return position;
+    }
+
+}
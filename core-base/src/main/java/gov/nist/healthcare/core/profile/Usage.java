@@ -0,0 +1,37 @@
+/*
+ * NIST Healthcare Core
+ * Usage.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.profile;
+
+/**
+ * This enum represents the usage of an element in a profile.
+ */
+public enum Usage {
+
+    R, RE, O, C, CE, X, B, W;
+
+    /**
+     * Get the Usage for the value of a Usage attribute.
+     *
+     * @param usage
+     *        the attribute value
+     * @return the Usage; null if the value is null or unknown
+     */
+    public static Usage fromString(String usage) {
+        Usage u = null;
+        if (usage != null) {
+            try {
+                u = valueOf(usage.trim());
+            } catch (IllegalArgumentException iae) {
+                u = null;
+            }
+        }
+        return u;
+    }
+
+}
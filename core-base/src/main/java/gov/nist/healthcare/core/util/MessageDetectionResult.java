@@ -0,0 +1,83 @@
+/*
+ * NIST Healthcare Core
+ * MessageDetectionResult.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.util;
+
+import gov.nist.healthcare.core.Constants.MessageEncoding;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+
+/**
+ * This class holds the result of MessageDetectionUtils.detect for a stream. It
+ * keeps the bytes already read so that the message can be parsed without
+ * reading the source again.
+ */
+public class MessageDetectionResult {
+
+    private final MessageEncoding encoding;
+    private final Charset charset;
+    private final byte[] prefix;
+    private final int prefixLength;
+    private final InputStream remaining;
+
+    /**
+     * Constructor.
+     *
+     * @param encoding
+     *        the detected encoding (can be null)
+     * @param charset
+     *        the detected charset (can be null)
+     * @param prefix
+     *        the bytes already read
+     * @param prefixLength
+     *        the number of bytes already read
+     * @param remaining
+     *        the stream positioned after the bytes already read
+     */
+    MessageDetectionResult(MessageEncoding encoding, Charset charset,
+            byte[] prefix, int prefixLength, InputStream remaining) {
+        this.encoding = encoding;
+        this.charset = charset;
+        this.prefix = prefix;
+        this.prefixLength = prefixLength;
+        this.remaining = remaining;
+    }
+
+    /**
+     * Get the encoding of the message.
+     *
+     * @return the encoding; null if it can't be detected
+     */
+    public MessageEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Get the charset given by the byte order mark or the XML declaration.
+     *
+     * @return the charset; null if it is not specified
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Get a stream containing the whole message: the bytes read during the
+     * detection followed by the rest of the source stream. It should be
+     * called only once.
+     *
+     * @return the message stream
+     */
+    public InputStream getInputStream() {
+        return new SequenceInputStream(new ByteArrayInputStream(prefix, 0,
+                prefixLength), remaining);
+    }
+
+}
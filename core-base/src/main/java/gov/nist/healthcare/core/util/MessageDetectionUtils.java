@@ -8,34 +8,56 @@
  */
 package gov.nist.healthcare.core.util;
 
+import gov.nist.healthcare.core.Constants.MessageEncoding;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
 
 /**
  * This class contains method about detecting the type of HL7 message.
- * 
+ *
  * @author Sydney Henrard (NIST)
  */
 public final class MessageDetectionUtils {
 
+    /**
+     * The number of leading bytes (or characters) inspected by detect
+     */
+    public static final int DETECTION_LENGTH = 512;
+
+    public static final String V2_XML_NAMESPACE = "urn:hl7-org:v2xml";
+    public static final String V3_NAMESPACE = "urn:hl7-org:v3";
+
+    private static final Pattern ENCODING_PATTERN = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._\\-]+)[\"']");
+    private static final Pattern V3_ROOT_PATTERN = Pattern.compile("[A-Z]{4}_[A-Z]{2}\\d{6}\\w*");
+    private static final Pattern V2_XML_ROOT_PATTERN = Pattern.compile("[A-Z0-9]{3}(_[A-Z0-9]{2,4})?");
+    private static final Pattern NAMESPACE_PATTERN = Pattern.compile("(?:^|\\s)xmlns(?::([^\\s=]+))?\\s*=\\s*([\"'])(.*?)\\2");
+
     private MessageDetectionUtils() {
     }
 
     /**
      * Return true if the message as a String is an ER7 message.
-     * 
+     *
      * @param message
      *        the message as a String
      * @return true if it is an ER7 message
      */
     public static boolean isER7(String message) {
-        String firstSegment = message.substring(0, 3).toUpperCase();
-        return firstSegment.startsWith("MSH");
+        return message != null && message.length() >= 3
+                && message.substring(0, 3).toUpperCase().startsWith("MSH");
     }
 
     /**
-     * Return true if the message as a String is an XML message.
-     * 
+     * Return true if the message as a String is an XML message. This method
+     * checks that the message is well-formed; use detect when only the
+     * encoding is needed.
+     *
      * @param message
      *        the message as a String
      * @return true if it is an XML message
@@ -51,4 +73,248 @@ public final class MessageDetectionUtils {
         return xml;
     }
 
+    /**
+     * Detect the encoding of a message by looking at its first characters. An
+     * ER7 message starts with MSH, FHS or BHS. For an XML message the
+     * namespace of the root element is used, or the name of the root element
+     * when no namespace is declared.
+     *
+     * @param message
+     *        the message
+     * @return the encoding of the message; null if it can't be detected
+     */
+    public static MessageEncoding detect(CharSequence message) {
+        MessageEncoding encoding = null;
+        if (message != null) {
+            int length = Math.min(message.length(), DETECTION_LENGTH);
+            String prefix = message.subSequence(0, length).toString();
+            int start = skipBlanks(prefix, 0);
+            if (start < prefix.length()) {
+                if (prefix.charAt(start) == '<') {
+                    encoding = detectXml(prefix, start);
+                } else if (prefix.length() - start >= 3) {
+                    String header = prefix.substring(start, start + 3).toUpperCase();
+                    if ("MSH".equals(header) || "FHS".equals(header)
+                            || "BHS".equals(header)) {
+                        encoding = MessageEncoding.V2_ER7;
+                    }
+                }
+            }
+        }
+        return encoding;
+    }
+
+    /**
+     * Detect the encoding of a message given as bytes. The byte order mark or
+     * the XML declaration is used to decode the first bytes.
+     *
+     * @param message
+     *        the message
+     * @return the encoding of the message; null if it can't be detected
+     */
+    public static MessageEncoding detect(byte[] message) {
+        MessageEncoding encoding = null;
+        if (message != null) {
+            encoding = detect(decode(message, Math.min(message.length,
+                    DETECTION_LENGTH)));
+        }
+        return encoding;
+    }
+
+    /**
+     * Detect the encoding of a message read from a stream. Only the first
+     * bytes are read; the returned result gives back a stream containing the
+     * whole message so that it can be handed to the parser.
+     *
+     * @param is
+     *        the message stream
+     * @return the detection result
+     * @throws IOException
+     */
+    public static MessageDetectionResult detect(InputStream is)
+            throws IOException {
+        byte[] buffer = new byte[DETECTION_LENGTH];
+        int length = 0;
+        int read = 0;
+        while (length < buffer.length
+                && (read = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        String prefix = decode(buffer, length);
+        return new MessageDetectionResult(detect(prefix), getCharset(buffer,
+                length), buffer, length, is);
+    }
+
+    /**
+     * Get the charset of the message from the byte order mark or the XML
+     * declaration.
+     *
+     * @param message
+     * @param length
+     *        the number of bytes to consider
+     * @return the charset; null if it is not specified
+     */
+    static Charset getCharset(byte[] message, int length) {
+        Charset charset = null;
+        if (length >= 3 && (message[0] & 0xFF) == 0xEF
+                && (message[1] & 0xFF) == 0xBB && (message[2] & 0xFF) == 0xBF) {
+            charset = Charset.forName("UTF-8");
+        } else if (length >= 2
+                && ((message[0] & 0xFF) == 0xFE && (message[1] & 0xFF) == 0xFF || message[0] == 0
+                        && message[1] == '<')) {
+            charset = Charset.forName("UTF-16BE");
+        } else if (length >= 2
+                && ((message[0] & 0xFF) == 0xFF && (message[1] & 0xFF) == 0xFE || message[0] == '<'
+                        && message[1] == 0)) {
+            charset = Charset.forName("UTF-16LE");
+        } else {
+            // ASCII compatible encoding: look at the XML declaration
+            String prefix = Charset.forName("ISO-8859-1").decode(
+                    ByteBuffer.wrap(message, 0, length)).toString();
+            if (prefix.startsWith("<?xml")) {
+                int end = prefix.indexOf("?>");
+                Matcher m = ENCODING_PATTERN.matcher(end == -1 ? prefix
+                        : prefix.substring(0, end));
+                if (m.find() && Charset.isSupported(m.group(1))) {
+                    charset = Charset.forName(m.group(1));
+                }
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * Decode the first bytes of a message. The HL7 markers are ASCII, so an
+     * ASCII compatible charset is enough when there is no byte order mark.
+     *
+     * @param message
+     * @param length
+     * @return the decoded prefix
+     */
+    private static String decode(byte[] message, int length) {
+        Charset charset = getCharset(message, length);
+        if (charset == null || !charset.name().startsWith("UTF-16")) {
+            charset = Charset.forName("ISO-8859-1");
+        }
+        String prefix = charset.decode(
+                ByteBuffer.wrap(message, 0, length)).toString();
+        if (prefix.startsWith("\u00EF\u00BB\u00BF")) {
+            prefix = prefix.substring(3);
+        }
+        return prefix;
+    }
+
+    /**
+     * Skip the byte order mark, the MLLP start block and the white spaces.
+     *
+     * @param s
+     * @param start
+     * @return the index of the first significant character
+     */
+    private static int skipBlanks(String s, int start) {
+        int i = start;
+        while (i < s.length()
+                && (Character.isWhitespace(s.charAt(i))
+                        || s.charAt(i) == '\uFEFF' || s.charAt(i) == '\u000B')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Detect the encoding of an XML message by looking at the root element.
+     *
+     * @param s
+     *        the prefix of the message
+     * @param start
+     *        the index of the first '<'
+     * @return the encoding of the message; null if it can't be detected
+     */
+    private static MessageEncoding detectXml(String s, int start) {
+        MessageEncoding encoding = null;
+        int i = start;
+        // Skip the XML declaration, processing instructions, comments and
+        // document type declaration
+        boolean prolog = true;
+        while (prolog && i < s.length()) {
+            if (s.startsWith("<?", i)) {
+                i = indexAfter(s, "?>", i);
+            } else if (s.startsWith("<!--", i)) {
+                i = indexAfter(s, "-->", i);
+            } else if (s.startsWith("<!", i)) {
+                i = indexAfter(s, ">", i);
+            } else {
+                prolog = false;
+            }
+            if (prolog) {
+                i = skipBlanks(s, i);
+            }
+        }
+        if (i < s.length() && s.charAt(i) == '<') {
+            int end = s.indexOf('>', i);
+            String startTag = end == -1 ? s.substring(i + 1) : s.substring(
+                    i + 1, end);
+            int nameEnd = 0;
+            while (nameEnd < startTag.length()
+                    && !Character.isWhitespace(startTag.charAt(nameEnd))
+                    && startTag.charAt(nameEnd) != '/') {
+                nameEnd++;
+            }
+            String name = startTag.substring(0, nameEnd);
+            String prefix = "";
+            int colon = name.indexOf(':');
+            if (colon != -1) {
+                prefix = name.substring(0, colon);
+                name = name.substring(colon + 1);
+            }
+            String namespace = getNamespace(startTag.substring(nameEnd), prefix);
+            if (V3_NAMESPACE.equals(namespace)) {
+                encoding = MessageEncoding.V3;
+            } else if (V2_XML_NAMESPACE.equals(namespace)) {
+                encoding = MessageEncoding.V2_XML;
+            } else if (namespace == null && end != -1) {
+                if (V3_ROOT_PATTERN.matcher(name).matches()) {
+                    encoding = MessageEncoding.V3;
+                } else if (V2_XML_ROOT_PATTERN.matcher(name).matches()) {
+                    encoding = MessageEncoding.V2_XML;
+                }
+            }
+        }
+        return encoding;
+    }
+
+    /**
+     * Get the namespace bound to the prefix in the attributes of the root
+     * element.
+     *
+     * @param attributes
+     * @param prefix
+     *        the prefix ("" for the default namespace)
+     * @return the namespace; null if it is not declared
+     */
+    private static String getNamespace(String attributes, String prefix) {
+        String namespace = null;
+        Matcher m = NAMESPACE_PATTERN.matcher(attributes);
+        while (namespace == null && m.find()) {
+            String declared = m.group(1) == null ? "" : m.group(1);
+            if (declared.equals(prefix)) {
+                namespace = m.group(3);
+            }
+        }
+        return namespace;
+    }
+
+    /**
+     * Get the index after the token.
+     *
+     * @param s
+     * @param token
+     * @param from
+     * @return the index after the token; the length of s if it is not found
+     */
+    private static int indexAfter(String s, String token, int from) {
+        int idx = s.indexOf(token, from);
+        return idx == -1 ? s.length() : idx + token.length();
+    }
+
 }
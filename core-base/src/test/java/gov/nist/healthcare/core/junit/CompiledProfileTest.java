@@ -0,0 +1,215 @@
+/*
+ * NIST Healthcare Core
+ * CompiledProfileTest.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.junit;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import gov.nist.healthcare.core.message.MessageLocation;
+import gov.nist.healthcare.core.profile.CompiledProfile;
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileNode;
+import gov.nist.healthcare.core.profile.ProfileSnapshot;
+import gov.nist.healthcare.core.profile.Usage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestCase;
+import org.apache.xmlbeans.XmlObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This JUnit tests the CompiledProfile class
+ */
+public class CompiledProfileTest extends TestCase {
+
+    private static Profile profile;
+
+    @Override
+    @BeforeClass
+    public void setUp() {
+        try {
+            profile = new Profile(
+                    getClass().getResourceAsStream("/Profile.xml"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    @AfterClass
+    public void tearDown() {
+        profile = null;
+    }
+
+    @Test
+    public void testCompile() {
+        CompiledProfile cp = profile.getCompiledProfile();
+        assertSame(cp, profile.getCompiledProfile());
+        assertEquals(profile.getMessageStructureID(),
+                cp.getMessageStructureID());
+        ProfileNode msh = cp.getRoot().getChild(0);
+        assertEquals(ElementType.SEGMENT, msh.getType());
+        assertEquals("MSH", msh.getName());
+        assertEquals(Usage.R, msh.getUsage());
+        ProfileNode msh3 = msh.getChildAt(3);
+        assertEquals("Sending Application", msh3.getName());
+        assertEquals(Usage.RE, msh3.getUsage());
+        assertEquals(0, msh3.getMin());
+        assertEquals(1, msh3.getMax());
+        assertEquals(227, msh3.getLength());
+        assertEquals("0361", msh3.getTable());
+        assertEquals(3, msh3.getPosition());
+        ProfileNode sft = cp.getRoot().getChild(1);
+        assertTrue(sft.isUnbounded());
+        ProfileNode component = sft.getChildAt(1).getChildAt(2);
+        assertEquals(ElementType.COMPONENT, component.getType());
+        assertEquals("0204", component.getTable());
+        assertEquals(ProfileNode.NOT_SPECIFIED, component.getMin());
+    }
+
+    @Test
+    public void testGetNode() {
+        CompiledProfile cp = profile.getCompiledProfile();
+        XmlObject[] rs = profile.getDocument().selectPath(
+                "//SegGroup[@Name='PROCEDURE']/Segment[@Name='ROL']/Field[@Name='Role Person']/Component[@Name='Family Name']/SubComponent[@Name='Surname']");
+        assertEquals(1, rs.length);
+        ProfileNode node = cp.getNode(rs[0]);
+        assertEquals(ElementType.SUBCOMPONENT, node.getType());
+        assertEquals("Surname", node.getName());
+        assertTrue(node.isPrimitive());
+        ProfileNode group = node.getParent().getParent().getParent().getParent();
+        assertEquals(ElementType.SEGMENT_GROUP, group.getType());
+        assertEquals("PROCEDURE", group.getName());
+    }
+
+    @Test
+    public void testGetChild() {
+        ProfileNode root = profile.getCompiledProfile().getRoot();
+        assertNotNull(root.getChild(ElementType.SEGMENT, "MSH", 1));
+        assertNull(root.getChild(ElementType.SEGMENT, "MSH", 2));
+        assertNotNull(root.getChild(ElementType.SEGMENT, "SFT", 5));
+        assertNull(root.getChild(ElementType.SEGMENT, "PR1", 1));
+        ProfileNode group = root.getChild(ElementType.SEGMENT_GROUP,
+                "PROCEDURE", 1);
+        assertNotNull(group.getChild(ElementType.SEGMENT, "PR1", 1));
+    }
+
+    @Test
+    public void testLocationInProfile() {
+        assertTrue(new MessageLocation("MSH[1].3[1]").isExistInProfile(profile));
+        assertFalse(new MessageLocation("MSH[1].3[1]").isPrimitive(profile));
+        assertTrue(new MessageLocation("MSH[1].3[1].1").isPrimitive(profile));
+        assertTrue(new MessageLocation("MSH[1].8[1]").isPrimitive(profile));
+        assertFalse(new MessageLocation("MSH[1].3[2]").isExistInProfile(profile));
+        assertFalse(new MessageLocation("MSH[2].3[1]").isExistInProfile(profile));
+        assertTrue(new MessageLocation("SFT[4].1[1]").isExistInProfile(profile));
+        assertFalse(new MessageLocation("PR1[1].1[1]").isExistInProfile(profile));
+    }
+
+    @Test
+    public void testGetNames() {
+        assertEquals(Arrays.asList("PID", "Patient Name", "Family Name",
+                "Surname"), profile.getNames("/PID[1].5[2].1.1"));
+        assertEquals(Arrays.asList("MSH", "Sending Application", null, null),
+                profile.getNames("MSH[1].3[*]"));
+        assertEquals(Arrays.asList("MSH", null, null, null),
+                profile.getNames("MSH[1].99[1]"));
+        assertNull(profile.getNames("ZZZ[1].1[1]"));
+        assertNull(profile.getNames("PID.5"));
+        assertEquals(Arrays.asList(null, null, null, null, "PROCEDURE"),
+                profile.getNames("/.PROCEDURE/ZZZ[1]"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File file = File.createTempFile("profile", ".snapshot");
+        try {
+            ProfileSnapshot.write(profile.getCompiledProfile(), "0123", file);
+            assertNull(ProfileSnapshot.read(file, "3210"));
+            CompiledProfile cp = ProfileSnapshot.read(file, "0123");
+            assertEquals(profile.getMessageStructureID(),
+                    cp.getMessageStructureID());
+            ProfileNode msh3 = cp.getRoot().getChild(ElementType.SEGMENT,
+                    "MSH", 1).getChildAt(3);
+            assertEquals("Sending Application", msh3.getName());
+            assertEquals(Usage.RE, msh3.getUsage());
+            assertEquals(227, msh3.getLength());
+            assertEquals("0361", msh3.getTable());
+            assertNull(msh3.getXmlObject());
+            assertSame(msh3, msh3.getChildAt(1).getParent());
+            assertTrue(cp.getRoot().getChild(1).isUnbounded());
+            ProfileNode group = cp.getRoot().getChild(
+                    ElementType.SEGMENT_GROUP, "PROCEDURE", 1);
+            assertNotNull(group.getChild(ElementType.SEGMENT, "ROL", 1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLoadFromSnapshot() throws Exception {
+        File source = File.createTempFile("profile", ".xml");
+        File snapshot = new File(source.getPath()
+                + ProfileSnapshot.EXTENSION);
+        try {
+            copy("/Profile.xml", source, "");
+            // No snapshot yet, the document is loaded and the snapshot written
+            Profile p = ProfileSnapshot.load(source, snapshot);
+            assertTrue(p.isDocumentLoaded());
+            assertTrue(snapshot.isFile());
+            // The snapshot is used, the document is loaded when needed
+            p = ProfileSnapshot.load(source, snapshot);
+            assertFalse(p.isDocumentLoaded());
+            assertEquals(profile.getMessageStructureID(),
+                    p.getMessageStructureID());
+            assertEquals(profile.getHl7VersionAsString(),
+                    p.getHl7VersionAsString());
+            CompiledProfile cp = p.getCompiledProfile(false);
+            assertNull(cp.getRoot().getChild(0).getXmlObject());
+            assertEquals(Arrays.asList("PID", "Patient Name", "Family Name",
+                    "Surname"), p.getNames("/PID[1].5[2].1.1"));
+            assertTrue(p.isDocumentLoaded());
+            assertNotNull(p.getCompiledProfile().getRoot().getChild(0).getXmlObject());
+            // The document has changed, the snapshot is stale
+            copy("/Profile.xml", source, "<!-- modified -->");
+            p = ProfileSnapshot.load(source, snapshot);
+            assertTrue(p.isDocumentLoaded());
+            assertFalse(ProfileSnapshot.load(source, snapshot).isDocumentLoaded());
+        } finally {
+            source.delete();
+            snapshot.delete();
+        }
+    }
+
+    private void copy(String resource, File file, String suffix)
+            throws Exception {
+        InputStream is = getClass().getResourceAsStream(resource);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read = 0;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+            os.write(suffix.getBytes("UTF-8"));
+        } finally {
+            is.close();
+            os.close();
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompiledProfileTest.class);
+    }
+
+}
@@ -8,10 +8,17 @@
  */
 package gov.nist.healthcare.core.junit;
 
+import gov.nist.healthcare.core.MalformedMessageException;
+import gov.nist.healthcare.core.message.v3.HL7V3Header;
+import gov.nist.healthcare.core.message.v3.HL7V3HeaderSniffer;
 import gov.nist.healthcare.core.message.v3.HL7V3Message;
+import gov.nist.healthcare.core.message.v3.HL7V3MessageId;
+import gov.nist.healthcare.core.message.v3.HL7V3Name;
 import java.io.File;
 import java.util.List;
 import junit.framework.TestCase;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -58,4 +65,51 @@ public class HL7V3Test extends TestCase {
         assertEquals(locations.size(), 21);
     }
 
+    @Test
+    public void testSniffHeader() throws MalformedMessageException {
+        HL7V3Header header = HL7V3HeaderSniffer.sniff(new File(
+                getClass().getResource("/ValidV3Message.xml").getFile()));
+        assertEquals("PRPA_IN201301UV02", header.getRootElementName());
+        assertEquals(message.getInteractionId(), header.getInteractionId());
+        assertEquals(message.getCreationTime(), header.getCreationTime());
+        assertEquals(message.getMessageID(), header.getMessageId());
+        HL7V3Name sending = (HL7V3Name) message.getSending();
+        assertEquals(sending.getApplicationName(),
+                header.getSending().getApplicationName());
+        assertEquals(sending.getFacilityName(),
+                header.getSending().getFacilityName());
+        HL7V3Name receiving = (HL7V3Name) message.getReceiving();
+        assertEquals(receiving.getApplicationName(),
+                header.getReceiving().getApplicationName());
+        assertEquals("1.2.840.114350.1.13.99999.4567",
+                header.getReceiving().getApplicationName());
+        HL7V3MessageId messageId = header.getMessageId();
+        assertEquals("0cc360d6-445e-11dc-a6be-3603d6866807",
+                messageId.getRoot());
+    }
+
+    @Test
+    public void testGetValueAfterReplace() {
+        String xpath = HL7V3Message.V3_NAMESPACE_DECLARATION
+                + HL7V3Message.CREATION_TIME_XPATH;
+        assertEquals("20070803130712", message.getValue(xpath));
+        assertTrue(message.replaceDateTimeOfMessage("20101007120000"));
+        assertEquals("20101007120000", message.getValue(xpath));
+        assertEquals("20101007120000", message.getCreationTime());
+    }
+
+    @Test
+    public void testGetValueAfterDocumentChange() {
+        String xpath = HL7V3Message.V3_NAMESPACE_DECLARATION
+                + HL7V3Message.CREATION_TIME_XPATH;
+        assertEquals("20070803130712", message.getValue(xpath));
+        assertEquals("20070803130712", message.getValues(xpath).get(0));
+        XmlObject[] rs = message.getDocument().selectPath(xpath);
+        XmlCursor cursor = rs[0].newCursor();
+        cursor.setTextValue("20111007120000");
+        cursor.dispose();
+        assertEquals("20111007120000", message.getValue(xpath));
+        assertEquals("20111007120000", message.getValues(xpath).get(0));
+    }
+
 }
@@ -8,6 +8,7 @@
  */
 package gov.nist.healthcare.core.junit;
 
+import gov.nist.healthcare.core.Constants.MessageEncoding;
 import gov.nist.healthcare.core.MalformedMessageException;
 import gov.nist.healthcare.core.message.MessageId;
 import gov.nist.healthcare.core.message.MessageLocation;
@@ -18,7 +19,11 @@ import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.message.v3.HL7V3Message;
 import gov.nist.healthcare.core.message.v3.HL7V3MessageId;
 import gov.nist.healthcare.core.message.v3.HL7V3Name;
+import gov.nist.healthcare.core.util.MessageDetectionUtils;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import junit.framework.TestCase;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -133,6 +138,35 @@ public class MessageTest extends TestCase {
         assertNotNull(xmlv3UTF16);
     }
 
+    @Test
+    public void testDetect() throws IOException {
+        assertEquals(MessageEncoding.V2_ER7,
+                MessageDetectionUtils.detect(er7.getMessageAsString()));
+        assertEquals(MessageEncoding.V2_XML,
+                MessageDetectionUtils.detect(xml.getMessageAsString()));
+        assertEquals(MessageEncoding.V3,
+                MessageDetectionUtils.detect(v3.getMessageAsString()));
+        assertEquals(MessageEncoding.V2_ER7, detectResource("utf8.er7"));
+        assertEquals(MessageEncoding.V2_ER7, detectResource("utf16.er7"));
+        assertEquals(MessageEncoding.V2_XML, detectResource("utf8.xml"));
+        assertEquals(MessageEncoding.V2_XML, detectResource("utf16.xml"));
+        assertEquals(MessageEncoding.V3, detectResource("utf8V3.xml"));
+        assertEquals(MessageEncoding.V3, detectResource("utf16V3.xml"));
+        assertNull(MessageDetectionUtils.detect("MS"));
+        assertNull(MessageDetectionUtils.detect("<root/>"));
+        assertFalse(MessageDetectionUtils.isER7("MS"));
+    }
+
+    private MessageEncoding detectResource(String name) throws IOException {
+        InputStream is = new FileInputStream(new File(
+                MessageTest.class.getResource("/encoding/" + name).getFile()));
+        try {
+            return MessageDetectionUtils.detect(is).getEncoding();
+        } finally {
+            is.close();
+        }
+    }
+
     @Test
     public void testReplaceValue() throws MalformedMessageException {
         Er7Message mergeMessage = new Er7Message(new File(
@@ -11,6 +11,7 @@ package gov.nist.healthcare.core.junit;
 import gov.nist.healthcare.core.Constants.ElementType;
 import gov.nist.healthcare.core.profile.Profile;
 import gov.nist.healthcare.core.profile.ProfileElement;
+import gov.nist.healthcare.core.profile.SequenceNumbers;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -100,6 +101,17 @@ public class ProfileElementTest extends TestCase {
         assertEquals(subcomponent.getSequenceNumber(version), 5);
     }
 
+    @Test
+    public void testSequenceNumbers() throws XmlException, IOException {
+        String version = profile.getHl7VersionAsString();
+        SequenceNumbers sn = SequenceNumbers.getInstance(version);
+        assertSame(sn, SequenceNumbers.getInstance(version));
+        assertTrue(sn.hasSegment("PID"));
+        assertEquals(8, sn.getPosition("PID", "Administrative Sex"));
+        assertEquals(-1, sn.getPosition("PID", "Unknown"));
+        assertEquals(-1, sn.getPosition("ZZZ", "Administrative Sex"));
+    }
+
     @Test
     public void testGetXPath() {
         ProfileElement pe = null;
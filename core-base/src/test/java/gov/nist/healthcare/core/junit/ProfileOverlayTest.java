@@ -0,0 +1,54 @@
+/*
+ * NIST Healthcare Core
+ * ProfileOverlayTest.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.junit;
+
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileOverlay;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestCase;
+import org.apache.xmlbeans.XmlObject;
+import org.junit.Test;
+
+/**
+ * This JUnit tests the ProfileOverlay class
+ */
+public class ProfileOverlayTest extends TestCase {
+
+    private static final String MSH3 = "//Segment[@Name='MSH']/Field[@Name='Sending Application']";
+
+    @Test
+    public void testOverlay() throws Exception {
+        Profile profile = new Profile(
+                getClass().getResourceAsStream("/Profile.xml"));
+        XmlObject msh3 = profile.getDocument().selectPath(MSH3)[0];
+        ProfileOverlay overlay = new ProfileOverlay(profile);
+        assertFalse(overlay.isModified());
+        overlay.addAttributeCopy("Usage", "OriginalUsage");
+        overlay.setAttribute(msh3, "Usage", "R");
+        assertTrue(overlay.isModified());
+        assertEquals("R", overlay.getAttribute(msh3, "Usage"));
+        assertEquals("RE", overlay.getAttribute(msh3, "OriginalUsage"));
+        assertEquals("HD", overlay.getAttribute(msh3, "Datatype"));
+        // The base profile is not modified
+        assertEquals("RE", profile.getValue(MSH3 + "/@Usage"));
+        assertEquals(0, profile.getDocument().selectPath(
+                "//*[@OriginalUsage]").length);
+        // The derived profile has the modifications
+        Profile derived = overlay.toProfile();
+        assertEquals("R", derived.getValue(MSH3 + "/@Usage"));
+        assertEquals("RE", derived.getValue(MSH3 + "/@OriginalUsage"));
+        assertEquals(profile.getDocument().selectPath("//*[@Usage]").length,
+                derived.getDocument().selectPath("//*[@OriginalUsage]").length);
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ProfileOverlayTest.class);
+    }
+
+}
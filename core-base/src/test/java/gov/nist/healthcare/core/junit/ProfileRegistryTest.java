@@ -0,0 +1,115 @@
+/*
+ * NIST Healthcare Core
+ * ProfileRegistryTest.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.junit;
+
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileArtifactFactory;
+import gov.nist.healthcare.core.profile.ProfileRegistry;
+import java.util.List;
+import javax.xml.namespace.QName;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestCase;
+import org.apache.xmlbeans.XmlCursor;
+import org.junit.Test;
+
+/**
+ * This JUnit tests the ProfileRegistry class
+ */
+public class ProfileRegistryTest extends TestCase {
+
+    private static int created;
+
+    private static final ProfileArtifactFactory<String> FACTORY = new ProfileArtifactFactory<String>() {
+        public String getName() {
+            return "test";
+        }
+
+        public String create(Profile profile) {
+            created++;
+            return profile.getMessageStructureID();
+        }
+    };
+
+    private Profile loadProfile(String id) throws Exception {
+        Profile profile = new Profile(
+                getClass().getResourceAsStream("/Profile.xml"));
+        profile.setId(id);
+        return profile;
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        ProfileRegistry registry = new ProfileRegistry(2);
+        Profile p1 = loadProfile("profile");
+        Profile p2 = loadProfile("profile");
+        assertSame(p1, registry.register(p1));
+        assertSame(p1, registry.register(p2));
+        assertEquals(1, registry.size());
+        assertSame(p1, registry.getProfile(p2));
+        created = 0;
+        String artifact = registry.getArtifact(p1, FACTORY);
+        assertSame(artifact, registry.getArtifact(p2, FACTORY));
+        assertEquals(1, created);
+        List<Profile> profiles = registry.lookup(p1.getHl7VersionAsString(),
+                p1.getMessageType(), p1.getMessageEvent(),
+                p1.getMessageStructureID());
+        assertEquals(1, profiles.size());
+        assertSame(p1, profiles.get(0));
+        assertTrue(registry.lookup("0.0", null, null, null).isEmpty());
+        registry.remove(p2);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        ProfileRegistry registry = new ProfileRegistry(1);
+        Profile p1 = loadProfile("profile");
+        Profile p2 = loadProfile("other");
+        registry.register(p1);
+        registry.register(p2);
+        assertEquals(1, registry.size());
+        assertNull(registry.getProfile(p1));
+        assertSame(p2, registry.register(p2));
+        registry.setCapacity(2);
+        registry.register(p1);
+        assertEquals(2, registry.size());
+        registry.setCapacity(1);
+        assertEquals(1, registry.size());
+        assertSame(p1, registry.getProfile(p1));
+    }
+
+    @Test
+    public void testModification() throws Exception {
+        ProfileRegistry registry = new ProfileRegistry(2);
+        Profile p1 = loadProfile("profile");
+        Profile p2 = loadProfile("profile");
+        created = 0;
+        assertEquals("ADT_A01", registry.getArtifact(p1, FACTORY));
+        assertSame(p1, registry.register(p2));
+        // Modify the document without calling invalidateCompiledProfile
+        XmlCursor cursor = p1.getDocument().newCursor();
+        cursor.toFirstChild();
+        cursor.toChild("HL7v2xStaticDef");
+        cursor.setAttributeText(QName.valueOf("MsgStructID"), "ADT_A04");
+        cursor.dispose();
+        assertEquals("ADT_A04", registry.getArtifact(p1, FACTORY));
+        assertEquals(2, created);
+        assertEquals("ADT_A04",
+                p1.getCompiledProfile().getMessageStructureID());
+        // p2 has not been modified, it gets its own entry
+        assertSame(p2, registry.register(p2));
+        assertEquals(2, registry.size());
+        assertNull(registry.getProfile(loadProfile("other")));
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ProfileRegistryTest.class);
+    }
+
+}
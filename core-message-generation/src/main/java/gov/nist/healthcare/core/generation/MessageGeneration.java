@@ -13,6 +13,7 @@ import gov.nist.healthcare.core.encoding.xml2bar.Xml2Bar;
 import gov.nist.healthcare.core.generation.MessageGenerationConstants.GenerationError;
 import gov.nist.healthcare.core.message.v2.HL7V2Message;
 import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileOverlay;
 import gov.nist.healthcare.core.util.XmlBeansUtils;
 import gov.nist.healthcare.generation.DataValueLocationItemGeneration;
 import gov.nist.healthcare.generation.MessageInstanceSpecificValuesGeneration;
@@ -37,9 +38,11 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
+import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import org.apache.xmlbeans.XmlCursor;
@@ -57,7 +60,7 @@ import org.xml.sax.SAXException;
 public class MessageGeneration {
 
     private final SequenceNumberGenerator sng;
-    private Transformer xsltGeneration;
+    private Templates xsltGeneration;
     private MessagePopulation mp;
     private boolean generateTimeOfMessage;
 
@@ -131,9 +134,10 @@ public class MessageGeneration {
             throw new IllegalArgumentException(iae.getMessage());
         }
         List<String> errors = new ArrayList<String>();
-        // Modify the profile
-        profile = (Profile) profile.clone();
-        modifyProfile(profile, context);
+        // Modify the profile. The modifications are kept in an overlay, the
+        // profile is neither copied nor modified.
+        ProfileOverlay overlay = new ProfileOverlay(profile);
+        modifyProfile(overlay, context);
         // Prepare the transformation
         if (xsltGeneration == null) {
             // StreamSource xsltStream = new StreamSource(
@@ -145,18 +149,19 @@ public class MessageGeneration {
             StreamSource xsltStream = new StreamSource(
                     getClass().getResource(
                             MessageGenerationConstants.XSLT_PROFILE_TO_ANNOTATED_MESSAGE).toString());
-            xsltGeneration = TransformerFactory.newInstance().newTransformer(
+            xsltGeneration = TransformerFactory.newInstance().newTemplates(
                     xsltStream);
         }
+        SAXTransformerFactory stf = (SAXTransformerFactory) TransformerFactory.newInstance();
+        TransformerHandler th = stf.newTransformerHandler(xsltGeneration);
 
         // Generate the sequence numbers file
-        xsltGeneration.setParameter("sequencenumbers",
+        th.getTransformer().setParameter("sequencenumbers",
                 sng.getSequenceNumberFile(profile).toURI());
         // Do the transformation to get the annotated message
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        StreamSource src = new StreamSource(
-                profile.getDocument().newInputStream());
-        xsltGeneration.transform(src, new StreamResult(out));
+        th.setResult(new StreamResult(out));
+        overlay.save(th, th);
         AnnotatedMessage annotatedMessage = new AnnotatedMessage(out.toString());
         // Configure the message population object
         mp = new MessagePopulation();
@@ -181,7 +186,7 @@ public class MessageGeneration {
         // mp = new MessagePopulation(primitiveValues, tableValues,
         // tableHL7Values, defaultValues);
         // Populate the message with random data
-        mp.populate(annotatedMessage, profile);
+        mp.populate(annotatedMessage, overlay);
         // Set the message control ID
         mp.setMessageControlId(annotatedMessage, false);
         // Set the message separators
@@ -219,9 +224,7 @@ public class MessageGeneration {
         }
         List<HL7V2Message> messages = new ArrayList<HL7V2Message>();
         messages.add(msg);
-        src.getInputStream().close();
         out.close();
-        src = null;
         out = null;
         return new MessageGenerationResult(messages, errors);
     }
@@ -355,54 +358,106 @@ public class MessageGeneration {
     /**
      * Modify the profile to match the message generation context
      * 
-     * @param profile
-     *        the profile to modify
+     * @param overlay
+     *        the overlay of the profile to modify
      * @param context
      *        the messsage generation context
      */
-    private void modifyProfile(Profile profile,
+    private void modifyProfile(ProfileOverlay overlay,
             HL7V2MessageGenerationContextDefinitionDocument context) {
         // Duplicate the Min and Max cardinality
-        duplicateMinMaxCardinality(profile);
+        duplicateMinMaxCardinality(overlay);
         // Duplicate the Usage
-        duplicateUsage(profile);
+        duplicateUsage(overlay);
         // Modify the Min and Max cardinality based on the context
-        modifyMinMaxCardinality(profile, context);
+        modifyMinMaxCardinality(overlay, context);
         // Pre-Process the profile for the tables
-        preprocessProfileTable(profile);
+        preprocessProfileTable(overlay);
         // All R-element with all child are O, the first one is set to R
-        // XmlObject[] rs1 = profile.getDocument().selectPath(
-        // "//*[@Usage = 'R' and count(child::*[@Usage = 'O' or @Usage='RE']) = count(child::*)]");
-        XmlObject[] rs1 = profile.getDocument().selectPath(
-                "//*[@Usage = 'R' and count(child::*) > 0 and count(child::*[@Usage = 'R']) = 0]");
+        List<XmlObject> elements = getElements(overlay.getBase().getDocument());
+        List<XmlObject> rs1 = new ArrayList<XmlObject>();
+        for (XmlObject xmlObj : elements) {
+            if ("R".equals(overlay.getAttribute(xmlObj, "Usage"))
+                    && hasNoRequiredChild(overlay, xmlObj)) {
+                rs1.add(xmlObj);
+            }
+        }
         for (XmlObject xmlObj : rs1) {
-            XmlCursor cursor = xmlObj.newCursor();
-            // System.out.println(cursor.getAttributeText(QName.valueOf("Name")));
-            boolean child = toNextOptionalChild(cursor);
-            if (child) {
-                cursor.setAttributeText(QName.valueOf("Usage"), "R");
-                if (!"Component".equals(cursor.getName().getLocalPart())
-                        && !"SubComponent".equals(cursor.getName().getLocalPart())) {
-                    cursor.setAttributeText(QName.valueOf("Min"), "1");
+            XmlObject child = getFirstOptionalChild(overlay, xmlObj);
+            if (child != null) {
+                overlay.setAttribute(child, "Usage", "R");
+                String name = child.getDomNode().getLocalName();
+                if (!"Component".equals(name) && !"SubComponent".equals(name)) {
+                    overlay.setAttribute(child, "Min", "1");
                 }
             }
         }
         // All element that are not R are set to X
-        XmlObject[] rs = profile.getDocument().selectPath("//*[@Usage!='R']");
+        List<XmlObject> rs = new ArrayList<XmlObject>();
+        for (XmlObject xmlObj : elements) {
+            String usage = overlay.getAttribute(xmlObj, "Usage");
+            if (usage != null && !"R".equals(usage)) {
+                rs.add(xmlObj);
+            }
+        }
         for (XmlObject xmlObj : rs) {
-            XmlCursor cursor = xmlObj.newCursor();
-            cursor.setAttributeText(QName.valueOf("Usage"), "X");
+            overlay.setAttribute(xmlObj, "Usage", "X");
         }
     }
 
     /**
-     * Move the cursor to the next optional child
+     * List all the elements of a document in document order
      * 
-     * @param cursor
-     * @return true if there is a child; false otherwise
+     * @param doc
+     * @return a list of elements
      */
-    private boolean toNextOptionalChild(XmlCursor cursor) {
-        boolean child = false;
+    private List<XmlObject> getElements(XmlObject doc) {
+        List<XmlObject> elements = new ArrayList<XmlObject>();
+        XmlCursor cursor = doc.newCursor();
+        while (cursor.toNextToken() != XmlCursor.TokenType.ENDDOC) {
+            if (cursor.isStart()) {
+                elements.add(cursor.getObject());
+            }
+        }
+        cursor.dispose();
+        return elements;
+    }
+
+    /**
+     * Return true if the element has children and none of them has a R usage
+     * 
+     * @param overlay
+     * @param element
+     * @return true or false
+     */
+    private boolean hasNoRequiredChild(ProfileOverlay overlay,
+            XmlObject element) {
+        boolean hasChild = false;
+        boolean required = false;
+        XmlCursor cursor = element.newCursor();
+        if (cursor.toFirstChild()) {
+            hasChild = true;
+            do {
+                required = "R".equals(overlay.getAttribute(cursor.getObject(),
+                        "Usage"));
+            } while (!required && cursor.toNextSibling());
+        }
+        cursor.dispose();
+        return hasChild && !required;
+    }
+
+    /**
+     * Get the first child of a Segment, a Field or a Component if it does not
+     * have a X usage
+     * 
+     * @param overlay
+     * @param element
+     * @return the child; null otherwise
+     */
+    private XmlObject getFirstOptionalChild(ProfileOverlay overlay,
+            XmlObject element) {
+        XmlObject child = null;
+        XmlCursor cursor = element.newCursor();
         String childElement = null;
         if ("Segment".equals(cursor.getName().getLocalPart())) {
             childElement = "Field";
@@ -411,55 +466,54 @@ public class MessageGeneration {
         } else if ("Component".equals(cursor.getName().getLocalPart())) {
             childElement = "SubComponent";
         }
-        if (childElement != null) {
-            while (cursor.toChild(childElement)) {
-                if (!"X".equals(cursor.getAttributeText(QName.valueOf("Usage")))) {
-                    child = true;
-                    break;
-                }
+        if (childElement != null && cursor.toChild(childElement)) {
+            if (!"X".equals(overlay.getAttribute(cursor.getObject(), "Usage"))) {
+                child = cursor.getObject();
             }
         }
+        cursor.dispose();
         return child;
     }
 
     /**
      * Modify the Min and Max cardinality based on the context.
      * 
-     * @param profile
+     * @param overlay
      * @param context
      */
-    private void modifyMinMaxCardinality(Profile profile,
+    private void modifyMinMaxCardinality(ProfileOverlay overlay,
             HL7V2MessageGenerationContextDefinitionDocument context) {
         Map<String, Integer> modifications = getProfileModifications(context);
         for (String xpath : modifications.keySet()) {
             // System.out.println(xpath + " " + modifications.get(xpath));
-            XmlObject[] rs = profile.getDocument().selectPath(xpath);
+            XmlObject[] rs = overlay.getBase().getDocument().selectPath(xpath);
             // System.out.println(rs.length);
             if (rs.length == 1) {
                 int instanceNumber = modifications.get(xpath);
-                XmlCursor cursor = rs[0].newCursor();
+                XmlObject element = rs[0];
                 if (instanceNumber > 0) {
-                    int min = Integer.parseInt(cursor.getAttributeText(QName.valueOf("Min")));
-                    String sMax = cursor.getAttributeText(QName.valueOf("Max"));
+                    int min = Integer.parseInt(overlay.getAttribute(element,
+                            "Min"));
+                    String sMax = overlay.getAttribute(element, "Max");
                     if (sMax != null) {
                         int max = "*".equals(sMax) ? 1000
                                 : Integer.parseInt(sMax);
                         if (instanceNumber >= min && instanceNumber <= max) {
-                            cursor.setAttributeText(QName.valueOf("Min"),
+                            overlay.setAttribute(element, "Min",
                                     String.valueOf(instanceNumber));
-                            cursor.setAttributeText(QName.valueOf("Max"),
+                            overlay.setAttribute(element, "Max",
                                     String.valueOf(instanceNumber));
                         } else if (instanceNumber < min) {
-                            cursor.setAttributeText(QName.valueOf("Max"),
+                            overlay.setAttribute(element, "Max",
                                     String.valueOf(min));
                         } else if (instanceNumber > max) {
-                            cursor.setAttributeText(QName.valueOf("Min"),
+                            overlay.setAttribute(element, "Min",
                                     String.valueOf(max));
                         }
                     }
                 }
-                if (!"X".equals(cursor.getAttributeText(QName.valueOf("Usage")))) {
-                    cursor.setAttributeText(QName.valueOf("Usage"), "R");
+                if (!"X".equals(overlay.getAttribute(element, "Usage"))) {
+                    overlay.setAttribute(element, "Usage", "R");
                 }
             }
         }
@@ -468,50 +522,37 @@ public class MessageGeneration {
     /**
      * Duplicate the Min and Max cardinality.
      * 
-     * @param profile
+     * @param overlay
      */
-    private void duplicateMinMaxCardinality(Profile profile) {
-        String xpath = "//.[@Min and @Max]";
-        XmlObject[] rs = profile.getDocument().selectPath(xpath);
-        for (XmlObject element : rs) {
-            XmlCursor cursor = element.newCursor();
-            String min = cursor.getAttributeText(QName.valueOf("Min"));
-            String max = cursor.getAttributeText(QName.valueOf("Max"));
-            cursor.setAttributeText(QName.valueOf("OriginalMin"), min);
-            cursor.setAttributeText(QName.valueOf("OriginalMax"), max);
-            cursor.dispose();
-        }
+    private void duplicateMinMaxCardinality(ProfileOverlay overlay) {
+        overlay.addAttributeCopy("Min", "OriginalMin");
+        overlay.addAttributeCopy("Max", "OriginalMax");
     }
 
     /**
-     * Duplicate the Min and Max cardinality.
+     * Duplicate the Usage.
      * 
-     * @param profile
+     * @param overlay
      */
-    private void duplicateUsage(Profile profile) {
-        String xpath = "//.[@Usage]";
-        XmlObject[] rs = profile.getDocument().selectPath(xpath);
-        for (XmlObject element : rs) {
-            XmlCursor cursor = element.newCursor();
-            String usage = cursor.getAttributeText(QName.valueOf("Usage"));
-            cursor.setAttributeText(QName.valueOf("OriginalUsage"), usage);
-            cursor.dispose();
-        }
+    private void duplicateUsage(ProfileOverlay overlay) {
+        overlay.addAttributeCopy("Usage", "OriginalUsage");
     }
 
     /**
      * Pre-Process the profile to fix the table express at a field level whereas
      * the field is not primitives.
      */
-    private void preprocessProfileTable(Profile profile) {
+    private void preprocessProfileTable(ProfileOverlay overlay) {
         // Look for Field with a CE datatype that has components with no table
         String ceXPath = "//.[@Datatype = 'CE' and @Table and count(child::*[position() = 1 and @Table]) = 0]";
-        XmlObject[] rs = profile.getDocument().selectPath(ceXPath);
+        XmlObject[] rs = overlay.getBase().getDocument().selectPath(ceXPath);
         for (XmlObject ceField : rs) {
             XmlCursor cursor = ceField.newCursor();
             String table = cursor.getAttributeText(QName.valueOf("Table"));
-            cursor.toChild("Component");
-            cursor.setAttributeText(QName.valueOf("Table"), table);
+            if (cursor.toChild("Component")) {
+                overlay.setAttribute(cursor.getObject(), "Table", table);
+            }
+            cursor.dispose();
         }
     }
 
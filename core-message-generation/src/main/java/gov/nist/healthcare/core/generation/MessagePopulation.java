@@ -12,6 +12,7 @@ import gov.nist.healthcare.core.generation.MessageGenerationConstants.Generation
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.profile.Profile;
 import gov.nist.healthcare.core.profile.ProfileElement;
+import gov.nist.healthcare.core.profile.ProfileOverlay;
 import gov.nist.healthcare.data.TableLibraryDocument;
 import gov.nist.healthcare.generation.DataValueLocationItemGeneration;
 import gov.nist.healthcare.generation.MessageInstanceSpecificValuesGeneration;
@@ -349,6 +350,16 @@ public class MessagePopulation {
      * @param aProfile
      */
     public void populate(XmlMessage aMessage, Profile aProfile) {
+        populate(aMessage, new ProfileOverlay(aProfile));
+    }
+
+    /**
+     * Populate a Message using a modified profile
+     * 
+     * @param aMessage
+     * @param anOverlay
+     */
+    public void populate(XmlMessage aMessage, ProfileOverlay anOverlay) {
         // Pattern pattern = Pattern.compile("^(.*):(.*):(.*):(.*):(.*):(.*)$");
         Pattern pattern = Pattern.compile("^(.*):(.*):(.*):(.*):(.*)$");
         XmlCursor cursor = null;
@@ -371,8 +382,8 @@ public class MessagePopulation {
                 ProfileElement pe = new ProfileElement(segmentGroups,
                         match.group(2), match.group(3), match.group(4),
                         match.group(5));
-                pe.setXmlObject(aProfile);
-                String value = populateElement(pe);
+                pe.setXmlObject(anOverlay.getBase());
+                String value = populateElement(pe, anOverlay);
                 cursor.setTextValue(value);
                 cursor.removeAttribute(QName.valueOf("Populate"));
             }
@@ -386,17 +397,21 @@ public class MessagePopulation {
      * Find a value for a profile element
      * 
      * @param aProfileElement
+     * @param anOverlay
+     *        the profile
      */
-    private String populateElement(ProfileElement aProfileElement) {
+    private String populateElement(ProfileElement aProfileElement,
+            ProfileOverlay anOverlay) {
+        XmlObject element = aProfileElement.getXmlObject();
         String value = "";
         int length = 3;
         try {
-            length = Integer.parseInt(aProfileElement.getAttributeValue("Length"));
+            length = Integer.parseInt(anOverlay.getAttribute(element, "Length"));
         } catch (NumberFormatException nfe) {
             length = 3;
         }
-        String table = aProfileElement.getAttributeValue("Table");
-        String datatype = aProfileElement.getAttributeValue("Datatype");
+        String table = anOverlay.getAttribute(element, "Table");
+        String datatype = anOverlay.getAttribute(element, "Datatype");
         boolean foundValue = false;
         if (table == null || table.equals("")) {
             ArrayList<String> alSimpleValue = getSimpleValues(aProfileElement);
@@ -8,12 +8,9 @@
  */
 package gov.nist.healthcare.core.generation;
 
-import gov.nist.healthcare.core.Constants;
 import gov.nist.healthcare.core.profile.Profile;
 import gov.nist.healthcare.core.profile.ProfileElement;
-import gov.nist.healthcare.generation.message.SequenceNumbersDocument;
-import gov.nist.healthcare.generation.message.SequenceNumbersDocument.SequenceNumbers.Segment;
-import gov.nist.healthcare.generation.message.SequenceNumbersDocument.SequenceNumbers.Segment.Field;
+import gov.nist.healthcare.core.profile.SequenceNumbers;
 import gov.nist.healthcare.generation.message.XsltSequenceNumbersDocument;
 import gov.nist.healthcare.generation.message.XsltSequenceNumbersDocument.XsltSequenceNumbers;
 import gov.nist.healthcare.generation.message.XsltSequenceNumbersDocument.XsltSequenceNumbers.FieldElement;
@@ -45,11 +42,9 @@ public class SequenceNumberGenerator {
      */
     public File getSequenceNumberFile(Profile aProfile) throws IOException,
             XmlException {
-        // Load the sequence numbers file for the profile version
-        SequenceNumbersDocument snd = null;
-        snd = SequenceNumbersDocument.Factory.parse(SequenceNumberGenerator.class.getResourceAsStream(Constants.getSequenceNumbers(aProfile.getHl7VersionAsString())));
-        Iterator<Segment> itSegment = null;
-        Iterator<Field> itField = null;
+        // Get the sequence numbers for the profile version
+        String version = aProfile.getHl7VersionAsString();
+        SequenceNumbers sequenceNumbers = SequenceNumbers.getInstance(version);
         HashMap<String, ArrayList<FieldPosition>> h = new HashMap<String, ArrayList<FieldPosition>>();
         // Parse the profile
         XmlObject[] segments = aProfile.getDocument().selectPath(
@@ -63,15 +58,6 @@ public class SequenceNumberGenerator {
                 al = new ArrayList<FieldPosition>();
                 h.put(segName, al);
             }
-            itSegment = snd.getSequenceNumbers().getSegmentList().iterator();
-            boolean endSegment = false;
-            Segment s = null;
-            while (itSegment.hasNext() && !endSegment) {
-                s = itSegment.next();
-                if (s.getName().equals(segName)) {
-                    endSegment = true;
-                }
-            }
             String fieldName = "";
             StringBuffer sb = new StringBuffer();
             sb.delete(0, sb.length());
@@ -80,30 +66,14 @@ public class SequenceNumberGenerator {
             for (int j = 0; j < fields.length; j++) {
                 XmlCursor fieldCur = fields[j].newCursor();
                 fieldName = fieldCur.getAttributeText(QName.valueOf("Name"));
-                // The field was found in the file
-                int seqNum = -1;
-                if (endSegment) {
-                    itField = s.getFieldList().iterator();
-                    boolean endField = false;
-                    Field f = null;
-                    while (itField.hasNext() && !endField) {
-                        f = itField.next();
-                        if (f.getName().equals(fieldName)) {
-                            seqNum = f.getPosition();
-                            endField = true;
-                        }
-                    }
-                    if (seqNum == -1) {
-                        ProfileElement pe = new ProfileElement(null, segName,
-                                fieldName, "", "");
-                        pe.setXmlObject(fieldCur.getObject());
-                        seqNum = pe.getSequenceNumber(aProfile.getHl7VersionAsString());
-                    }
-                } else {
+                int seqNum = sequenceNumbers.getFirstPosition(segName,
+                        fieldName);
+                // The field was not found in the file
+                if (seqNum == -1) {
                     ProfileElement pe = new ProfileElement(null, segName,
                             fieldName, "", "");
                     pe.setXmlObject(fieldCur.getObject());
-                    seqNum = pe.getSequenceNumber(aProfile.getHl7VersionAsString());
+                    seqNum = pe.getSequenceNumber(version);
                 }
                 FieldPosition fp = new FieldPosition(fieldName, seqNum);
                 if (!al.contains(fp)) {
@@ -0,0 +1,94 @@
+/*
+ * NIST Healthcare Core
+ * ValidationMode.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message;
+
+/**
+ * This class tells how much of a message has to be validated. FULL runs all
+ * the checks; FIRST_ERROR stops at the first failure whose result is ERROR;
+ * a budget stops after a number of errors or a duration. A stopped validation
+ * only reports the failures found so far.
+ */
+public final class ValidationMode {
+
+    /**
+     * Run all the checks.
+     */
+    public static final ValidationMode FULL = new ValidationMode(0, 0);
+
+    /**
+     * Stop at the first error.
+     */
+    public static final ValidationMode FIRST_ERROR = new ValidationMode(1, 0);
+
+    private final int maxErrors;
+    private final long maxMillis;
+
+    private ValidationMode(int maxErrors, long maxMillis) {
+        this.maxErrors = maxErrors;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Create a budget mode.
+     *
+     * @param maxErrors
+     *        the number of errors after which the validation stops; 0 for no
+     *        limit
+     * @param maxMillis
+     *        the duration in milliseconds after which the validation stops;
+     *        0 for no limit
+     * @return the validation mode
+     */
+    public static ValidationMode budget(int maxErrors, long maxMillis) {
+        if (maxErrors < 0 || maxMillis < 0) {
+            throw new IllegalArgumentException(
+                    "The budget can't be negative.");
+        }
+        return new ValidationMode(maxErrors, maxMillis);
+    }
+
+    /**
+     * Get the number of errors after which the validation stops.
+     *
+     * @return the number of errors; 0 for no limit
+     */
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * Get the duration after which the validation stops.
+     *
+     * @return the duration in milliseconds; 0 for no limit
+     */
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Return true if all the checks are run.
+     *
+     * @return true for FULL
+     */
+    public boolean isFull() {
+        return maxErrors == 0 && maxMillis == 0;
+    }
+
+    @Override
+    public String toString() {
+        if (isFull()) {
+            return "FULL";
+        }
+        if (maxErrors == 1 && maxMillis == 0) {
+            return "FIRST_ERROR";
+        }
+        return "BUDGET(" + maxErrors + " errors, " + maxMillis + " ms)";
+    }
+
+}
@@ -17,12 +17,16 @@ import gov.nist.healthcare.core.message.v2.HL7V2Message;
 import gov.nist.healthcare.core.message.v2.er7.Er7Message;
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileNode;
 import gov.nist.healthcare.core.validation.message.MessageFailure;
+import gov.nist.healthcare.core.validation.message.ValidationMode;
 import gov.nist.healthcare.core.validation.message.content.MatchFoundResult;
 import gov.nist.healthcare.core.validation.message.content.MessageContentValidation;
 import gov.nist.healthcare.core.validation.message.plugin.ValidationPlugin;
 import gov.nist.healthcare.core.validation.message.util.MessageElementUtil;
+import gov.nist.healthcare.core.validation.message.util.CodeTableStore;
 import gov.nist.healthcare.core.validation.message.util.TableManager;
+import gov.nist.healthcare.core.validation.message.v2.MessageFailureListV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageFailureV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageValidationContextV2;
 import gov.nist.healthcare.data.TableLibraryDocument;
@@ -47,8 +51,10 @@ import gov.nist.healthcare.validation.message.hl7.v2.context.HL7V2MessageValidat
 import gov.nist.healthcare.validation.message.hl7.v2.context.HL7V2MessageValidationContextDefinition.IfThenElse;
 import gov.nist.healthcare.validation.message.hl7.v2.context.MessageInstanceSpecificValuesV2;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import javax.xml.namespace.QName;
 import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlLineNumber;
@@ -56,6 +62,9 @@ import org.apache.xmlbeans.XmlObject;
 
 /**
  * This class validates the message content for a V2 message.
+ * <p>
+ * A validator holds the state of one validation; MessageValidationV2 creates
+ * a new one for each message.
  * 
  * @author Sydney Henrard (NIST)
  */
@@ -63,9 +72,25 @@ public class MessageContentValidationV2 extends MessageContentValidation {
 
     protected TableManager tableManager;
     protected List<MessageFailureV2> messageFailures;
+    private MessageFailureListV2 failureList;
     // protected List<TableLibraryDocument> tables;
     protected HL7V2Message message;
     protected MessageValidationContextV2 context;
+    private List<CodeTableStore> codeTableStores;
+    /* The locations already resolved in the message (path -> values) */
+    private Map<String, List<String>> locationValues;
+    /* The number of instances of the segments already counted */
+    private Map<String, Integer> segmentCounts;
+
+    /**
+     * Set the code table stores used for the tables which are not found in
+     * the table libraries.
+     * 
+     * @param codeTableStores
+     */
+    public void setCodeTableStores(List<CodeTableStore> codeTableStores) {
+        this.codeTableStores = codeTableStores;
+    }
 
     /**
      * Validate the message content.
@@ -83,16 +108,46 @@ public class MessageContentValidationV2 extends MessageContentValidation {
     public List<MessageFailureV2> validate(HL7V2Message message,
             MessageValidationContextV2 context, Profile profile,
             List<TableLibraryDocument> tableLibraryDocuments) {
+        return validate(message, context, profile, tableLibraryDocuments,
+                new MessageFailureListV2(ValidationMode.FULL, context));
+    }
+
+    /**
+     * Validate the message content. The failures are added to the list
+     * provided as a parameter; the validation stops when the list says so
+     * (see ValidationMode). The plugins are not called once the validation is
+     * stopped.
+     * 
+     * @param message
+     *        the message to validate
+     * @param context
+     *        the message validation context
+     * @param profile
+     *        the profile
+     * @param tableLibraryDocuments
+     *        a list of TableLibraryDocument
+     * @param failures
+     *        the list of message failures of the validation
+     * @return the list of message failures
+     */
+    public List<MessageFailureV2> validate(HL7V2Message message,
+            MessageValidationContextV2 context, Profile profile,
+            List<TableLibraryDocument> tableLibraryDocuments,
+            MessageFailureListV2 failures) {
         this.message = message;
         // this.tables = tableLibraryDocuments;
         this.context = context;
         tableManager = new TableManager();
         tableManager.setLibraries(tableLibraryDocuments);
-        messageFailures = new ArrayList<MessageFailureV2>();
+        tableManager.setStores(codeTableStores);
+        failureList = failures;
+        messageFailures = failures;
+        locationValues = new HashMap<String, List<String>>();
+        segmentCounts = new HashMap<String, Integer>();
         MessageInstanceSpecificValuesV2 misv = context.getContext().getHL7V2MessageValidationContextDefinition().getMessageInstanceSpecificValues();
         if (misv != null) {
             Iterator<DataValueLocationItemV2> itDVLI = misv.getDataValueLocationItemList().iterator();
-            while (itDVLI.hasNext()) {
+            while (itDVLI.hasNext() && !isStopped()) {
                 DataValueLocationItemV2 dvli = itDVLI.next();
                 List<MatchFoundResult> results = checkItem(message, dvli,
                         profile);
@@ -116,7 +171,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         List<IfThenElse> conditionals = context.getContext().getHL7V2MessageValidationContextDefinition().getIfThenElseList();
         if (conditionals != null) {
             Iterator<IfThenElse> it = conditionals.iterator();
-            while (it.hasNext()) {
+            while (it.hasNext() && !isStopped()) {
                 IfThenElse condition = it.next();
                 List<IfThenElse> conditionWithMatchingInstanceNumber = new ArrayList<IfThenElse>();
                 if (condition.getMatchingFieldInstanceNumber()) {
@@ -130,6 +185,9 @@ public class MessageContentValidationV2 extends MessageContentValidation {
                     conditionWithMatchingInstanceNumber.add(condition);
                 }
                 for (IfThenElse currentCondition : conditionWithMatchingInstanceNumber) {
+                    if (isStopped()) {
+                        break;
+                    }
                     List<MatchFoundResult> resultsIf = checkItem(message,
                             currentCondition.getIf(), profile);
                     List<MatchFoundResult> resultsThenElse = null;
@@ -171,7 +229,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         List<DatatypeCheck> datatypeChecks = context.getContext().getHL7V2MessageValidationContextDefinition().getDatatypeCheckList();
         if (datatypeChecks != null) {
             Iterator<DatatypeCheck> it = datatypeChecks.iterator();
-            while (it.hasNext()) {
+            while (it.hasNext() && !isStopped()) {
                 DatatypeCheck datatypeCheck = it.next();
                 DatatypeCheckConstants.Enum datatype = datatypeCheck.getDatatype();
                 if (datatype == DatatypeCheckConstants.HD) {
@@ -197,7 +255,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         List<PluginCheckType> pluginChecks = context.getContext().getHL7V2MessageValidationContextDefinition().getPluginCheckList();
         if (pluginChecks != null) {
             Iterator<PluginCheckType> it = pluginChecks.iterator();
-            while (it.hasNext()) {
+            while (it.hasNext() && !isStopped()) {
                 PluginCheckType pluginCheck = it.next();
                 String pluginName = pluginCheck.getName();
                 ValidationPlugin plugin = loadPlugin(pluginName);
@@ -244,6 +302,15 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         return messageFailures;
     }
 
+    /**
+     * Return true if the validation has to stop (see ValidationMode).
+     * 
+     * @return true if the validation has to stop
+     */
+    protected boolean isStopped() {
+        return failureList.isStopped();
+    }
+
     /**
      * Check a HD datatype. The valid combinations are HD.1, HD.2 + HD.3 and
      * HD.1 + HD.2 + HD.3
@@ -889,7 +956,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
             messageLocations.add(new MessageLocation(location));
         } else if (isSegmentAnyInstanceNumber && !isFieldAnyInstanceNumber) {
             // segment any instance number only
-            int segmentCount = message.getSegmentCount(location.getSegment().getName());
+            int segmentCount = getSegmentCount(location.getSegment().getName());
             for (int s = 1; s <= segmentCount; s++) {
                 location.getSegment().setInstanceNumber(s);
                 messageLocations.add(new MessageLocation(location));
@@ -907,7 +974,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
             }
         } else if (isSegmentAnyInstanceNumber && isFieldAnyInstanceNumber) {
             // both segment and field any instance number
-            int segmentCount = message.getSegmentCount(location.getSegment().getName());
+            int segmentCount = getSegmentCount(location.getSegment().getName());
             for (int s = 1; s <= segmentCount; s++) {
                 location.getSegment().setInstanceNumber(s);
                 int fieldCount = message.getFieldCount(
@@ -939,7 +1006,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         List<IfThenElse> conditions = new ArrayList<IfThenElse>();
         DataValueLocationItemV2 conditionIf = condition.getIf();
         // Count segment in the if condition
-        int ifSegmentCount = message.getSegmentCount(conditionIf.getLocation().getSegment().getName());
+        int ifSegmentCount = getSegmentCount(conditionIf.getLocation().getSegment().getName());
         for (int i = 1; i <= ifSegmentCount; i++) {
             IfThenElse actualCondition = IfThenElse.Factory.newInstance();
             actualCondition.set(condition.copy());
@@ -981,7 +1048,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         DataValueLocationItemV2 conditionIf = condition.getIf();
         // Count segment in the if condition
         int loopStart = 1;
-        int ifSegmentCount = message.getSegmentCount(conditionIf.getLocation().getSegment().getName());
+        int ifSegmentCount = getSegmentCount(conditionIf.getLocation().getSegment().getName());
         int loopEnd = ifSegmentCount;
         if (!matchSegment) {
             loopStart = conditionIf.getLocation().getSegment().getInstanceNumber() == 0 ? 1
@@ -1029,6 +1096,40 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         return conditions;
     }
 
+    /**
+     * Get the values of the message at a location. A location is resolved
+     * only once per validation: the assertions, the conditions and the
+     * context values which refer to the same location share the result.
+     * 
+     * @param path
+     *        an EPath (Er7) or an XPath (XML)
+     * @return the values (must not be modified)
+     */
+    private List<String> getValues(String path) {
+        List<String> values = locationValues.get(path);
+        if (values == null) {
+            values = message.getValues(path);
+            locationValues.put(path, values);
+        }
+        return values;
+    }
+
+    /**
+     * Get the number of instances of a segment in the message. It is counted
+     * only once per validation.
+     * 
+     * @param segmentName
+     * @return the number of instances
+     */
+    private int getSegmentCount(String segmentName) {
+        Integer count = segmentCounts.get(segmentName);
+        if (count == null) {
+            count = message.getSegmentCount(segmentName);
+            segmentCounts.put(segmentName, count);
+        }
+        return count;
+    }
+
     /**
      * Get the number of segment from the DataValueLocationItemV2.
      * 
@@ -1053,7 +1154,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
             s = location.getSegment();
         }
         if (s != null) {
-            segmentCount = message.getSegmentCount(s.getName());
+            segmentCount = getSegmentCount(s.getName());
         }
 
         return segmentCount;
@@ -1273,7 +1374,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
             boolean endProcess = false;
             for (int i = 0; i < xpaths.size() && !endProcess; i++) {
                 String xpath = xpaths.get(i);
-                List<String> messageValues = message.getValues(xpath);
+                List<String> messageValues = getValues(xpath);
                 // Validate
                 List<MatchFoundResult> partialResults = null;
                 partialResults = matchFound(checkAll, regexCheck, emptyCheck,
@@ -1318,7 +1419,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
             boolean endProcess = false;
             for (int i = 0; i < epaths.size() && !endProcess; i++) {
                 String epath = epaths.get(i);
-                List<String> messageValues = message.getValues(epath);
+                List<String> messageValues = getValues(epath);
                 // Validate
                 List<MatchFoundResult> partialResults = null;
                 partialResults = matchFound(checkAll, regexCheck, emptyCheck,
@@ -1452,7 +1553,7 @@ public class MessageContentValidationV2 extends MessageContentValidation {
                 paths = getXPaths(location, segmentCount);
             }
             for (String path : paths) {
-                List<String> values = message.getValues(path);
+                List<String> values = getValues(path);
                 for (String value : values) {
                     PlainText pl = PlainText.Factory.newInstance();
                     pl.setStringValue(value);
@@ -1594,123 +1695,51 @@ public class MessageContentValidationV2 extends MessageContentValidation {
      */
     private XmlObject getElementInProfile(MessageElement location,
             Profile profile) {
-        XmlObject elementInProfile = null;
-        if (profile != null) {
-            XmlObject xmlProfile = profile.getDocument();
-            XmlObject start = null;
-            XmlObject[] rs = xmlProfile.selectPath("/HL7v2xConformanceProfile/HL7v2xStaticDef");
-            if (rs.length == 1) {
-                start = rs[0];
-            }
-            // Segment Group
-            boolean segmentGroupFound = false;
-            SegmentGroup sg = location.getSegmentGroup();
-            Segment s = null;
-            if (sg != null) {
-                do {
-                    segmentGroupFound = false;
-                    rs = start.selectPath("SegGroup[@Name='" + sg.getName()
-                            + "']");
-                    if (rs.length > 0) {
-                        start = checkUsageCardinality(rs,
-                                sg.getInstanceNumber());
-                        segmentGroupFound = (start != null);
-                        s = sg.getSegment();
-                        sg = sg.getSegmentGroup();
-                    } else {
-                        sg = null;
-                    }
-                } while (sg != null);
-            } else {
-                segmentGroupFound = true;
-                s = location.getSegment();
-            }
-            if (segmentGroupFound) {
-                // Segment
-                boolean segmentFound = false;
-                rs = start.selectPath("Segment[@Name='" + s.getName() + "']");
-                if (rs.length > 0) {
-                    start = checkUsageCardinality(rs, s.getInstanceNumber());
-                    segmentFound = (start != null);
-                }
-                if (segmentFound) {
-                    Field f = s.getField();
-                    if (f != null) {
-                        boolean fieldFound = false;
-                        rs = start.selectPath("Field[" + f.getPosition() + "]");
-                        if (rs.length == 1) {
-                            start = checkUsageCardinality(rs,
-                                    f.getInstanceNumber());
-                            fieldFound = (start != null);
-                        }
-                        if (fieldFound) {
-                            Component c = f.getComponent();
-                            if (c == null) {
-                                elementInProfile = rs[0];
-                            } else {
-                                boolean componentFound = false;
-                                rs = start.selectPath("Component["
-                                        + c.getPosition() + "]");
-                                if (rs.length == 1) {
-                                    start = rs[0];
-                                    componentFound = true;
-                                }
-                                if (componentFound) {
-                                    SubComponent sc = c.getSubComponent();
-                                    if (sc == null) {
-                                        elementInProfile = rs[0];
-                                    } else {
-                                        rs = start.selectPath("SubComponent["
-                                                + sc.getPosition() + "]");
-                                        if (rs.length == 1) {
-                                            elementInProfile = rs[0];
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+        if (profile == null) {
+            return null;
+        }
+        ProfileNode start = profile.getCompiledProfile().getRoot();
+        // Segment Group
+        SegmentGroup sg = location.getSegmentGroup();
+        Segment s = location.getSegment();
+        while (sg != null) {
+            start = start.getChild(ElementType.SEGMENT_GROUP, sg.getName(),
+                    sg.getInstanceNumber());
+            if (start == null) {
+                return null;
             }
+            s = sg.getSegment();
+            sg = sg.getSegmentGroup();
         }
-        return elementInProfile;
-    }
-
-    /**
-     * Check the usage and cardinality in the profile to the location in the
-     * context.
-     * 
-     * @param rs
-     * @param instanceNumberContext
-     * @return the location in the profile if everything went fine; null
-     *         otherwise
-     */
-    private XmlObject checkUsageCardinality(XmlObject[] rs,
-            int instanceNumberContext) {
-        XmlObject xmlObj = null;
-        boolean end = false;
-        int i = 0;
-        while (!end && i < rs.length) {
-            XmlCursor cursor = rs[i].newCursor();
-            // Check the usage
-            String usage = cursor.getAttributeText(QName.valueOf("Usage"));
-            if (!"X".equals(usage)) {
-                // Check the cardinality
-                String sInstanceNumberProfile = cursor.getAttributeText(QName.valueOf("Max"));
-                if (!"*".equals(sInstanceNumberProfile)) {
-                    int instanceNumberProfile = Integer.parseInt(sInstanceNumberProfile);
-                    if (instanceNumberContext <= instanceNumberProfile) {
-                        end = true;
-                        xmlObj = rs[i];
-                    }
-                } else {
-                    end = true;
-                    xmlObj = rs[i];
-                }
+        // Segment
+        ProfileNode node = null;
+        if (s != null) {
+            node = start.getChild(ElementType.SEGMENT, s.getName(),
+                    s.getInstanceNumber());
+        }
+        if (node == null) {
+            return null;
+        }
+        // Field
+        Field f = s.getField();
+        if (f == null) {
+            return null;
+        }
+        node = node.getChildAt(f.getPosition());
+        if (node == null || !node.isInstanceAllowed(f.getInstanceNumber())) {
+            return null;
+        }
+        // Component
+        Component c = f.getComponent();
+        if (c != null) {
+            node = node.getChildAt(c.getPosition());
+            // SubComponent
+            SubComponent sc = c.getSubComponent();
+            if (node != null && sc != null) {
+                node = node.getChildAt(sc.getPosition());
             }
-            i++;
         }
-        return xmlObj;
+        return node == null ? null : node.getXmlObject();
     }
 
     /**
@@ -1849,7 +1878,11 @@ public class MessageContentValidationV2 extends MessageContentValidation {
         StringBuffer sb = new StringBuffer();
         MessageFailureV2 mf = null;
         TableDefinition tableDef = tableManager.getTable(tableId, tableVersion);
+        CodeTableStore.CodeTable codeTable = null;
         if (tableDef == null) {
+            codeTable = tableManager.getCodeTable(tableId, tableVersion);
+        }
+        if (tableDef == null && codeTable == null) {
             mf = new MessageFailureV2(message.getEncoding());
             sb.append("The value '").append(value);
             sb.append("' specified in the message can't be checked because the table '");
@@ -1860,8 +1893,9 @@ public class MessageContentValidationV2 extends MessageContentValidation {
             mf.setElementContent(value);
             mf.setUserComment(userComment);
         } else {
-            boolean isValueInTable = tableManager.isValueInTable(value,
-                    tableDef);
+            boolean isValueInTable = tableDef != null ? tableManager.isValueInTable(
+                    value, tableDef)
+                    : codeTable.containsCode(value, false);
             if (!isValueInTable) {
                 mf = new MessageFailureV2(message.getEncoding());
                 sb.append("The value '").append(value);
@@ -9,6 +9,7 @@ import gov.nist.healthcare.core.message.v2.er7.Er7Message;
 import gov.nist.healthcare.core.validation.message.MessageFailure;
 import gov.nist.healthcare.core.validation.message.plugin.PluginUtil;
 import gov.nist.healthcare.core.validation.message.plugin.ValidationPlugin;
+import gov.nist.healthcare.core.validation.message.util.CodeTableStore;
 import gov.nist.healthcare.core.validation.message.util.MessageElementUtil;
 import gov.nist.healthcare.core.validation.message.v2.MessageFailureV2;
 import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition;
@@ -717,7 +718,11 @@ public class DatatypeCheckPlugin extends ValidationPlugin {
         StringBuffer sb = new StringBuffer();
         MessageFailureV2 mf = null;
         TableDefinition tableDef = tableManager.getTable(tableId, tableVersion);
+        CodeTableStore.CodeTable codeTable = null;
         if (tableDef == null) {
+            codeTable = tableManager.getCodeTable(tableId, tableVersion);
+        }
+        if (tableDef == null && codeTable == null) {
             mf = new MessageFailureV2(message.getEncoding());
             sb.append("The value '").append(value);
             sb.append("' specified in the message can't be checked because the table '");
@@ -728,8 +733,9 @@ public class DatatypeCheckPlugin extends ValidationPlugin {
             mf.setElementContent(value);
             mf.setUserComment(userComment);
         } else {
-            boolean isValueInTable = tableManager.isValueInTable(value,
-                    tableDef);
+            boolean isValueInTable = tableDef != null ? tableManager.isValueInTable(
+                    value, tableDef)
+                    : codeTable.containsCode(value, false);
             if (!isValueInTable) {
                 mf = new MessageFailureV2(message.getEncoding());
                 sb.append("The value '").append(value);
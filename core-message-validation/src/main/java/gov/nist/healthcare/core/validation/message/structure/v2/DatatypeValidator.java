@@ -0,0 +1,27 @@
+/*
+ * NIST Healthcare Core
+ * DatatypeValidator.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.structure.v2;
+
+/**
+ * This interface checks the format of a primitive value. The validators are
+ * registered in the DatatypeValidatorRegistry; they are shared by all the
+ * validations and must be thread safe.
+ */
+public interface DatatypeValidator {
+
+    /**
+     * Check a value.
+     *
+     * @param value
+     *        the value to be checked
+     * @return true if the value is valid
+     */
+    boolean isValid(String value);
+
+}
@@ -0,0 +1,316 @@
+/*
+ * NIST Healthcare Core
+ * DatatypeValidatorRegistry.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.structure.v2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps the DatatypeValidator used by the structure validation
+ * (Er7 and XML) for each datatype, and optionally for each HL7 version. The
+ * validators of DTM, TM, DT, SI and NM scan the value without creating any
+ * object; they accept the same values as the regular expressions that were
+ * used before. The other datatypes use a precompiled pattern. A datatype
+ * without a validator is not checked.
+ */
+public final class DatatypeValidatorRegistry {
+
+    private static final Map<String, DatatypeValidator> VALIDATORS = new ConcurrentHashMap<String, DatatypeValidator>();
+
+    static {
+        register("DTM", null, new DTMValidator());
+        register("TM", null, new TMValidator());
+        register("DT", null, new DTValidator());
+        register("SI", null, new SIValidator());
+        register("NM", null, new NMValidator());
+        register(
+                "TN",
+                null,
+                pattern("(\\d{1,2} )?(\\(\\d{3}\\))?\\d{3}-\\d{4}(X\\d{1,5})?(B\\d{1,5})?(C.*)?"));
+    }
+
+    private DatatypeValidatorRegistry() {
+    }
+
+    /**
+     * Register a validator.
+     *
+     * @param datatype
+     * @param hl7Version
+     *        the HL7 version; null for all the versions
+     * @param validator
+     *        the validator; null to remove the validator
+     */
+    public static void register(String datatype, String hl7Version,
+            DatatypeValidator validator) {
+        String key = getKey(datatype, hl7Version);
+        if (validator == null) {
+            VALIDATORS.remove(key);
+        } else {
+            VALIDATORS.put(key, validator);
+        }
+    }
+
+    /**
+     * Get the validator of a datatype. The validator registered for the HL7
+     * version is used first, then the validator registered for all the
+     * versions.
+     *
+     * @param datatype
+     * @param hl7Version
+     *        the HL7 version (can be null)
+     * @return the validator; null if the datatype is not checked
+     */
+    public static DatatypeValidator get(String datatype, String hl7Version) {
+        if (datatype == null) {
+            return null;
+        }
+        DatatypeValidator validator = null;
+        if (hl7Version != null) {
+            validator = VALIDATORS.get(getKey(datatype, hl7Version));
+        }
+        if (validator == null) {
+            validator = VALIDATORS.get(getKey(datatype, null));
+        }
+        return validator;
+    }
+
+    /**
+     * Create a validator from a regular expression. The whole value has to
+     * match.
+     *
+     * @param regex
+     * @return the validator
+     */
+    public static DatatypeValidator pattern(String regex) {
+        final Pattern pattern = Pattern.compile(regex);
+        return new DatatypeValidator() {
+            public boolean isValid(String value) {
+                return pattern.matcher(value).matches();
+            }
+        };
+    }
+
+    private static String getKey(String datatype, String hl7Version) {
+        return hl7Version == null ? datatype : datatype + "/" + hl7Version;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isDigit(String s, int i) {
+        return i < s.length() && isDigit(s.charAt(i));
+    }
+
+    private static boolean isIn(String s, int i, char min, char max) {
+        if (i >= s.length()) {
+            return false;
+        }
+        char c = s.charAt(i);
+        return c >= min && c <= max;
+    }
+
+    /* [0-9]{4} with [12] first */
+    private static boolean isYear(String s, int i) {
+        return isIn(s, i, '1', '2') && isDigit(s, i + 1) && isDigit(s, i + 2)
+                && isDigit(s, i + 3);
+    }
+
+    /* 0[1-9]|1[0-2] */
+    private static boolean isMonth(String s, int i) {
+        return s.length() >= i + 2
+                && (s.charAt(i) == '0' && isIn(s, i + 1, '1', '9') || s.charAt(i) == '1'
+                        && isIn(s, i + 1, '0', '2'));
+    }
+
+    /* [0-2]\d|3[01] */
+    private static boolean isDay(String s, int i) {
+        return s.length() >= i + 2
+                && (isIn(s, i, '0', '2') && isDigit(s, i + 1) || s.charAt(i) == '3'
+                        && isIn(s, i + 1, '0', '1'));
+    }
+
+    /* [01]\d|2[0-4] */
+    private static boolean isHour(String s, int i) {
+        return s.length() >= i + 2
+                && (isIn(s, i, '0', '1') && isDigit(s, i + 1) || s.charAt(i) == '2'
+                        && isIn(s, i + 1, '0', '4'));
+    }
+
+    /* [0-5]\d */
+    private static boolean isMinute(String s, int i) {
+        return isIn(s, i, '0', '5') && isDigit(s, i + 1);
+    }
+
+    /**
+     * Return true if the value ends at i, or with a time zone starting at i:
+     * ((\+|\-)([01]\d|2[0-4])[0-5]\d)?
+     */
+    private static boolean isEndOrTimeZone(String s, int i) {
+        if (i == s.length()) {
+            return true;
+        }
+        char c = s.charAt(i);
+        return s.length() == i + 5 && (c == '+' || c == '-')
+                && isHour(s, i + 1) && isMinute(s, i + 3);
+    }
+
+    /**
+     * Check the end of a time after the seconds, starting at i:
+     * (.\d\d?\d?\d?)?((\+|\-)([01]\d|2[0-4])[0-5]\d)? where '.' is any
+     * character but a line terminator.
+     */
+    private static boolean isFractionAndTimeZone(String s, int i) {
+        if (isEndOrTimeZone(s, i)) {
+            return true;
+        }
+        if (i >= s.length() || isLineTerminator(s.charAt(i))) {
+            return false;
+        }
+        for (int j = 1; j <= 4 && isDigit(s, i + j); j++) {
+            if (isEndOrTimeZone(s, i + j + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                || c == '\u2029';
+    }
+
+    /**
+     * Check the time part starting at i: [HH[MM[SS[.S[S[S[S]]]]]]][+/-ZZZZ]
+     */
+    private static boolean isTime(String s, int i) {
+        if (isEndOrTimeZone(s, i)) {
+            return true;
+        }
+        if (!isHour(s, i)) {
+            return false;
+        }
+        if (isEndOrTimeZone(s, i + 2)) {
+            return true;
+        }
+        if (!isMinute(s, i + 2)) {
+            return false;
+        }
+        if (isEndOrTimeZone(s, i + 4)) {
+            return true;
+        }
+        if (!isMinute(s, i + 4)) {
+            return false;
+        }
+        return isFractionAndTimeZone(s, i + 6);
+    }
+
+    /**
+     * DTM: YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ]; the empty value is
+     * valid.
+     */
+    private static final class DTMValidator implements DatatypeValidator {
+
+        public boolean isValid(String value) {
+            if (value.length() == 0) {
+                return true;
+            }
+            if (!isYear(value, 0)) {
+                return false;
+            }
+            if (isEndOrTimeZone(value, 4)) {
+                return true;
+            }
+            if (!isMonth(value, 4)) {
+                return false;
+            }
+            if (isEndOrTimeZone(value, 6)) {
+                return true;
+            }
+            if (!isDay(value, 6)) {
+                return false;
+            }
+            return isTime(value, 8);
+        }
+    }
+
+    /**
+     * TM: [HH[MM[SS[.S[S[S[S]]]]]]][+/-ZZZZ]; the empty value is valid.
+     */
+    private static final class TMValidator implements DatatypeValidator {
+
+        public boolean isValid(String value) {
+            return isTime(value, 0);
+        }
+    }
+
+    /**
+     * DT: YYYY[MM[DD]]
+     */
+    private static final class DTValidator implements DatatypeValidator {
+
+        public boolean isValid(String value) {
+            int length = value.length();
+            return isYear(value, 0)
+                    && (length == 4 || isMonth(value, 4)
+                            && (length == 6 || length == 8 && isDay(value, 6)));
+        }
+    }
+
+    /**
+     * SI: 1 to 4 digits
+     */
+    private static final class SIValidator implements DatatypeValidator {
+
+        public boolean isValid(String value) {
+            int length = value.length();
+            if (length < 1 || length > 4) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!isDigit(value.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * NM: an optional sign, digits and an optional decimal part; the empty
+     * value and the sign alone are valid.
+     */
+    private static final class NMValidator implements DatatypeValidator {
+
+        public boolean isValid(String value) {
+            int length = value.length();
+            int i = 0;
+            if (i < length
+                    && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                i++;
+            }
+            while (isDigit(value, i)) {
+                i++;
+            }
+            if (i < length && value.charAt(i) == '.') {
+                i++;
+                if (!isDigit(value, i)) {
+                    return false;
+                }
+                while (isDigit(value, i)) {
+                    i++;
+                }
+            }
+            return i == length;
+        }
+    }
+
+}
@@ -8,29 +8,69 @@
  */
 package gov.nist.healthcare.core.validation.message.structure.v2;
 
+import gov.nist.healthcare.core.Constants.ElementType;
 import gov.nist.healthcare.core.message.v2.er7.Er7Message;
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileArtifactFactory;
+import gov.nist.healthcare.core.profile.ProfileNode;
+import gov.nist.healthcare.core.profile.ProfileRegistry;
+import gov.nist.healthcare.core.profile.Usage;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import javax.xml.namespace.QName;
 import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlObject;
 
 /**
  * This class represents a finite state machine to map segments in the profile
  * and the message.
+ * <p>
+ * The states are the SegGroup and Segment elements of the profile in document
+ * order. The machine is compiled once in the constructor into a transition
+ * table indexed by state and by segment (or segment group) name id; mapping a
+ * message is a loop over the table. A FiniteStateMachine is immutable and can
+ * be shared by several threads.
  * 
  * @author Sydney Henrard (NIST)
  */
 public class FiniteStateMachine {
 
-    private final ArrayList<State> alState;
-    private HashMap<State, ArrayList<Transition>> h;
+    private static final ProfileArtifactFactory<FiniteStateMachine> GROUPS_FACTORY = new FiniteStateMachineFactory(
+            true);
+    private static final ProfileArtifactFactory<FiniteStateMachine> NO_GROUPS_FACTORY = new FiniteStateMachineFactory(
+            false);
+
+    private static final int NONE = -1;
+
+    /* State -> profile element */
+    private final XmlObject[] stateObjects;
+    /* Segment or segment group name -> name id */
+    private final Map<String, Integer> nameIds;
+    /* State -> name id -> next state (NONE if there is no transition) */
+    private final int[][] next;
+    private final Map<String, XmlObject> uniqueSegments;
+
+    /**
+     * Get the finite state machine of a profile. It is built once per profile
+     * and kept in the ProfileRegistry. The states refer to the elements of
+     * the registered profile (see ProfileRegistry.register).
+     * 
+     * @param aProfile
+     * @param hasGroups
+     * @return the finite state machine
+     */
+    public static FiniteStateMachine getInstance(Profile aProfile,
+            boolean hasGroups) {
+        return ProfileRegistry.getInstance().getArtifact(aProfile,
+                hasGroups ? GROUPS_FACTORY : NO_GROUPS_FACTORY);
+    }
 
     /**
      * Constructor
@@ -40,284 +80,200 @@ public class FiniteStateMachine {
      */
     public FiniteStateMachine(Profile aProfile, boolean hasGroups) {
         // Create all states
-        XmlCursor pCursor = aProfile.getDocument().newCursor();
-        State state = null;
-        alState = new ArrayList<State>();
-        boolean end = false;
-        pCursor.push();
-        do {
-            if (pCursor.toFirstChild()) {
-                // Do Nothing
-            } else {
-                while (!end && !pCursor.toNextSibling()) {
-                    end = !pCursor.toParent();
-                }
-            }
-            if (isAllowedElements(pCursor, true)) {
-                // if (isAllowedElements(pCursor, hasGroups)) {
-                state = new State(
-                        pCursor.getAttributeText(QName.valueOf("Name")),
-                        pCursor.getObject());
-                alState.add(state);
-            }
-        } while (!end);
-        pCursor.pop();
-        // List all states
-        // for(int i=0;i<alState.size();i++) {
-        // System.out.println("State " + i + ": " + alState.get(i).getQName());
-        // }
-
-        Transition trans = null;
-        ArrayList<Transition> alTransition = new ArrayList<Transition>();
-        end = false;
-        do {
-            if (isAllowedElements(pCursor, true)) {
-                // System.out.println(pCursor.getName() + " " +
-                // pCursor.getAttributeText(QName.valueOf("Name")));
-                int idx = findIndex(pCursor);
-                State startState = alState.get(idx);
-                // Own Transition
-                trans = new Transition(startState, startState.getName(),
-                        startState);
-                alTransition.add(trans);
-                // Analyze the children
-                boolean found = false;
-                pCursor.push();
-                if (pCursor.toFirstChild()) {
-                    do {
-                        if (isAllowedElements(pCursor, true)) {
-                            String usage = pCursor.getAttributeText(QName.valueOf("Usage"));
-                            if (usage != null
-                                    && (usage.equals("RE") || usage.equals("R")
-                                            || usage.equals("O")
-                                            || usage.equals("C") || usage.equals("CE"))) {
-                                int min = Integer.parseInt(pCursor.getAttributeText(QName.valueOf("Min")));
-                                if (min > 0 && "R".equals(usage)) {
-                                    found = true;
-                                }
-                                idx = findIndex(pCursor);
-                                State endState = alState.get(idx);
-                                // System.out.println("End State: " +
-                                // endState.getName());
-                                trans = new Transition(startState,
-                                        endState.getName(), endState);
-                                alTransition.add(trans);
-                            }
-                        }
-                    } while (pCursor.toNextSibling() && !found);
-                }
-                pCursor.pop();
-                // Analyze the siblings
-                if (!found) {
-                    found = false;
-                    pCursor.push();
-                    if (pCursor.toNextSibling()) {
-                        do {
-                            if (isAllowedElements(pCursor, true)) {
-                                String usage = pCursor.getAttributeText(QName.valueOf("Usage"));
-                                if (usage != null
-                                        && (usage.equals("RE")
-                                                || usage.equals("R")
-                                                || usage.equals("O")
-                                                || usage.equals("C") || usage.equals("CE"))) {
-                                    int min = Integer.parseInt(pCursor.getAttributeText(QName.valueOf("Min")));
-                                    if (min > 0 && "R".equals(usage)) {
-                                        found = true;
-                                    }
-                                    idx = findIndex(pCursor);
-                                    State endState = alState.get(idx);
-                                    // System.out.println("End State: " +
-                                    // endState.getName());
-                                    trans = new Transition(startState,
-                                            endState.getName(), endState);
-                                    alTransition.add(trans);
-                                }
-                            }
-                        } while (pCursor.toNextSibling() && !found);
-                    }
-                }
-                pCursor.pop();
-                // Analyze the parent
-                if (!found) {
-                    pCursor.push();
-                    // boolean foundSibling = false;
-                    while (pCursor.toParent() && !found) {
-                        if (isAllowedElements(pCursor, true)) {
-                            String usage = pCursor.getAttributeText(QName.valueOf("Usage"));
-                            if (usage != null
-                                    && (usage.equals("RE") || usage.equals("R")
-                                            || usage.equals("O")
-                                            || usage.equals("C") || usage.equals("CE"))) {
-                                idx = findIndex(pCursor);
-                                State endState = alState.get(idx);
-                                // System.out.println("End State: " +
-                                // endState.getName());
-                                trans = new Transition(startState,
-                                        endState.getName(), endState);
-                                alTransition.add(trans);
-                            }
-                        }
-                        while (pCursor.toNextSibling() && !found) {
-                            if (isAllowedElements(pCursor, true)) {
-                                String usage = pCursor.getAttributeText(QName.valueOf("Usage"));
-                                if (usage != null
-                                        && (usage.equals("RE")
-                                                || usage.equals("R")
-                                                || usage.equals("O")
-                                                || usage.equals("C") || usage.equals("CE"))) {
-                                    int min = Integer.parseInt(pCursor.getAttributeText(QName.valueOf("Min")));
-                                    if (min > 0 && "R".equals(usage)) {
-                                        found = true;
-                                    }
-                                    idx = findIndex(pCursor);
-                                    State endState = alState.get(idx);
-                                    // System.out.println("End State: " +
-                                    // endState.getName());
-                                    trans = new Transition(startState,
-                                            endState.getName(), endState);
-                                    alTransition.add(trans);
-
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            pCursor.pop();
+        List<ProfileNode> states = new ArrayList<ProfileNode>();
+        addStates(aProfile.getCompiledProfile().getRoot(), states);
+        Map<ProfileNode, Integer> stateIndexes = new HashMap<ProfileNode, Integer>();
+        for (int i = 0; i < states.size(); i++) {
+            stateIndexes.put(states.get(i), i);
+        }
+        uniqueSegments = Collections.unmodifiableMap(aProfile.getUniqueSegments());
 
-            if (pCursor.toFirstChild()) {
-                // Do Nothing
-            } else {
-                while (!end && !pCursor.toNextSibling()) {
-                    end = !pCursor.toParent();
-                }
+        // Create the transitions of each state, in priority order
+        int[][] transitions = new int[states.size()][];
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = getTransitions(states.get(i), i, stateIndexes);
+        }
+        if (!hasGroups) {
+            // Replace the segment groups by the segments they lead to
+            int[][] transitionsNG = new int[transitions.length][];
+            for (int i = 0; i < transitions.length; i++) {
+                transitionsNG[i] = getSegments(i, states, transitions);
             }
-        } while (!end);
+            transitions = transitionsNG;
+        }
 
-        // Create a HashMap that links a State to all its Transition
-        h = new HashMap<State, ArrayList<Transition>>();
-        for (int i = 0; i < alTransition.size(); i++) {
-            trans = alTransition.get(i);
-            state = trans.getStart();
-            ArrayList<Transition> al = h.get(state);
-            if (al == null) {
-                al = new ArrayList<Transition>();
-                h.put(state, al);
+        // Compile the transition table
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (ProfileNode state : states) {
+            if (state.getName() != null && !ids.containsKey(state.getName())) {
+                ids.put(state.getName(), ids.size());
             }
-            al.add(trans);
         }
-
-        if (!hasGroups) {
-            HashMap<State, ArrayList<Transition>> hNG = new HashMap<State, ArrayList<Transition>>();
-            ArrayList<State> stack = new ArrayList<State>();
-            java.util.Iterator<State> it = h.keySet().iterator();
-            while (it.hasNext()) {
-                State aState = it.next();
-                ArrayList<Transition> al = hNG.get(aState);
-                if (al == null) {
-                    al = new ArrayList<Transition>();
-                    hNG.put(aState, al);
-                }
-                stack.add(aState);
-                ArrayList<State> segments = addSegments(stack);
-                for (State s : segments) {
-                    al.add(new Transition(aState, s.getName(), s));
+        nameIds = Collections.unmodifiableMap(ids);
+        stateObjects = new XmlObject[states.size()];
+        next = new int[states.size()][];
+        for (int i = 0; i < states.size(); i++) {
+            stateObjects[i] = states.get(i).getXmlObject();
+            next[i] = new int[ids.size()];
+            Arrays.fill(next[i], NONE);
+            for (int end : transitions[i]) {
+                Integer id = ids.get(states.get(end).getName());
+                // The first transition for a name wins
+                if (id != null && next[i][id] == NONE) {
+                    next[i][id] = end;
                 }
-                stack.clear();
             }
+        }
+    }
 
-            // it = hNG.keySet().iterator();
-            // while(it.hasNext()) {
-            // State st = it.next();
-            // System.out.println(st.getQName());
-            // ArrayList<Transition> al = hNG.get(st);
-            // for(Transition t : al) {
-            // System.out.println(t.getStart().getQName() + " ==> " +
-            // t.getEnd().getQName());
-            // }
-            // System.out.println();
-            // }
-
-            h = hNG;
+    /**
+     * Collect the SegGroup and Segment elements in document order.
+     * 
+     * @param node
+     * @param states
+     */
+    private static void addStates(ProfileNode node, List<ProfileNode> states) {
+        for (ProfileNode child : node.getChildren()) {
+            if (isAllowedElement(child)) {
+                states.add(child);
+                addStates(child, states);
+            }
         }
+    }
 
-        // java.util.Iterator<State> it = h.keySet().iterator();
-        // while (it.hasNext()) {
-        // State st = it.next();
-        // System.out.println(st.getQName());
-        // ArrayList<Transition> al = h.get(st);
-        // for (Transition t : al) {
-        // System.out.println(t.getStart().getQName() + " ==> "
-        // + t.getEnd().getQName());
-        // }
-        // System.out.println();
-        // }
+    /**
+     * Get the transitions of a state: the state itself, then its children,
+     * its following siblings, and its ancestors with their following siblings.
+     * The children and the siblings are read until a required element.
+     * 
+     * @param state
+     * @param idx
+     *        the index of the state
+     * @param stateIndexes
+     * @return the end states
+     */
+    private static int[] getTransitions(ProfileNode state, int idx,
+            Map<ProfileNode, Integer> stateIndexes) {
+        List<Integer> ends = new ArrayList<Integer>();
+        // Own Transition
+        ends.add(idx);
+        // Analyze the children
+        boolean found = addFollowing(state.getChildren(), 0, stateIndexes,
+                ends);
+        // Analyze the siblings
+        ProfileNode parent = state.getParent();
+        if (!found) {
+            List<ProfileNode> siblings = parent.getChildren();
+            found = addFollowing(siblings, siblings.indexOf(state) + 1,
+                    stateIndexes, ends);
+        }
+        // Analyze the parent
+        ProfileNode node = state;
+        while (!found && isAllowedElement(parent)) {
+            if (isExpected(parent)) {
+                ends.add(stateIndexes.get(parent));
+            }
+            node = parent;
+            parent = node.getParent();
+            List<ProfileNode> siblings = parent.getChildren();
+            found = addFollowing(siblings, siblings.indexOf(node) + 1,
+                    stateIndexes, ends);
+        }
+        int[] result = new int[ends.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ends.get(i);
+        }
+        return result;
     }
 
     /**
-     * Find the index of a State object based on the XmlCursor
+     * Add the transitions to the elements of a list, starting at an index,
+     * until a required element.
      * 
-     * @param cursor
-     * @return the index -1 if not found
+     * @param nodes
+     * @param from
+     * @param stateIndexes
+     * @param ends
+     * @return true if a required element was found
      */
-    private int findIndex(XmlCursor cursor) {
-        int idx = 0;
-        for (State s : alState) {
-            if (s.getObject().equals(cursor.getObject())) {
-                return idx;
+    private static boolean addFollowing(List<ProfileNode> nodes, int from,
+            Map<ProfileNode, Integer> stateIndexes, List<Integer> ends) {
+        for (int i = from; i < nodes.size(); i++) {
+            ProfileNode node = nodes.get(i);
+            if (isAllowedElement(node) && isExpected(node)) {
+                ends.add(stateIndexes.get(node));
+                if (node.getMin() > 0 && node.getUsage() == Usage.R) {
+                    return true;
+                }
             }
-            idx++;
         }
-        return -1;
+        return false;
     }
 
     /**
-     * Find all the possible following segments
+     * Find all the possible following segments of a state: the segment
+     * groups are replaced by their own transitions.
      * 
-     * @param stack
-     * @return an ArrayList of State
+     * @param idx
+     *        the index of the state
+     * @param states
+     * @param transitions
+     * @return the end states (segments only)
      */
-    private ArrayList<State> addSegments(ArrayList<State> stack) {
-        ArrayList<State> segments = new ArrayList<State>();
-        while (stack.size() != 0) {
-            State s = stack.get(0);
-            ArrayList<Transition> al = h.get(s);
-            for (Transition t : al) {
-                XmlCursor sCursor = t.getEnd().getObject().newCursor();
-                if (sCursor.getName().equals(QName.valueOf("SegGroup"))) {
-                    if (!stack.contains(t.getEnd())) {
-                        stack.add(t.getEnd());
-                    }
-                } else {
-                    if (!segments.contains(t.getEnd())) {
-                        segments.add(t.getEnd());
+    private static int[] getSegments(int idx, List<ProfileNode> states,
+            int[][] transitions) {
+        List<Integer> segments = new ArrayList<Integer>();
+        boolean[] visited = new boolean[states.size()];
+        List<Integer> queue = new ArrayList<Integer>();
+        queue.add(idx);
+        visited[idx] = true;
+        for (int q = 0; q < queue.size(); q++) {
+            for (int end : transitions[queue.get(q)]) {
+                if (states.get(end).getType() == ElementType.SEGMENT_GROUP) {
+                    if (!visited[end]) {
+                        visited[end] = true;
+                        queue.add(end);
                     }
+                } else if (!segments.contains(end)) {
+                    segments.add(end);
                 }
             }
-            stack.remove(0);
         }
-        return segments;
+        int[] result = new int[segments.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = segments.get(i);
+        }
+        return result;
     }
 
     /**
-     * Allowed elements are SegmentGroup and Segment if the hasGroups is true
-     * otherwise only Segment are allowed.
+     * Allowed elements are SegmentGroup and Segment.
      * 
-     * @param cur
-     *        an element as an XmlCursor
-     * @param hasGroups
+     * @param node
      * @return true of false
      */
-    private boolean isAllowedElements(XmlCursor cur, boolean hasGroups) {
-        boolean allowed = false;
-        if (cur != null && cur.getName() != null) {
-            String name = cur.getName().getLocalPart();
-            if (name != null) {
-                allowed = name.equals("Segment")
-                        || ((name.equals("SegGroup") && hasGroups));
-            }
-        }
-        return allowed;
+    private static boolean isAllowedElement(ProfileNode node) {
+        return node.getType() == ElementType.SEGMENT
+                || node.getType() == ElementType.SEGMENT_GROUP;
+    }
+
+    private static boolean isExpected(ProfileNode node) {
+        Usage usage = node.getUsage();
+        return usage == Usage.R || usage == Usage.RE || usage == Usage.O
+                || usage == Usage.C || usage == Usage.CE;
+    }
+
+    /**
+     * Get the next state.
+     * 
+     * @param state
+     * @param name
+     *        the segment or segment group name
+     * @return the next state; NONE if there is no transition
+     */
+    private int getNext(int state, String name) {
+        Integer id = nameIds.get(name);
+        return id == null ? NONE : next[state][id];
     }
 
     /**
@@ -333,11 +289,10 @@ public class FiniteStateMachine {
             Profile profile, XmlMessage message) {
         // Browse the message and feed the finite state machine
         HashMap<XmlObject, ArrayList<XmlObject>> hMap = new HashMap<XmlObject, ArrayList<XmlObject>>();
-        State currentState = alState.get(0);
+        int currentState = 0;
         XmlCursor mCursor = message.getDocument().newCursor();
-        String msgType = message.getMessageCode();
-        msgType = message.getMessageStructureID();
-        boolean messageMapped = true;
+        String msgType = message.getMessageStructureID();
+        boolean messageMapped = stateObjects.length > 0;
         boolean end = false;
         do {
             if (mCursor.toFirstChild()) {
@@ -350,7 +305,8 @@ public class FiniteStateMachine {
             String condition = mCursor.getName() == null ? null
                     : mCursor.getName().getLocalPart();
             // Skip the root element
-            if (condition != null && !msgType.equals(condition)) {
+            if (messageMapped && condition != null
+                    && !msgType.equals(condition)) {
                 // Remove the msgType for groups
                 if (condition.startsWith(msgType)) {
                     int idx = condition.indexOf(".");
@@ -358,35 +314,28 @@ public class FiniteStateMachine {
                 }
                 // Skip Z-Segment, Field, Component and SubComponent
                 if (!condition.startsWith("Z") && condition.indexOf(".") == -1) {
-                    ArrayList<Transition> alTrans = h.get(currentState);
-                    boolean found = false;
-                    for (int i = 0; i < alTrans.size(); i++) {
-                        Transition trans = alTrans.get(i);
-                        if (trans.getCondition().equals(condition)) {
-                            currentState = trans.getEnd();
-                            // Make a link
-                            ArrayList<XmlObject> alXmlObj = hMap.get(currentState.getObject());
-                            if (alXmlObj == null) {
-                                alXmlObj = new ArrayList<XmlObject>();
-                                hMap.put(currentState.getObject(), alXmlObj);
-                            }
-                            alXmlObj.add(mCursor.getObject());
-                            // End
-                            i = alTrans.size();
-                            found = true;
-                        }
-                    }
-                    if (!found) {
+                    int nextState = getNext(currentState, condition);
+                    if (nextState == NONE) {
                         // The finite state machine can't map the provided
                         // message.
                         messageMapped = false;
+                    } else {
+                        currentState = nextState;
+                        // Make a link
+                        XmlObject pObj = stateObjects[currentState];
+                        ArrayList<XmlObject> alXmlObj = hMap.get(pObj);
+                        if (alXmlObj == null) {
+                            alXmlObj = new ArrayList<XmlObject>();
+                            hMap.put(pObj, alXmlObj);
+                        }
+                        alXmlObj.add(mCursor.getObject());
                     }
                 }
             }
         } while (!end);
         mCursor.dispose();
         if (!messageMapped) {
-            hMap = mapMessageWithProfile(message, profile.getUniqueSegments());
+            hMap = mapMessageWithProfile(message, uniqueSegments);
         }
 
         return hMap;
@@ -405,59 +354,21 @@ public class FiniteStateMachine {
      */
     public HashMap<XmlObject, ArrayList<Integer>> mapSegmentElements(
             Profile profile, Er7Message message) throws IOException {
-        // Browse the message and feed the finite state machine
-        HashMap<XmlObject, ArrayList<Integer>> hMap = new HashMap<XmlObject, ArrayList<Integer>>();
-        BufferedReader br = new BufferedReader(new StringReader(
-                message.getMessageAsString()));
-        State currentState = alState.get(0);
-        String lastCondition = "";
-        String line = null;
-        int lineNumber = 1;
-        boolean messageMapped = true;
-        while ((line = br.readLine()) != null) {
-            // Get the segment name
-            if (line.length() >= 3) {
-                String condition = line.substring(0, 3);
-                // Skip Z-Segment
-                if (!condition.startsWith("Z")) {
-                    ArrayList<Transition> alTrans = h.get(currentState);
-                    boolean found = false;
-                    for (int i = 0; i < alTrans.size(); i++) {
-                        Transition trans = alTrans.get(i);
-                        if (trans.getCondition().equals(condition)
-                                && !lastCondition.equals(condition)) {
-                            currentState = trans.getEnd();
-                            // Make a link
-                            ArrayList<Integer> alLines = hMap.get(currentState.getObject());
-                            if (alLines == null) {
-                                alLines = new ArrayList<Integer>();
-                                hMap.put(currentState.getObject(), alLines);
-                            }
-                            alLines.add(lineNumber);
-                            // End
-                            i = alTrans.size();
-                            lastCondition = condition;
-                            found = true;
-                        }
-                    }
-                    if (!found && lastCondition.equals(condition)) {
-                        // Make a link
-                        ArrayList<Integer> alLines = hMap.get(currentState.getObject());
-                        alLines.add(lineNumber);
-                    } else if (!found) {
-                        // The finite state machine can't map the provided
-                        // message.
-                        messageMapped = false;
-                    }
-                }
-            }
-            lineNumber++;
-        }
-        if (!messageMapped) {
-            hMap = mapMessageWithProfile(message, profile.getUniqueSegments());
+        LineMapper mapper = newLineMapper();
+        for (int lineNumber = 1; lineNumber <= message.getLineCount(); lineNumber++) {
+            mapper.next(message.getSegmentLine(lineNumber), lineNumber);
         }
+        return mapper.getMapping(message);
+    }
 
-        return hMap;
+    /**
+     * Start mapping the lines of an Er7 message. It lets the caller feed the
+     * machine while it reads the message for other purposes.
+     * 
+     * @return a new LineMapper
+     */
+    public LineMapper newLineMapper() {
+        return new LineMapper();
     }
 
     /**
@@ -540,4 +451,103 @@ public class FiniteStateMachine {
         return hMap;
     }
 
+    /**
+     * This class maps the lines of an Er7 message, in order, with the
+     * profile. It is used by only one thread.
+     */
+    public final class LineMapper {
+
+        private final HashMap<XmlObject, ArrayList<Integer>> hMap;
+        private int currentState;
+        private ArrayList<Integer> currentLines;
+        private String lastCondition;
+        private boolean messageMapped;
+
+        private LineMapper() {
+            hMap = new HashMap<XmlObject, ArrayList<Integer>>();
+            lastCondition = "";
+            messageMapped = stateObjects.length > 0;
+        }
+
+        /**
+         * Read the next line of the message.
+         * 
+         * @param line
+         * @param lineNumber
+         */
+        public void next(String line, int lineNumber) {
+            // Get the segment name
+            if (messageMapped && line.length() >= 3) {
+                String condition = line.substring(0, 3);
+                // Skip Z-Segment
+                if (!condition.startsWith("Z")) {
+                    if (lastCondition.equals(condition)) {
+                        // A repetition of the last segment
+                        currentLines.add(lineNumber);
+                    } else {
+                        int nextState = getNext(currentState, condition);
+                        if (nextState == NONE) {
+                            // The finite state machine can't map the
+                            // provided message.
+                            messageMapped = false;
+                        } else {
+                            currentState = nextState;
+                            // Make a link
+                            XmlObject pObj = stateObjects[currentState];
+                            currentLines = hMap.get(pObj);
+                            if (currentLines == null) {
+                                currentLines = new ArrayList<Integer>();
+                                hMap.put(pObj, currentLines);
+                            }
+                            currentLines.add(lineNumber);
+                            lastCondition = condition;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the mapping once all the lines have been read. If the machine
+         * can't map the message, the segments that have only 1 definition in
+         * the profile are mapped.
+         * 
+         * @param message
+         * @return a HashMap with an XmlObject key (profile element) associated
+         *         with an ArrayList of Integer representing the line number in
+         *         the message instance
+         * @throws IOException
+         */
+        public HashMap<XmlObject, ArrayList<Integer>> getMapping(
+                Er7Message message) throws IOException {
+            if (!messageMapped) {
+                return mapMessageWithProfile(message, uniqueSegments);
+            }
+            return hMap;
+        }
+    }
+
+    /**
+     * This class creates the finite state machines kept in the
+     * ProfileRegistry.
+     */
+    private static class FiniteStateMachineFactory implements
+            ProfileArtifactFactory<FiniteStateMachine> {
+
+        private final boolean hasGroups;
+
+        private FiniteStateMachineFactory(boolean hasGroups) {
+            this.hasGroups = hasGroups;
+        }
+
+        public String getName() {
+            return hasGroups ? "FiniteStateMachine.groups"
+                    : "FiniteStateMachine";
+        }
+
+        public FiniteStateMachine create(Profile profile) {
+            return new FiniteStateMachine(profile, hasGroups);
+        }
+    }
+
 }
@@ -0,0 +1,183 @@
+/*
+ * NIST Healthcare Core
+ * MessageStructureSchema.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.structure.v2;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileArtifactFactory;
+import gov.nist.healthcare.core.profile.ProfileNode;
+import gov.nist.healthcare.core.profile.ProfileRegistry;
+import gov.nist.healthcare.core.validation.message.MessageValidationConstants;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+import org.apache.xmlbeans.SchemaTypeLoader;
+import org.apache.xmlbeans.XmlBeans;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
+import org.apache.xmlbeans.XmlSaxHandler;
+
+/**
+ * This class holds the XML Schema used to check the message structure at the
+ * segment level. The schema is generated from the profile with
+ * CheckMessageStructure.xsl and compiled once per profile and per set of
+ * parameters; it is kept in the ProfileRegistry. When the schema can't be
+ * compiled (ambiguous profile), the failure is kept as well.
+ */
+public final class MessageStructureSchema {
+
+    private static final MessageStructureSchemaFactory[] FACTORIES = {
+            new MessageStructureSchemaFactory(false, false),
+            new MessageStructureSchemaFactory(false, true),
+            new MessageStructureSchemaFactory(true, false),
+            new MessageStructureSchemaFactory(true, true) };
+
+    private static Templates templates;
+
+    private final SchemaTypeLoader schemaTypeLoader;
+    private final XmlException compilationError;
+
+    private MessageStructureSchema(SchemaTypeLoader schemaTypeLoader,
+            XmlException compilationError) {
+        this.schemaTypeLoader = schemaTypeLoader;
+        this.compilationError = compilationError;
+    }
+
+    /**
+     * Get the compiled schema for a profile.
+     *
+     * @param profile
+     * @param groups
+     *        true if the schema has to contain the segment groups
+     * @param xml
+     *        true if the schema is used for an XML message
+     * @return the schema type loader
+     * @throws XmlException
+     *         if the schema can't be compiled (the profile is ambiguous)
+     */
+    public static SchemaTypeLoader getSchemaTypeLoader(Profile profile,
+            boolean groups, boolean xml) throws XmlException {
+        MessageStructureSchema schema = ProfileRegistry.getInstance().getArtifact(
+                profile, FACTORIES[(groups ? 2 : 0) + (xml ? 1 : 0)]);
+        if (schema.compilationError != null) {
+            throw schema.compilationError;
+        }
+        return schema.schemaTypeLoader;
+    }
+
+    /**
+     * Return true if the profile has named segment groups.
+     *
+     * @param profile
+     * @return true if the profile has segment groups
+     */
+    public static boolean hasSegmentGroups(Profile profile) {
+        return hasSegmentGroups(profile.getCompiledProfile().getRoot());
+    }
+
+    private static boolean hasSegmentGroups(ProfileNode node) {
+        for (ProfileNode child : node.getChildren()) {
+            if (child.getType() == ElementType.SEGMENT_GROUP
+                    && (child.getName() != null || hasSegmentGroups(child))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate and compile the schema.
+     *
+     * @param profile
+     * @param groups
+     * @param xml
+     * @return the schema
+     */
+    private static MessageStructureSchema create(Profile profile,
+            boolean groups, boolean xml) {
+        try {
+            Transformer t = getTemplates().newTransformer();
+            t.setParameter("groups", Boolean.toString(groups));
+            t.setParameter("xml", Boolean.toString(xml));
+            XmlSaxHandler handler = XmlObject.Factory.newXmlSaxHandler((new XmlOptions()).setLoadLineNumbers());
+            SAXResult result = new SAXResult(handler.getContentHandler());
+            result.setLexicalHandler(handler.getLexicalHandler());
+            InputStream is = profile.getDocument().newInputStream();
+            try {
+                t.transform(new StreamSource(is), result);
+            } finally {
+                is.close();
+            }
+            Collection<Object> compErrors = new ArrayList<Object>();
+            XmlOptions schemaOptions = new XmlOptions();
+            schemaOptions.setErrorListener(compErrors);
+            XmlObject[] schemas = new XmlObject[] { handler.getObject() };
+            try {
+                return new MessageStructureSchema(XmlBeans.compileXsd(schemas,
+                        null, schemaOptions), null);
+            } catch (XmlException xmle) {
+                // The generated schema is ambiguous
+                return new MessageStructureSchema(null, xmle);
+            }
+        } catch (Exception e) {
+            // Not cached
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the compiled CheckMessageStructure.xsl.
+     *
+     * @return the compiled stylesheet
+     * @throws Exception
+     */
+    private static synchronized Templates getTemplates() throws Exception {
+        if (templates == null) {
+            InputStream is = MessageStructureSchema.class.getClassLoader().getResourceAsStream(
+                    MessageValidationConstants.XSLT_CHECK_STRUCTURE);
+            try {
+                templates = TransformerFactory.newInstance().newTemplates(
+                        new StreamSource(is));
+            } finally {
+                is.close();
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * This class creates the schemas kept in the ProfileRegistry.
+     */
+    private static class MessageStructureSchemaFactory implements
+            ProfileArtifactFactory<MessageStructureSchema> {
+
+        private final boolean groups;
+        private final boolean xml;
+
+        private MessageStructureSchemaFactory(boolean groups, boolean xml) {
+            this.groups = groups;
+            this.xml = xml;
+        }
+
+        public String getName() {
+            return "MessageStructureSchema.groups=" + groups + ".xml=" + xml;
+        }
+
+        public MessageStructureSchema create(Profile profile) {
+            return MessageStructureSchema.create(profile, groups, xml);
+        }
+    }
+
+}
@@ -8,30 +8,30 @@
  */
 package gov.nist.healthcare.core.validation.message.structure.v2;
 
-import gov.nist.healthcare.core.MalformedMessageException;
 import gov.nist.healthcare.core.message.v2.HL7V2Message;
-import gov.nist.healthcare.core.message.v2.er7.Er7Message;
 import gov.nist.healthcare.core.profile.Profile;
-import gov.nist.healthcare.core.util.MessageDetectionUtils;
+import gov.nist.healthcare.core.profile.ProfileRegistry;
 import gov.nist.healthcare.core.validation.message.MessageValidationException;
+import gov.nist.healthcare.core.validation.message.ValidationMode;
+import gov.nist.healthcare.core.validation.message.util.CodeTableStore;
+import gov.nist.healthcare.core.validation.message.util.TableIndex;
+import gov.nist.healthcare.core.validation.message.v2.MessageFailureListV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageFailureV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageValidationContextV2;
 import gov.nist.healthcare.data.TableLibraryDocument;
 import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition;
-import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition.TableElement;
 import gov.nist.healthcare.data.TableType;
 import gov.nist.healthcare.validation.AssertionTypeV2Constants;
 import gov.nist.healthcare.validation.ErrorSeverityConstants;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
-import javax.xml.namespace.QName;
-import org.apache.xmlbeans.XmlCursor;
-import org.apache.xmlbeans.XmlObject;
 
 /**
  * This class validates the message structure for a V2 message.
+ * <p>
+ * A validator holds the state of one validation; MessageValidationV2 creates
+ * a new one for each message. The objects derived from the profile (compiled
+ * profile, schema, state machines) are immutable and shared through the
+ * ProfileRegistry.
  * 
  * @author Sydney Henrard (NIST)
  */
@@ -43,6 +43,18 @@ public abstract class MessageStructureValidationV2 {
     protected MessageValidationContextV2 context;
     protected List<TableLibraryDocument> tables;
     protected List<MessageFailureV2> messageFailures;
+    private MessageFailureListV2 failureList;
+    private List<CodeTableStore> codeTableStores;
+
+    /**
+     * Set the code table stores used for the tables which are not found in
+     * the table libraries.
+     * 
+     * @param codeTableStores
+     */
+    public void setCodeTableStores(List<CodeTableStore> codeTableStores) {
+        this.codeTableStores = codeTableStores;
+    }
 
     /**
      * Validate the message structure and content. The validation of table
@@ -65,27 +77,47 @@ public abstract class MessageStructureValidationV2 {
             Profile profile, MessageValidationContextV2 context,
             List<TableLibraryDocument> tableLibraryDocuments)
             throws MessageValidationException {
-        messageFailures = new ArrayList<MessageFailureV2>();
+        return validate(message, profile, context, tableLibraryDocuments,
+                new MessageFailureListV2(ValidationMode.FULL, context));
+    }
+
+    /**
+     * Validate the message structure and content. The failures are added to
+     * the list provided as a parameter; the validation stops when the list
+     * says so (see ValidationMode).
+     * 
+     * @param message
+     *        the message to validate
+     * @param profile
+     *        the profile
+     * @param context
+     *        the message validation context
+     * @param tableLibraryDocuments
+     *        a list of TableLibraryDocument
+     * @param failures
+     *        the list of message failures of the validation
+     * @return the list of message failures
+     * @throws MessageValidationException
+     */
+    public List<MessageFailureV2> validate(HL7V2Message message,
+            Profile profile, MessageValidationContextV2 context,
+            List<TableLibraryDocument> tableLibraryDocuments,
+            MessageFailureListV2 failures) throws MessageValidationException {
+        failureList = failures;
+        messageFailures = failures;
         // Set the variables needed by the subclass validation
         this.message = message;
         this.inputMessage = message;
         this.profile = profile;
         this.context = context;
         tables = tableLibraryDocuments;
-        // Clean Up the Er7 for extra separators
-        if (MessageDetectionUtils.isER7(message.getMessageAsString())) {
-            try {
-                message = ((Er7Message) message).cleanEr7();
-            } catch (MalformedMessageException e) {
-                throw new MessageValidationException(e.getMessage());
-            }
-        }
-        // Pre-Process the profile for the tables
-        preprocessProfileTable();
+        // Use the registered profile so that the objects derived from the
+        // profile are shared between the validations
+        this.profile = ProfileRegistry.getInstance().register(this.profile);
         // 1- Basic Check
         checkBasic();
         boolean keepgoing = keepGoingMessageStructureIdError(messageFailures);
-        if (keepgoing) {
+        if (keepgoing && !isStopped()) {
             // 2- Check the Message Structure only SegmentGroup and Segment
             checkMessageStructure();
             keepgoing = keepgoing
@@ -95,27 +127,22 @@ public abstract class MessageStructureValidationV2 {
             // Message by using a finite state machine
             // 4- Validate the Segment, Field, Component and SubComponent
             // elements
-            mapAndCheckElements(profile);
+            if (!isStopped()) {
+                mapAndCheckElements(this.profile);
+            }
             // }
         }
         return messageFailures;
     }
 
     /**
-     * Pre-Process the profile to fix the table express at a field level whereas
-     * the field is not primitives.
+     * Return true if the validation has to stop (see ValidationMode). The
+     * subclasses check it between segments.
+     * 
+     * @return true if the validation has to stop
      */
-    private void preprocessProfileTable() {
-        // Look for Field with a CE datatype that has components with no table
-        String ceXPath = "//.[@Datatype = 'CE' and @Table and count(child::*[position() = 1 and @Table]) = 0]";
-        XmlObject[] rs = profile.getDocument().selectPath(ceXPath);
-        for (XmlObject ceField : rs) {
-            XmlCursor cursor = ceField.newCursor();
-            String table = cursor.getAttributeText(QName.valueOf("Table"));
-            cursor.toChild("Component");
-            cursor.setAttributeText(QName.valueOf("Table"), table);
-            cursor.getChars();
-        }
+    protected boolean isStopped() {
+        return failureList.isStopped();
     }
 
     /**
@@ -158,15 +185,18 @@ public abstract class MessageStructureValidationV2 {
         StringBuffer sb = new StringBuffer();
         MessageFailureV2 mf = null;
         TableDefinition td = null;
-        Iterator<TableElement> it = null;
-        boolean tablefound = false;
-        for (int i = 0; i < tables.size() && !tablefound; i++) {
-            td = getTableDefinition(tables.get(i), table);
-            if (td != null) {
-                it = td.getTableElementList().iterator();
+        TableIndex index = null;
+        for (int i = 0; i < tables.size() && td == null; i++) {
+            index = TableIndex.getInstance(tables.get(i));
+            td = index.getTable(table);
+        }
+        CodeTableStore.CodeTable codeTable = null;
+        if (td == null && codeTableStores != null) {
+            for (int i = 0; i < codeTableStores.size() && codeTable == null; i++) {
+                codeTable = codeTableStores.get(i).getTable(table);
             }
-            tablefound = it != null;
         }
+        boolean tablefound = td != null || codeTable != null;
         if (!tablefound) {
             mf = new MessageFailureV2(message.getEncoding());
             sb.append("The value '").append(value);
@@ -178,11 +208,14 @@ public abstract class MessageStructureValidationV2 {
             mf.setFailureType(AssertionTypeV2Constants.TABLE_NOT_FOUND);
             mf.setElementContent(value);
         }
-        if (it != null) {
+        if (tablefound) {
             // Type of the table
-            boolean userTable = td.getType() == TableType.USER;
-            boolean hl7Table = td.getType() == TableType.HL_7;
-            boolean hasItem = it.hasNext();
+            TableType.Enum type = td != null ? td.getType()
+                    : codeTable.getType();
+            boolean userTable = type == TableType.USER;
+            boolean hl7Table = type == TableType.HL_7;
+            boolean hasItem = td != null ? td.sizeOfTableElementArray() > 0
+                    : codeTable.size() > 0;
             boolean checkThatTable = true;
             if (hl7Table) {
                 // HL7 Table
@@ -236,11 +269,8 @@ public abstract class MessageStructureValidationV2 {
             if (checkThatTable) {
                 boolean found = false;
                 if (hasItem) {
-                    while (!found && it.hasNext()) {
-                        if (it.next().getCode().equalsIgnoreCase(value)) {
-                            found = true;
-                        }
-                    }
+                    found = td != null ? index.containsCode(td, value, true)
+                            : codeTable.containsCode(value, true);
                 } else {
                     found = true;
                 }
@@ -260,27 +290,6 @@ public abstract class MessageStructureValidationV2 {
         return mf;
     }
 
-    /**
-     * Get the table definition.
-     * 
-     * @param tableLibraryDocument
-     *        the table library document containing the table values
-     * @param tableId
-     *        the table id
-     * @return the table definition; null otherwise
-     */
-    private TableDefinition getTableDefinition(
-            TableLibraryDocument tableLibraryDocument, String tableId) {
-        Iterator<TableDefinition> it = tableLibraryDocument.getTableLibrary().getTableDefinitionList().iterator();
-        while (it.hasNext()) {
-            TableDefinition td = it.next();
-            if (td.getId().equals(tableId)) {
-                return td;
-            }
-        }
-        return null;
-    }
-
     /**
      * Check if the provided value is the constant provided in the profile
      * 
@@ -310,7 +319,7 @@ public abstract class MessageStructureValidationV2 {
 
     /**
      * Check if the provided value is valid against the format imposed by its
-     * datatype.
+     * datatype (see DatatypeValidatorRegistry).
      * 
      * @param value
      *        the value to be checked
@@ -321,21 +330,9 @@ public abstract class MessageStructureValidationV2 {
     protected MessageFailureV2 checkDatatype(String value, String datatype) {
         StringBuffer sb = new StringBuffer();
         MessageFailureV2 mf = null;
-        String regex = null;
-        if (datatype.equals("DTM")) {
-            regex = "([12]\\d\\d\\d((0[1-9]|1[0-2])(([0-2]\\d|3[01])(([01]\\d|2[0-4])([0-5]\\d([0-5]\\d(.\\d\\d?\\d?\\d?)?)?)?)?)?)?((\\+|\\-)([01]\\d|2[0-4])[0-5]\\d)?)?";
-        } else if (datatype.equals("TM")) {
-            regex = "((((([01]\\d|2[0-4])([0-5]\\d([0-5]\\d(.\\d\\d?\\d?\\d?)?)?)?)?)?)?((\\+|\\-)([01]\\d|2[0-4])[0-5]\\d)?)?";
-        } else if (datatype.equals("DT")) {
-            regex = "([12]\\d\\d\\d((0[1-9]|1[0-2])([0-2]\\d|3[01])?)?)";
-        } else if (datatype.equals("SI")) {
-            regex = "[0-9][0-9]{0,3}";
-        } else if (datatype.equals("NM")) {
-            regex = "(\\+|\\-)?\\d*(\\.?\\d+)?";
-        } else if (datatype.equals("TN")) {
-            regex = "(\\d{1,2} )?(\\(\\d{3}\\))?\\d{3}-\\d{4}(X\\d{1,5})?(B\\d{1,5})?(C.*)?";
-        }
-        if (regex != null && !Pattern.matches(regex, value)) {
+        DatatypeValidator validator = DatatypeValidatorRegistry.get(datatype,
+                profile.getCompiledProfile().getHl7Version());
+        if (validator != null && !validator.isValid(value)) {
             mf = new MessageFailureV2(message.getEncoding());
             sb.append("The value '").append(value).append(
                     "' is not valid with respect to the format specified for datatype '");
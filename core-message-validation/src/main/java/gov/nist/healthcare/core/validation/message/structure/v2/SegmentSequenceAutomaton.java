@@ -0,0 +1,513 @@
+/*
+ * NIST Healthcare Core
+ * SegmentSequenceAutomaton.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.structure.v2;
+
+import gov.nist.healthcare.core.Constants.ElementType;
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileArtifactFactory;
+import gov.nist.healthcare.core.profile.ProfileNode;
+import gov.nist.healthcare.core.profile.ProfileRegistry;
+import gov.nist.healthcare.core.profile.Usage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class checks the sequence of the segments of a message against the
+ * segment groups and segments of a profile. It accepts the same sequences as
+ * the schema generated by CheckMessageStructure.xsl for an Er7 message: a
+ * segment or a segment group is required when its usage is R, optional when
+ * its usage is RE, O, C or CE, and ignored otherwise; its Max attribute is the
+ * maximum number of repetitions.
+ * <p>
+ * The profile is turned into an automaton whose states are the positions in
+ * the profile with a repetition count for each enclosing element. The
+ * deterministic automaton is built lazily: the transitions computed for a
+ * message are kept and reused for the next messages. An automaton is created
+ * once per profile and kept in the ProfileRegistry; it can be used by several
+ * threads.
+ * <p>
+ * The automaton also tells if the profile is ambiguous, i.e. if the generated
+ * schema breaks the Unique Particle Attribution constraint: a segment of a
+ * message could be matched by two segments of the profile.
+ */
+public final class SegmentSequenceAutomaton {
+
+    private static final ProfileArtifactFactory<SegmentSequenceAutomaton> FACTORY = new SegmentSequenceAutomatonFactory();
+
+    /* The maximum number of states of the deterministic automaton */
+    private static final int MAX_STATES = 4096;
+
+    private final String messageStructureID;
+    private final StateSet initial;
+    private final Map<StateSet, StateSet> states;
+    private final boolean ambiguous;
+
+    /**
+     * Get the automaton of a profile.
+     *
+     * @param profile
+     * @return the automaton
+     */
+    public static SegmentSequenceAutomaton getInstance(Profile profile) {
+        return ProfileRegistry.getInstance().getArtifact(profile, FACTORY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param profile
+     */
+    private SegmentSequenceAutomaton(Profile profile) {
+        ProfileNode root = profile.getCompiledProfile().getRoot();
+        messageStructureID = root.getName();
+        Particle rootParticle = new Particle(null, 1, 1, getParticles(root));
+        states = new ConcurrentHashMap<StateSet, StateSet>();
+        Set<Frame> seeds = new LinkedHashSet<Frame>();
+        seeds.add(new Frame(rootParticle, 1, 0, null));
+        initial = intern(closure(seeds));
+        ambiguous = isAmbiguous(rootParticle);
+    }
+
+    /**
+     * Get the message structure id (the name of the message root element).
+     *
+     * @return the message structure id
+     */
+    public String getMessageStructureID() {
+        return messageStructureID;
+    }
+
+    /**
+     * Tell if the profile is ambiguous. The message structure can't be
+     * validated against an ambiguous profile.
+     *
+     * @return true if the profile is ambiguous; false otherwise
+     */
+    public boolean isAmbiguous() {
+        return ambiguous;
+    }
+
+    /**
+     * Start reading a message.
+     *
+     * @return a new Run
+     */
+    public Run start() {
+        return new Run(initial);
+    }
+
+    /**
+     * Create the particles for the children of a profile element.
+     *
+     * @param node
+     * @return the particles
+     */
+    private static Particle[] getParticles(ProfileNode node) {
+        List<Particle> particles = new ArrayList<Particle>();
+        for (ProfileNode child : node.getChildren()) {
+            Usage usage = child.getUsage();
+            if (usage == Usage.R || usage == Usage.RE || usage == Usage.O
+                    || usage == Usage.C || usage == Usage.CE) {
+                int min = usage == Usage.R ? 1 : 0;
+                int max = child.getMax() == ProfileNode.NOT_SPECIFIED ? 1
+                        : child.getMax();
+                if (child.getType() == ElementType.SEGMENT_GROUP) {
+                    particles.add(new Particle(null, min, max,
+                            getParticles(child)));
+                } else if (child.getType() == ElementType.SEGMENT) {
+                    particles.add(new Particle(child.getName(), min, max,
+                            null));
+                }
+            }
+        }
+        return particles.toArray(new Particle[particles.size()]);
+    }
+
+    /**
+     * Check the Unique Particle Attribution constraint: two segments with the
+     * same name must not be possible at the start of the message or after a
+     * segment. As for the schema, the repetition counts are not taken into
+     * account.
+     *
+     * @param root
+     * @return true if the profile is ambiguous; false otherwise
+     */
+    private static boolean isAmbiguous(Particle root) {
+        Set<Particle> first = new LinkedHashSet<Particle>();
+        Map<Particle, Set<Particle>> follow = new HashMap<Particle, Set<Particle>>();
+        getPositions(root, first, new LinkedHashSet<Particle>(), follow);
+        if (hasSameName(first)) {
+            return true;
+        }
+        for (Set<Particle> segments : follow.values()) {
+            if (hasSameName(segments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the segments which can start and end a particle, and record the
+     * segments which can follow each segment inside the particle.
+     *
+     * @param p
+     * @param first
+     *        the segments starting the particle
+     * @param last
+     *        the segments ending the particle
+     * @param follow
+     *        the segments following each segment
+     * @return true if the particle can be empty; false otherwise
+     */
+    private static boolean getPositions(Particle p, Set<Particle> first,
+            Set<Particle> last, Map<Particle, Set<Particle>> follow) {
+        if (p.max < 1) {
+            return true;
+        }
+        boolean empty;
+        if (p.isSegment()) {
+            first.add(p);
+            last.add(p);
+            empty = p.min == 0;
+        } else {
+            empty = true;
+            for (Particle c : p.children) {
+                Set<Particle> cFirst = new LinkedHashSet<Particle>();
+                Set<Particle> cLast = new LinkedHashSet<Particle>();
+                boolean cEmpty = getPositions(c, cFirst, cLast, follow);
+                for (Particle segment : last) {
+                    getFollow(follow, segment).addAll(cFirst);
+                }
+                if (empty) {
+                    first.addAll(cFirst);
+                }
+                if (!cEmpty) {
+                    last.clear();
+                }
+                last.addAll(cLast);
+                empty = empty && cEmpty;
+            }
+            empty = empty || p.min == 0;
+        }
+        if (p.max > 1) {
+            for (Particle segment : last) {
+                getFollow(follow, segment).addAll(first);
+            }
+        }
+        return empty;
+    }
+
+    private static Set<Particle> getFollow(Map<Particle, Set<Particle>> follow,
+            Particle segment) {
+        Set<Particle> segments = follow.get(segment);
+        if (segments == null) {
+            segments = new LinkedHashSet<Particle>();
+            follow.put(segment, segments);
+        }
+        return segments;
+    }
+
+    private static boolean hasSameName(Set<Particle> segments) {
+        Set<String> names = new HashSet<String>();
+        for (Particle segment : segments) {
+            if (!names.add(segment.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the states reachable from the seeds without reading a segment.
+     *
+     * @param seeds
+     * @return the state set
+     */
+    private static StateSet closure(Set<Frame> seeds) {
+        Set<Frame> frames = new LinkedHashSet<Frame>();
+        boolean accept = false;
+        List<Frame> stack = new ArrayList<Frame>(seeds);
+        Collections.reverse(stack);
+        while (stack.size() > 0) {
+            Frame f = stack.remove(stack.size() - 1);
+            if (!frames.add(f)) {
+                continue;
+            }
+            Particle p = f.particle;
+            List<Frame> next = new ArrayList<Frame>(2);
+            if (p.isSegment()) {
+                if (f.count >= p.min) {
+                    next.add(f.parent.nextChild());
+                }
+            } else if (f.child < p.children.length) {
+                Particle c = p.children[f.child];
+                if (c.isSegment()) {
+                    next.add(new Frame(c, 0, 0, f));
+                } else {
+                    if (c.max >= 1) {
+                        next.add(new Frame(c, 1, 0, f));
+                    }
+                    if (c.min == 0) {
+                        next.add(f.nextChild());
+                    }
+                }
+            } else {
+                if (f.count < p.max) {
+                    next.add(new Frame(p, p.increment(f.count), 0, f.parent));
+                }
+                if (f.count >= p.min) {
+                    if (f.parent == null) {
+                        accept = true;
+                    } else {
+                        next.add(f.parent.nextChild());
+                    }
+                }
+            }
+            for (int i = next.size() - 1; i >= 0; i--) {
+                stack.add(next.get(i));
+            }
+        }
+        return new StateSet(frames, accept);
+    }
+
+    /**
+     * Get the state set after reading a segment.
+     *
+     * @param state
+     * @param segmentName
+     * @return the state set; null if the segment is not expected
+     */
+    private StateSet transition(StateSet state, String segmentName) {
+        StateSet next = state.transitions.get(segmentName);
+        if (next == null) {
+            Set<Frame> seeds = new LinkedHashSet<Frame>();
+            for (Frame f : state.frames) {
+                Particle p = f.particle;
+                if (p.isSegment() && p.name.equals(segmentName)
+                        && f.count < p.max) {
+                    seeds.add(new Frame(p, p.increment(f.count), 0, f.parent));
+                }
+            }
+            if (seeds.size() == 0) {
+                return null;
+            }
+            next = intern(closure(seeds));
+            if (states.size() < MAX_STATES) {
+                state.transitions.put(segmentName, next);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Return the shared instance of a state set.
+     *
+     * @param state
+     * @return the shared instance
+     */
+    private StateSet intern(StateSet state) {
+        StateSet shared = states.get(state);
+        if (shared == null) {
+            if (states.size() >= MAX_STATES) {
+                return state;
+            }
+            shared = state;
+            states.put(state, state);
+        }
+        return shared;
+    }
+
+    /**
+     * This class reads the segments of a message. It is used by only one
+     * thread.
+     */
+    public final class Run {
+
+        private StateSet state;
+
+        private Run(StateSet state) {
+            this.state = state;
+        }
+
+        /**
+         * Read the next segment of the message. If the segment is not
+         * expected, it is skipped.
+         *
+         * @param segmentName
+         * @return null if the segment is expected; the expected segments
+         *         otherwise (can be empty)
+         */
+        public List<String> next(String segmentName) {
+            StateSet next = transition(state, segmentName);
+            if (next == null) {
+                return state.expected;
+            }
+            state = next;
+            return null;
+        }
+
+        /**
+         * Check the end of the message.
+         *
+         * @return null if the message can end here; the expected segments
+         *         otherwise
+         */
+        public List<String> end() {
+            return state.accept ? null : state.expected;
+        }
+    }
+
+    /**
+     * A segment or a segment group.
+     */
+    private static final class Particle {
+
+        /* The segment name; null for a segment group */
+        private final String name;
+        private final int min;
+        private final int max;
+        private final Particle[] children;
+
+        private Particle(String name, int min, int max, Particle[] children) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.children = children;
+        }
+
+        private boolean isSegment() {
+            return name != null;
+        }
+
+        /**
+         * Increment a repetition count. For an unbounded element, the count
+         * stops at the minimum cardinality, the higher values can't be told
+         * apart.
+         *
+         * @param count
+         * @return the new count
+         */
+        private int increment(int count) {
+            if (max == ProfileNode.UNBOUNDED) {
+                return Math.min(count + 1, Math.max(min, 1));
+            }
+            return count + 1;
+        }
+    }
+
+    /**
+     * A position in the profile. For a segment, count is the number of
+     * segments read; for a segment group, count is the current repetition and
+     * child the index of the next child.
+     */
+    private static final class Frame {
+
+        private final Particle particle;
+        private final int count;
+        private final int child;
+        private final Frame parent;
+        private final int hash;
+
+        private Frame(Particle particle, int count, int child, Frame parent) {
+            this.particle = particle;
+            this.count = count;
+            this.child = child;
+            this.parent = parent;
+            int h = System.identityHashCode(particle);
+            h = 31 * h + count;
+            h = 31 * h + child;
+            hash = 31 * h + (parent == null ? 0 : parent.hash);
+        }
+
+        private Frame nextChild() {
+            return new Frame(particle, count, child + 1, parent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Frame)) {
+                return false;
+            }
+            Frame f = (Frame) o;
+            return hash == f.hash && particle == f.particle
+                    && count == f.count && child == f.child
+                    && (parent == null ? f.parent == null
+                            : parent.equals(f.parent));
+        }
+    }
+
+    /**
+     * A state of the deterministic automaton.
+     */
+    private static final class StateSet {
+
+        private final Set<Frame> frames;
+        private final boolean accept;
+        /* The segments that can be read, in the profile order */
+        private final List<String> expected;
+        private final Map<String, StateSet> transitions;
+
+        private StateSet(Set<Frame> frames, boolean accept) {
+            this.frames = frames;
+            this.accept = accept;
+            Set<String> names = new LinkedHashSet<String>();
+            for (Frame f : frames) {
+                if (f.particle.isSegment() && f.count < f.particle.max) {
+                    names.add(f.particle.name);
+                }
+            }
+            expected = Collections.unmodifiableList(new ArrayList<String>(
+                    names));
+            transitions = new ConcurrentHashMap<String, StateSet>();
+        }
+
+        @Override
+        public int hashCode() {
+            return frames.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet
+                    && frames.equals(((StateSet) o).frames);
+        }
+    }
+
+    /**
+     * This class creates the automatons kept in the ProfileRegistry.
+     */
+    private static class SegmentSequenceAutomatonFactory implements
+            ProfileArtifactFactory<SegmentSequenceAutomaton> {
+
+        public String getName() {
+            return "SegmentSequenceAutomaton";
+        }
+
+        public SegmentSequenceAutomaton create(Profile profile) {
+            return new SegmentSequenceAutomaton(profile);
+        }
+    }
+
+}
@@ -8,52 +8,57 @@
  */
 package gov.nist.healthcare.core.validation.message.structure.v2.er7;
 
+import gov.nist.healthcare.core.Constants.ElementType;
 import gov.nist.healthcare.core.message.MessageLocation;
+import gov.nist.healthcare.core.message.v2.er7.EComponent;
+import gov.nist.healthcare.core.message.v2.er7.EField;
+import gov.nist.healthcare.core.message.v2.er7.ESegment;
 import gov.nist.healthcare.core.message.v2.er7.Er7Message;
+import gov.nist.healthcare.core.profile.CompiledProfile;
 import gov.nist.healthcare.core.profile.Profile;
-import gov.nist.healthcare.core.validation.message.MessageValidationConstants;
+import gov.nist.healthcare.core.profile.ProfileNode;
+import gov.nist.healthcare.core.profile.Usage;
 import gov.nist.healthcare.core.validation.message.MessageValidationException;
 import gov.nist.healthcare.core.validation.message.structure.v2.FiniteStateMachine;
 import gov.nist.healthcare.core.validation.message.structure.v2.MessageStructureValidationV2;
+import gov.nist.healthcare.core.validation.message.structure.v2.SegmentSequenceAutomaton;
 import gov.nist.healthcare.core.validation.message.v2.MessageFailureV2;
 import gov.nist.healthcare.validation.AssertionTypeV2Constants;
 import gov.nist.healthcare.validation.ErrorSeverityConstants;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.namespace.QName;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import org.apache.xmlbeans.SchemaTypeLoader;
-import org.apache.xmlbeans.XmlBeans;
-import org.apache.xmlbeans.XmlCursor;
-import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
-import org.apache.xmlbeans.XmlOptions;
-import org.apache.xmlbeans.XmlValidationError;
 
 /**
  * This class validates the message structure of an Er7 V2 message.
+ * <p>
+ * The lines of the message are read once, in checkBasic: each line is
+ * checked, and its segment is given to the segment sequence automaton and to
+ * the finite state machine at the same time. checkMessageStructure and
+ * mapAndCheckElements then use the result of this traversal.
+ * <p>
+ * The segments are checked on the element tree built by the Er7Message
+ * (ESegment, EField, EComponent) instead of splitting the strings again. The
+ * number of elements is counted as String.split counts them: the trailing
+ * empty elements are ignored.
  * 
  * @author Sydney Henrard (NIST)
  */
 public class MessageStructureValidationV2Er7 extends
         MessageStructureValidationV2 {
 
+    private static final Pattern SEGMENT_LINE = Pattern.compile("^[A-Z0-9]{3}(\\|.*)*$");
+
+    private Er7Message er7;
     private Map<XmlObject, ArrayList<Integer>> profileMapping;
-    private Map<Integer, String> er7Mapping;
+    /* The segment sequence failures found by the traversal */
+    private List<MessageFailureV2> sequenceFailures;
     private Map<String, Integer> segInstances;
     private int lineNumber;
     private String locSegName;
@@ -66,7 +71,8 @@ public class MessageStructureValidationV2Er7 extends
 
     @Override
     protected void checkBasic() throws MessageValidationException {
-        setEr7Mapping();
+        er7 = (Er7Message) message;
+        traverse();
 
         locSegName = "MSH";
         locSegInstanceNumber = 1;
@@ -209,36 +215,59 @@ public class MessageStructureValidationV2Er7 extends
     }
 
     /**
-     * Set the ER7 mapping : line number - ER7 segment.
+     * Read the lines of the message once. The invalid lines are reported; the
+     * segment sequence is checked and the segments are mapped with the
+     * profile.
      * 
      * @throws MessageValidationException
      */
-    private void setEr7Mapping() throws MessageValidationException {
-        BufferedReader er7 = null;
-        er7Mapping = new HashMap<Integer, String>();
-        er7 = new BufferedReader(new StringReader(message.getMessageAsString()));
-        String tmp;
-        int lineNr = 0;
-        try {
-            while (((tmp = er7.readLine()) != null)) {
-                lineNr++;
-                if (!tmp.matches("^[A-Z0-9]{3}(\\|.*)*$")) {
-                    MessageFailureV2 mf = new MessageFailureV2(
-                            message.getEncoding());
-                    StringBuffer sb = new StringBuffer();
-                    sb.delete(0, sb.length());
-                    sb.append("The line '").append(tmp).append(
-                            "' is not a valid segment");
-                    mf.setDescription(sb.toString());
-                    mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
-                    mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
+    private void traverse() throws MessageValidationException {
+        SegmentSequenceAutomaton automaton = SegmentSequenceAutomaton.getInstance(profile);
+        SegmentSequenceAutomaton.Run run = automaton.start();
+        FiniteStateMachine.LineMapper mapper = FiniteStateMachine.getInstance(
+                profile, false).newLineMapper();
+        sequenceFailures = new ArrayList<MessageFailureV2>();
+        String fieldSep = er7.getFieldSeparatorChar();
+        Map<String, Integer> instances = new HashMap<String, Integer>();
+        int lineCount = er7.getLineCount();
+        for (int lineNr = 1; lineNr <= lineCount; lineNr++) {
+            String line = er7.getSegmentLine(lineNr);
+            if (!SEGMENT_LINE.matcher(line).matches()) {
+                MessageFailureV2 mf = new MessageFailureV2(
+                        message.getEncoding());
+                StringBuffer sb = new StringBuffer();
+                sb.append("The line '").append(line).append(
+                        "' is not a valid segment");
+                mf.setDescription(sb.toString());
+                mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
+                mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
+                mf.setLine(lineNr);
+                mf.setColumn(1);
+                messageFailures.add(mf);
+            }
+            String segName = getSegmentName(line, fieldSep);
+            if (segName != null && !segName.startsWith("Z")) {
+                Integer instance = instances.get(segName);
+                instance = instance == null ? 1 : instance + 1;
+                instances.put(segName, instance);
+                List<String> expected = run.next(segName);
+                if (expected != null) {
+                    MessageFailureV2 mf = getStructureFailure(segName,
+                            expected, automaton.getMessageStructureID());
                     mf.setLine(lineNr);
-                    mf.setColumn(1);
-                    // mf.setEPath(getCurrentLocation().toString());
-                    messageFailures.add(mf);
+                    mf.setPath(new MessageLocation(segName, instance).toString());
+                    sequenceFailures.add(mf);
                 }
-                er7Mapping.put(lineNr, tmp);
             }
+            mapper.next(line, lineNr);
+        }
+        List<String> expected = run.end();
+        if (expected != null) {
+            sequenceFailures.add(getStructureFailure(null, expected,
+                    automaton.getMessageStructureID()));
+        }
+        try {
+            profileMapping = mapper.getMapping(er7);
         } catch (IOException e) {
             throw new MessageValidationException(e.getMessage());
         }
@@ -275,82 +304,7 @@ public class MessageStructureValidationV2Er7 extends
     @Override
     protected void checkMessageStructure() throws MessageValidationException {
         boolean messageStructureFailure = false;
-        try {
-            // Create a pseudo XML message
-            XmlObject pseudoMessage = XmlObject.Factory.newInstance();
-            XmlCursor pmCursor = pseudoMessage.newCursor();
-            pmCursor.toNextToken();
-            pmCursor.beginElement(profile.getMessageStructureID(),
-                    "urn:hl7-org:v2xml");
-            BufferedReader br = new BufferedReader(new StringReader(
-                    message.getMessageAsString()));
-            String line = null;
-            while ((line = br.readLine()) != null) {
-                if (!line.matches("\\s*")) {
-                    String fieldSep = ((Er7Message) message).getFieldSeparatorChar();
-                    try {
-                        int idx = line.indexOf(fieldSep);
-                        if (idx == -1 && line.length() <= 3) {
-                            idx = 3;
-                        }
-                        line = line.substring(0, idx);
-                        if (!line.startsWith("Z")) {
-                            pmCursor.beginElement(line, "urn:hl7-org:v2xml");
-                            pmCursor.toNextToken();
-                        }
-                    } catch (StringIndexOutOfBoundsException e) {
-                        if (line.length() > 3) {
-                            System.out.println(line);
-                        }
-                    }
-                }
-            }
-            pmCursor.dispose();
-
-            // Create a schema
-            StreamSource xsltStream = new StreamSource(
-                    MessageStructureValidationV2Er7.class.getClassLoader().getResourceAsStream(
-                            MessageValidationConstants.XSLT_CHECK_STRUCTURE));
-            Transformer t = TransformerFactory.newInstance().newTransformer(
-                    xsltStream);
-            t.setParameter("groups", "false");
-            t.setParameter("xml", "false");
-
-            StreamSource src = new StreamSource(
-                    profile.getDocument().newInputStream());
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            t.transform(src, new StreamResult(out));
-            XmlObject schemaDoc = XmlObject.Factory.parse(
-                    new ByteArrayInputStream(out.toByteArray()),
-                    (new XmlOptions()).setLoadLineNumbers());
-            // pseudoMessage.save(new File("tmp/mu/PseudoMessage.xml"));
-            // schemaDoc.save(new File("tmp/mu/Schema.xsd"));
-            // Load the schema
-            SchemaTypeLoader sLoader = null;
-            Collection<Object> compErrors = new ArrayList<Object>();
-            XmlOptions schemaOptions = new XmlOptions();
-            schemaOptions.setErrorListener(compErrors);
-            XmlObject[] schemas = new XmlObject[1];
-
-            schemas[0] = schemaDoc;
-            sLoader = XmlBeans.compileXsd(schemas, sLoader, schemaOptions);
-
-            // Load the Message
-            XmlObject xobj = sLoader.parse(pseudoMessage.toString(), null,
-                    (new XmlOptions()).setLoadLineNumbers());
-
-            // Validate the Message against the schema
-            Collection<XmlValidationError> errors = new ArrayList<XmlValidationError>();
-            xobj.validate(new XmlOptions().setErrorListener(errors));
-            Iterator<XmlValidationError> it = errors.iterator();
-            while (it.hasNext()) {
-                XmlValidationError xve = it.next();
-                messageFailures.add(interpretSchemaError(xve));
-                messageStructureFailure = true;
-            }
-        } catch (XmlException xmle) {
-            // This type of exception is thrown when the generated schema is
-            // ambiguous
+        if (SegmentSequenceAutomaton.getInstance(profile).isAmbiguous()) {
             MessageFailureV2 mf = new MessageFailureV2(message.getEncoding());
             mf.setDescription("The message validation can't be performed because the profile is ambiguous."
                     + " Possible reasons for this problem include an ambiguous message definition"
@@ -361,112 +315,87 @@ public class MessageStructureValidationV2Er7 extends
             mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
             mf.setFailureType(AssertionTypeV2Constants.AMBIGUOUS_PROFILE);
             messageFailures.add(mf);
-        } catch (Exception e) {
-            throw new MessageValidationException(e.getMessage());
-        } finally {
-            if (!messageStructureFailure) {
-                MessageFailureV2 mf = new MessageFailureV2(
-                        message.getEncoding());
-                mf.setDescription("The message structure at the segment level is correct.");
-                mf.setFailureSeverity(ErrorSeverityConstants.NORMAL);
-                mf.setFailureType(AssertionTypeV2Constants.CHECKED);
+        } else {
+            // The segment sequence has been checked by the traversal
+            for (MessageFailureV2 mf : sequenceFailures) {
                 messageFailures.add(mf);
+                messageStructureFailure = true;
             }
         }
+        if (!messageStructureFailure) {
+            MessageFailureV2 mf = new MessageFailureV2(message.getEncoding());
+            mf.setDescription("The message structure at the segment level is correct.");
+            mf.setFailureSeverity(ErrorSeverityConstants.NORMAL);
+            mf.setFailureType(AssertionTypeV2Constants.CHECKED);
+            messageFailures.add(mf);
+        }
     }
 
     /**
-     * Interpret XML Schemas errors.
+     * Get the segment name of a line.
      * 
-     * @param xve
-     *        anXmlValidationError
-     * @return a MessageFailure
+     * @param line
+     * @param fieldSep
+     *        the field separator
+     * @return the segment name; null if the line is empty or if it has no
+     *         segment name
      */
-    private MessageFailureV2 interpretSchemaError(XmlValidationError xve) {
-        MessageFailureV2 mf = new MessageFailureV2(message.getEncoding());
-        String errorMessage = xve.getMessage();
-
-        if (errorMessage.startsWith("Expected elements")) {
-            Pattern pattern1 = Pattern.compile("Expected elements '(.+)' instead of '(.+)' here in element (.+)$");
-            Pattern pattern2 = Pattern.compile("Expected elements '(.+)' before the end of the content in element (.+)$");
-
-            Matcher m1 = pattern1.matcher(errorMessage);
-            Matcher m2 = pattern2.matcher(errorMessage);
-
-            if (m1.matches()) {
-                String expected = m1.group(1).replaceAll("@urn:hl7-org:v2xml",
-                        "");
-                String actual = m1.group(2).replaceAll("@urn:hl7-org:v2xml", "");
-                String position = m1.group(3).replaceAll("@urn:hl7-org:v2xml",
-                        "");
-
-                StringBuffer sb = new StringBuffer();
-                sb.append("The element '").append(actual);
-                sb.append("' does not match one of the expected elements '").append(
-                        expected);
-                sb.append("' in element '").append(position).append("'.");
-
-                mf.setDescription(sb.toString());
-                mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
-                mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
-            } else if (m2.matches()) {
-                String expected = m2.group(1).replaceAll("@urn:hl7-org:v2xml",
-                        "");
-                String position = m2.group(2).replaceAll("@urn:hl7-org:v2xml",
-                        "");
-
-                StringBuffer sb = new StringBuffer();
-                sb.append("Unexpected element before the end of the content (");
-                sb.append(position).append("); '").append(expected).append(
-                        "' expected.");
-
-                mf.setDescription(sb.toString());
-                mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
-                mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
-            } else {
-                System.err.println("Unprocessed error message: " + errorMessage);
+    private String getSegmentName(String line, String fieldSep) {
+        String segName = null;
+        if (line.trim().length() > 0) {
+            int idx = line.indexOf(fieldSep);
+            if (idx != -1) {
+                segName = line.substring(0, idx);
+            } else if (line.length() == 3) {
+                segName = line;
             }
-        } else if (errorMessage.startsWith("Expected element")) {
-            Pattern pattern1 = Pattern.compile("Expected element '(.*)' instead of '(.*)' here in element (.*)$");
-            Pattern pattern2 = Pattern.compile("Expected element '(.*)' before the end of the content in element (.*)$");
-
-            Matcher m1 = pattern1.matcher(errorMessage);
-            Matcher m2 = pattern2.matcher(errorMessage);
-
-            if (m1.matches()) {
-                StringBuffer sb = new StringBuffer();
-                String value = m1.group(1).substring(0,
-                        m1.group(1).indexOf("@"));
-                String str = m1.group(2).substring(0, m1.group(2).indexOf("@"));
-
-                sb.append("The element '").append(str).append(
-                        "' does not match the expected element '").append(value).append(
-                        "'.");
-                mf.setDescription(sb.toString());
-                mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
-                mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
-            } else if (m2.matches()) {
-                StringBuffer sb = new StringBuffer();
-                String value = m2.group(1).substring(0,
-                        m2.group(1).indexOf("@"));
-                String str = m2.group(2).substring(0, m2.group(2).indexOf("@"));
+        }
+        return segName;
+    }
 
-                sb.append("Unexpected element before the end of the content (").append(
-                        str).append("); '").append(value).append("' expected.");
-                mf.setDescription(sb.toString());
-                mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
-                mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
-            } else {
-                System.err.println("Unprocessed error message: " + errorMessage);
+    /**
+     * Create a message structure failure.
+     * 
+     * @param segName
+     *        the unexpected segment; null for the end of the message
+     * @param expected
+     *        the expected segments
+     * @param messageStructureID
+     * @return a MessageFailure
+     */
+    private MessageFailureV2 getStructureFailure(String segName,
+            List<String> expected, String messageStructureID) {
+        MessageFailureV2 mf = new MessageFailureV2(message.getEncoding());
+        StringBuffer sb = new StringBuffer();
+        for (String name : expected) {
+            if (sb.length() > 0) {
+                sb.append(" ");
             }
-        } else if (errorMessage.equalsIgnoreCase("Invalid Type")) {
-            mf.setDescription("The root element in the message is not the message structure id specified in the profile. It could also be a namespace error in the message.");
-            mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
-            mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
+            sb.append(name);
+        }
+        String expectedNames = sb.toString();
+        sb.delete(0, sb.length());
+        if (segName == null) {
+            sb.append("Unexpected element before the end of the content (");
+            sb.append(messageStructureID).append("); '").append(expectedNames).append(
+                    "' expected.");
+        } else if (expected.size() == 0) {
+            sb.append("The element '").append(segName);
+            sb.append("' is not allowed in element '").append(
+                    messageStructureID).append("'.");
+        } else if (expected.size() == 1) {
+            sb.append("The element '").append(segName).append(
+                    "' does not match the expected element '").append(
+                    expectedNames).append("'.");
         } else {
-            System.err.println("Unprocessed error message: " + errorMessage);
+            sb.append("The element '").append(segName);
+            sb.append("' does not match one of the expected elements '").append(
+                    expectedNames);
+            sb.append("' in element '").append(messageStructureID).append("'.");
         }
-
+        mf.setDescription(sb.toString());
+        mf.setFailureSeverity(ErrorSeverityConstants.FATAL);
+        mf.setFailureType(AssertionTypeV2Constants.MESSAGE_STRUCTURE);
         return mf;
     }
 
@@ -474,12 +403,7 @@ public class MessageStructureValidationV2Er7 extends
     protected void mapAndCheckElements(Profile profile)
             throws MessageValidationException {
         try {
-            /* Set profile mapping */
-            FiniteStateMachine fsm = new FiniteStateMachine(profile, false);
-            profileMapping = fsm.mapSegmentElements(profile,
-                    (Er7Message) message);
-
-            /* Parse */
+            /* The profile mapping has been set by the traversal */
             parse();
         } catch (Exception e) {
             e.printStackTrace();
@@ -491,13 +415,17 @@ public class MessageStructureValidationV2Er7 extends
      * Parse the profile to check the segments
      */
     private void parse() {
+        CompiledProfile compiledProfile = profile.getCompiledProfile();
         lineNumber = -1;
         segInstances = new HashMap<String, Integer>();
         /* Validate segments cardinalities */
         Set<XmlObject> keySet = profileMapping.keySet();
         for (XmlObject key : keySet) {
+            if (isStopped()) {
+                return;
+            }
             if (key != null) {
-                checkSegmentCardinalities(key);
+                checkSegmentCardinalities(key, compiledProfile.getNode(key));
             }
         }
         /* Reverse profileMapping */
@@ -519,12 +447,12 @@ public class MessageStructureValidationV2Er7 extends
             }
         }
         /* Validate Segment */
-        for (int idx = 0; idx < reverseProfileMapping.size(); idx++) {
+        for (int idx = 0; idx < reverseProfileMapping.size() && !isStopped(); idx++) {
             XmlObject xmlSegment = reverseProfileMapping.get(idx);
             if (xmlSegment != null) {
                 int lineNr = idx;
                 int instance = 1;
-                String segment = er7Mapping.get(lineNr);
+                String segment = er7.getSegmentLine(lineNr);
                 String segName = segment.substring(0, 3);
                 if (segInstances.containsKey(segName)) {
                     instance = segInstances.get(segName);
@@ -534,7 +462,8 @@ public class MessageStructureValidationV2Er7 extends
                 locSegName = segName;
                 locSegInstanceNumber = segInstances.get(segName);
                 lineNumber = lineNr;
-                checkSegment(xmlSegment, segment);
+                checkSegment(compiledProfile.getNode(xmlSegment),
+                        er7.getESegment(lineNr));
                 lineNumber = -1;
                 /* Reset message location */
                 locSegName = "";
@@ -552,17 +481,17 @@ public class MessageStructureValidationV2Er7 extends
      * 
      * @param segObj
      *        the Segment object
+     * @param segNode
+     *        the compiled Segment
      */
-    private void checkSegmentCardinalities(XmlObject segObj) {
-
-        XmlCursor cur = segObj.newCursor();
-        String usage = cur.getAttributeText(QName.valueOf("Usage"));
-        String segName = cur.getAttributeText(QName.valueOf("Name"));
-        if (!usage.equals("X")) {
-            String min = cur.getAttributeText(QName.valueOf("Min"));
-            String max = cur.getAttributeText(QName.valueOf("Max"));
-            if (cur.toParent()) {
-                if (cur.getName().toString().equals("SegGroup")) {
+    private void checkSegmentCardinalities(XmlObject segObj,
+            ProfileNode segNode) {
+        String segName = segNode.getName();
+        if (segNode.getUsage() != Usage.X) {
+            int min = segNode.getMin();
+            int max = segNode.getMax();
+            if (segNode.getParent() != null) {
+                if (segNode.getParent().getType() == ElementType.SEGMENT_GROUP) {
                     ArrayList<Integer> list = profileMapping.get(segObj);
                     if (list != null) {
                         Iterator<Integer> it = list.iterator();
@@ -581,8 +510,8 @@ public class MessageStructureValidationV2Er7 extends
                                 boolean b = true;
                                 int i = previous + 1;
                                 while (i < lineNr && b) {
-                                    String line = er7Mapping.get(i);
-                                    if (!line.matches("\\s*")) {
+                                    String line = er7.getSegmentLine(i);
+                                    if (!isBlank(line)) {
                                         b = false;
                                     }
                                 }
@@ -602,7 +531,7 @@ public class MessageStructureValidationV2Er7 extends
                     ArrayList<Integer> list = profileMapping.get(segObj);
                     if (list != null) {
                         int occurrences = list.size();
-                        if (occurrences < Integer.parseInt(min)) {
+                        if (occurrences < min) {
                             MessageFailureV2 mf = new MessageFailureV2(
                                     message.getEncoding());
                             mf.setFailureType(AssertionTypeV2Constants.CARDINALITY);
@@ -617,8 +546,7 @@ public class MessageStructureValidationV2Er7 extends
                             mf.setPath(getCurrentLocation().toString());
                             messageFailures.add(mf);
                         }
-                        if (!max.equals("*")
-                                && occurrences > Integer.parseInt(max)) {
+                        if (max != ProfileNode.UNBOUNDED && occurrences > max) {
                             MessageFailureV2 mf = new MessageFailureV2(
                                     message.getEncoding());
                             mf.setFailureType(AssertionTypeV2Constants.CARDINALITY);
@@ -642,22 +570,29 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check a segment
      * 
-     * @param segmentObj
-     *        the segment object (from profile)
+     * @param segmentNode
+     *        the segment (from profile)
      * @param segment
-     *        the segment string (from ER7)
+     *        the segment (from ER7)
      */
-    private void checkSegment(XmlObject segmentObj, String segment) {
+    private void checkSegment(ProfileNode segmentNode, ESegment segment) {
         locFieldInstanceNumber = -1;
-        String segmentName = segmentObj.newCursor().getAttributeText(
-                QName.valueOf("Name"));
-        String segmentUsage = segmentObj.newCursor().getAttributeText(
-                QName.valueOf("Usage"));
-        XmlObject[] fieldsObj = segmentObj.selectChildren(QName.valueOf("Field"));
-
-        if (fieldsObj.length > 0) {
-            String[] fields = segment.split(((Er7Message) message).getFieldSeparator());
-            if (fields.length - 1 > fieldsObj.length) {
+        String segmentName = segmentNode.getName();
+        Usage segmentUsage = segmentNode.getUsage();
+        int fieldCount = segmentNode.getChildCount();
+
+        if (fieldCount > 0) {
+            boolean msh = segment.getValue().startsWith("MSH");
+            /* The position of the last field which is not empty */
+            int lastField = 0;
+            for (int position = msh ? 2 : 1; segment.get(position) != null; position++) {
+                if (!isEmpty(segment.get(position))) {
+                    lastField = position;
+                }
+            }
+            /* MSH.1 is not counted */
+            int fields = msh ? Math.max(lastField - 1, 0) : lastField;
+            if (fields > fieldCount) {
                 /* Extra fields */
                 MessageFailureV2 mf = new MessageFailureV2(
                         message.getEncoding());
@@ -670,27 +605,24 @@ public class MessageStructureValidationV2Er7 extends
 
                 messageFailures.add(mf);
             } else {
-                int fieldsIdx = 1;
-                if (fields[0].equals("MSH")) {
-                    fieldsIdx = 0;
-                }
-                for (int i = 0; i < fieldsObj.length; i++, fieldsIdx++) {
-                    if (fieldsIdx == 0) {
+                for (int i = 0; i < fieldCount; i++) {
+                    if (msh && i == 0) {
                         continue;
                     }
                     locFieldPosition = i + 1;
                     locFieldInstanceNumber = 1;
                     locComponentPosition = -1;
-                    if (fieldsIdx < fields.length) {
-                        checkField(fieldsObj[i], fields[fieldsIdx]);
+                    if (i + 1 <= lastField) {
+                        checkField(segmentNode.getChild(i),
+                                segment.get(i + 1));
                     } else {
                         /* Check Usage */
-                        checkUsage(fieldsObj[i], "");
+                        checkUsage(segmentNode.getChild(i), "");
                     }
                 }
             }
             // No Fields
-            if ("R".equals(segmentUsage) && fields.length - 1 == 0) {
+            if (segmentUsage == Usage.R && fields == 0) {
                 locFieldPosition = -1;
                 StringBuffer sb = new StringBuffer();
                 MessageFailureV2 mf = new MessageFailureV2(
@@ -711,46 +643,43 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check a field
      * 
-     * @param fieldObj
-     *        the field object (from profile)
-     * @param field
-     *        the field string (from ER7)
+     * @param fieldNode
+     *        the field (from profile)
+     * @param repetitions
+     *        the field repetitions (from ER7)
      */
-    private void checkField(XmlObject fieldObj, String field) {
+    private void checkField(ProfileNode fieldNode, List<EField> repetitions) {
         fieldInstance = 1;
         locComponentPosition = -1;
-
-        XmlCursor cur = fieldObj.newCursor();
+        String field = getValue(repetitions);
 
         /* Check usage */
-        String usage = cur.getAttributeText(QName.valueOf("Usage"));
-        boolean usageError = checkUsage(fieldObj, field);
+        Usage usage = fieldNode.getUsage();
+        boolean usageError = checkUsage(fieldNode, field);
 
         if (!usageError) {
-            if (usage.equals("R") || !field.equals("")) {
-                /* Check cardinalities */
-                String min = cur.getAttributeText(QName.valueOf("Min"));
-                String max = cur.getAttributeText(QName.valueOf("Max"));
-
+            if (usage == Usage.R || !field.equals("")) {
                 if (getCurrentLocation().getSegmentName().equals("MSH")
                         && getCurrentLocation().getFieldPosition() == 2) {
                     /* MSH.2 */
-                    checkValue(fieldObj, field);
+                    checkValue(fieldNode, field);
                 } else {
 
-                    String[] repetitions = field.split(((Er7Message) message).getRepetitionSeparator());
-                    int occurences = repetitions.length;
+                    int repetitionCount = getCount(repetitions);
+                    int occurences = repetitionCount;
                     if (field.equals("")) {
                         occurences = 0;
                     }
-                    checkCardinalities(fieldObj, usage, min, max, occurences);
+                    /* Check cardinalities */
+                    checkCardinalities(fieldNode, occurences);
 
-                    XmlObject[] componentsObj = fieldObj.selectChildren(QName.valueOf("Component"));
-                    if (componentsObj.length > 0) {
-                        for (int i = 0; i < repetitions.length; i++) {
+                    int componentCount = fieldNode.getChildCount();
+                    if (componentCount > 0) {
+                        for (int i = 0; i < repetitionCount; i++) {
                             locFieldInstanceNumber = i + 1;
-                            String[] components = repetitions[i].split(((Er7Message) message).getComponentSeparator());
-                            if (components.length > componentsObj.length) {
+                            EField repetition = repetitions.get(i);
+                            int components = getCount(repetition);
+                            if (components > componentCount) {
                                 /* Extra components */
                                 MessageFailureV2 mf = new MessageFailureV2(
                                         message.getEncoding());
@@ -764,26 +693,27 @@ public class MessageStructureValidationV2Er7 extends
 
                                 messageFailures.add(mf);
                             } else {
-                                for (int j = 0; j < componentsObj.length; j++) {
+                                for (int j = 0; j < componentCount; j++) {
                                     locComponentPosition = j + 1;
                                     locSubComponentPosition = -1;
-                                    if (j < components.length) {
-                                        checkComponent(componentsObj[j],
-                                                components[j]);
+                                    if (j < components) {
+                                        checkComponent(fieldNode.getChild(j),
+                                                repetition.get(j + 1));
                                     } else {
                                         /* check Usage */
-                                        checkUsage(componentsObj[j], "");
+                                        checkUsage(fieldNode.getChild(j), "");
                                     }
                                 }
                             }
                             fieldInstance++;
                         }
                     } else {
-                        for (int i = 0; i < repetitions.length; i++) {
+                        for (int i = 0; i < repetitionCount; i++) {
                             locFieldInstanceNumber = i + 1;
-                            if (!repetitions[i].matches("\\s*")) {
+                            String value = repetitions.get(i).getValue();
+                            if (!isBlank(value)) {
                                 /* Check value */
-                                checkValue(fieldObj, repetitions[i]);
+                                checkValue(fieldNode, value);
                             }
                             fieldInstance++;
                         }
@@ -792,9 +722,8 @@ public class MessageStructureValidationV2Er7 extends
             }
         }
         // No Components
-        if ("R".equals(usage)
-                && "".equals(field)
-                && fieldObj.selectChildren(QName.valueOf("Component")).length > 0) {
+        if (usage == Usage.R && "".equals(field)
+                && fieldNode.getChildCount() > 0) {
             locComponentPosition = -1;
             StringBuffer sb = new StringBuffer();
             MessageFailureV2 mf = new MessageFailureV2(message.getEncoding());
@@ -813,23 +742,24 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check the component
      * 
-     * @param componentObj
-     *        the component object (from profile)
-     * @param component
-     *        the component string (from ER7)
+     * @param componentNode
+     *        the component (from profile)
+     * @param ecomponent
+     *        the component (from ER7)
      */
-    private void checkComponent(XmlObject componentObj, String component) {
+    private void checkComponent(ProfileNode componentNode,
+            EComponent ecomponent) {
         locSubComponentPosition = -1;
-        XmlCursor cur = componentObj.newCursor();
+        String component = ecomponent.getValue();
 
         /* Check usage */
-        String usage = cur.getAttributeText(QName.valueOf("Usage"));
-        boolean usageError = checkUsage(componentObj, component);
+        Usage usage = componentNode.getUsage();
+        boolean usageError = checkUsage(componentNode, component);
 
         if (!usageError) {
-            if (usage.equals("R") || !component.equals("")) {
-                XmlObject[] subcomponentsObj = componentObj.selectChildren(QName.valueOf("SubComponent"));
-                if (subcomponentsObj.length > 0) {
+            if (usage == Usage.R || !component.equals("")) {
+                int subcomponentCount = componentNode.getChildCount();
+                if (subcomponentCount > 0) {
                     if (((Er7Message) message).getSubComponentSeparatorChar().equals(
                             "")) {
                         MessageFailureV2 mf = new MessageFailureV2(
@@ -843,8 +773,8 @@ public class MessageStructureValidationV2Er7 extends
 
                         messageFailures.add(mf);
                     } else {
-                        String[] subcomponents = component.split(((Er7Message) message).getSubComponentSeparator());
-                        if (subcomponents.length > subcomponentsObj.length) {
+                        int subcomponents = getCount(ecomponent);
+                        if (subcomponents > subcomponentCount) {
                             /* Extra subcomponents */
                             MessageFailureV2 mf = new MessageFailureV2(
                                     message.getEncoding());
@@ -858,29 +788,29 @@ public class MessageStructureValidationV2Er7 extends
 
                             messageFailures.add(mf);
                         } else {
-                            for (int i = 0; i < subcomponentsObj.length; i++) {
+                            for (int i = 0; i < subcomponentCount; i++) {
                                 locSubComponentPosition = i + 1;
                                 // mLocation.setSubcompNumber(i + 1);
-                                if (i < subcomponents.length) {
-                                    checkSubComponent(subcomponentsObj[i],
-                                            subcomponents[i]);
+                                if (i < subcomponents) {
+                                    checkSubComponent(
+                                            componentNode.getChild(i),
+                                            ecomponent.get(i + 1).getValue());
                                 } else {
                                     /* Check Usage */
-                                    checkUsage(subcomponentsObj[i], "");
+                                    checkUsage(componentNode.getChild(i), "");
                                 }
                             }
                         }
                     }
                 } else {
                     /* Check value */
-                    checkValue(componentObj, component);
+                    checkValue(componentNode, component);
                 }
             }
         }
         // No SubComponents
-        if ("R".equals(usage)
-                && "".equals(component)
-                && componentObj.selectChildren(QName.valueOf("SubComponent")).length > 0) {
+        if (usage == Usage.R && "".equals(component)
+                && componentNode.getChildCount() > 0) {
             locSubComponentPosition = -1;
             StringBuffer sb = new StringBuffer();
             MessageFailureV2 mf = new MessageFailureV2(message.getEncoding());
@@ -899,22 +829,21 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check the subcomponent
      * 
-     * @param subcomponentObj
-     *        the subcomponent object (from profile)
+     * @param subcomponentNode
+     *        the subcomponent (from profile)
      * @param subcomponent
      *        the subcomponent string (from ER7)
      */
-    private void checkSubComponent(XmlObject subcomponentObj,
+    private void checkSubComponent(ProfileNode subcomponentNode,
             String subcomponent) {
-        XmlCursor cur = subcomponentObj.newCursor();
         /* Check usage */
-        String usage = cur.getAttributeText(QName.valueOf("Usage"));
-        boolean usageError = checkUsage(subcomponentObj, subcomponent);
+        Usage usage = subcomponentNode.getUsage();
+        boolean usageError = checkUsage(subcomponentNode, subcomponent);
 
         if (!usageError) {
-            if (usage.equals("R") || !subcomponent.equals("")) {
+            if (usage == Usage.R || !subcomponent.equals("")) {
                 /* Check value */
-                checkValue(subcomponentObj, subcomponent);
+                checkValue(subcomponentNode, subcomponent);
             }
         }
     }
@@ -922,18 +851,18 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check the element usage
      * 
-     * @param usage
-     *        the usage
+     * @param node
+     *        the element (from profile)
      * @param value
      *        the value
      * @return true if there is a usage error; false otherwise
      */
-    private boolean checkUsage(XmlObject obj, String value) {
+    private boolean checkUsage(ProfileNode node, String value) {
         boolean usageError = false;
         MessageFailureV2 mf = null;
-        String usage = obj.newCursor().getAttributeText(QName.valueOf("Usage"));
+        Usage usage = node.getUsage();
 
-        if (usage.equals("R") && value.matches("\\s*")) {
+        if (usage == Usage.R && isBlank(value)) {
             /* A required element is empty */
             mf = new MessageFailureV2(message.getEncoding());
             mf.setFailureType(AssertionTypeV2Constants.USAGE);
@@ -944,7 +873,7 @@ public class MessageStructureValidationV2Er7 extends
             mf.setPath(getCurrentLocation().toString());
             messageFailures.add(mf);
             usageError = true;
-        } else if (usage.equals("X") && value.matches(".+")) {
+        } else if (usage == Usage.X && hasValue(value)) {
             /* A X element has a value */
             mf = new MessageFailureV2(message.getEncoding());
             mf.setFailureType(AssertionTypeV2Constants.X_USAGE);
@@ -963,30 +892,27 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check a value
      * 
-     * @param obj
-     *        the object associated (from profile)
+     * @param node
+     *        the element associated (from profile)
      * @param value
      *        the value from ER7
      */
-    private void checkValue(XmlObject obj, String value) {
-
-        XmlCursor cur = obj.newCursor();
+    private void checkValue(ProfileNode node, String value) {
 
         /* Check X usage */
-        String usage = cur.getAttributeText(QName.valueOf("Usage"));
-        if (!usage.equals("X")) {
-            if (!(usage.equals("O") && value.equals(""))) {
+        Usage usage = node.getUsage();
+        if (usage != Usage.X) {
+            if (!(usage == Usage.O && value.equals(""))) {
                 /* Check extra separators */
                 if (getCurrentLocation().getSegmentName().equals("MSH")
                         && getCurrentLocation().getFieldPosition() == 2) {
                     /* MSH.2 */
-                    checkSeparators(obj, value);
+                    checkSeparators(value);
                 }
                 /* Check length */
-                String maxLength = cur.getAttributeText(QName.valueOf("Length"));
-                if (maxLength != null) {
-                    MessageFailureV2 mf = checkLength(value,
-                            Integer.parseInt(maxLength));
+                int maxLength = node.getLength();
+                if (maxLength != ProfileNode.NOT_SPECIFIED) {
+                    MessageFailureV2 mf = checkLength(value, maxLength);
                     if (mf != null) {
                         mf.setLine(lineNumber);
                         mf.setColumn(((Er7Message) inputMessage).getColumn(getCurrentLocation()));
@@ -996,7 +922,7 @@ public class MessageStructureValidationV2Er7 extends
                     }
                 }
                 /* Check table */
-                String table = cur.getAttributeText(QName.valueOf("Table"));
+                String table = node.getTable();
                 if (table != null) {
                     MessageFailureV2 mf = checkTable(value, table);
                     if (mf != null) {
@@ -1008,7 +934,7 @@ public class MessageStructureValidationV2Er7 extends
                     }
                 }
                 /* Check constant value */
-                String constant = cur.getAttributeText(QName.valueOf("ConstantValue"));
+                String constant = node.getConstantValue();
                 if (constant != null) {
                     MessageFailureV2 mf = checkConstant(value, constant);
                     if (mf != null) {
@@ -1020,7 +946,7 @@ public class MessageStructureValidationV2Er7 extends
                     }
                 }
                 /* Check datatype */
-                String datatype = cur.getAttributeText(QName.valueOf("Datatype"));
+                String datatype = node.getDatatype();
                 MessageFailureV2 mf = checkDatatype(value, datatype);
                 if (mf != null) {
                     mf.setLine(lineNumber);
@@ -1036,25 +962,20 @@ public class MessageStructureValidationV2Er7 extends
     /**
      * Check the cardinalities of an element
      * 
-     * @param fieldObj
-     * @param usage
-     *        the usage
-     * @param min
-     *        the minimum
-     * @param max
-     *        the maximum
+     * @param fieldNode
+     *        the field (from profile)
      * @param occurrences
      *        number of occurences of the element
      */
-    private void checkCardinalities(XmlObject fieldObj, String usage,
-            String min, String max, int occurrences) {
+    private void checkCardinalities(ProfileNode fieldNode, int occurrences) {
 
         MessageFailureV2 mf = null;
+        Usage usage = fieldNode.getUsage();
 
-        if (!usage.equals("X")) {
-            int minimum = Integer.parseInt(min);
+        if (usage != Usage.X) {
+            int minimum = fieldNode.getMin();
             if (occurrences < minimum) {
-                if (!(usage.equals("RE") && occurrences == 0)) {
+                if (!(usage == Usage.RE && occurrences == 0)) {
                     mf = new MessageFailureV2(message.getEncoding());
                     mf.setFailureType(AssertionTypeV2Constants.CARDINALITY);
                     mf.setFailureSeverity(ErrorSeverityConstants.NORMAL);
@@ -1069,8 +990,8 @@ public class MessageStructureValidationV2Er7 extends
                     messageFailures.add(mf);
                 }
             }
-            if (!max.equals("*")) {
-                int maximum = Integer.parseInt(max);
+            if (!fieldNode.isUnbounded()) {
+                int maximum = fieldNode.getMax();
                 if (occurrences > maximum) {
                     mf = new MessageFailureV2(message.getEncoding());
                     mf.setFailureType(AssertionTypeV2Constants.CARDINALITY);
@@ -1095,7 +1016,7 @@ public class MessageStructureValidationV2Er7 extends
      * @param value
      *        the value
      */
-    private void checkSeparators(XmlObject obj, String value) {
+    private void checkSeparators(String value) {
 
         MessageFailureV2 mf = null;
 
@@ -1127,4 +1048,117 @@ public class MessageStructureValidationV2Er7 extends
         }
     }
 
+    /**
+     * Get the value of a field with all its repetitions.
+     * 
+     * @param repetitions
+     *        the field repetitions
+     * @return the field string
+     */
+    private String getValue(List<EField> repetitions) {
+        if (repetitions.size() == 1) {
+            return repetitions.get(0).getValue();
+        }
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < repetitions.size(); i++) {
+            if (i > 0) {
+                sb.append(er7.getRepetitionSeparatorChar());
+            }
+            sb.append(repetitions.get(i).getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return true if the field is empty (no value and no repetition
+     * separator).
+     */
+    private static boolean isEmpty(List<EField> repetitions) {
+        return repetitions.size() == 1
+                && repetitions.get(0).getValue().length() == 0;
+    }
+
+    /**
+     * Get the number of repetitions of a field as String.split counts them:
+     * the trailing empty repetitions are ignored, and an empty field has one
+     * repetition.
+     */
+    private static int getCount(List<EField> repetitions) {
+        if (isEmpty(repetitions)) {
+            return 1;
+        }
+        int count = 0;
+        for (int i = 0; i < repetitions.size(); i++) {
+            if (repetitions.get(i).getValue().length() > 0) {
+                count = i + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of components of a field repetition as String.split
+     * counts them.
+     */
+    private static int getCount(EField field) {
+        if (field.getValue().length() == 0) {
+            return 1;
+        }
+        int count = 0;
+        for (int i = 1; field.get(i) != null; i++) {
+            if (field.get(i).getValue().length() > 0) {
+                count = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of subcomponents of a component as String.split counts
+     * them.
+     */
+    private static int getCount(EComponent component) {
+        if (component.getValue().length() == 0) {
+            return 1;
+        }
+        int count = 0;
+        for (int i = 1; component.get(i) != null; i++) {
+            if (component.get(i).getValue().length() > 0) {
+                count = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return true if the value only contains whitespaces (\s*).
+     */
+    private static boolean isBlank(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B'
+                    && c != '\f' && c != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the value is not empty and has no line terminator (.+).
+     */
+    private static boolean hasValue(String value) {
+        if (value.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                    || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
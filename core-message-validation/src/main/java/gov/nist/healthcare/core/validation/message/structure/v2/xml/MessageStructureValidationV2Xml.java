@@ -10,33 +10,29 @@ package gov.nist.healthcare.core.validation.message.structure.v2.xml;
 
 import gov.nist.healthcare.core.Constants.ElementType;
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
+import gov.nist.healthcare.core.profile.CompiledProfile;
 import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileNode;
 import gov.nist.healthcare.core.validation.message.MessageFailure;
 import gov.nist.healthcare.core.validation.message.MessageValidationConstants;
 import gov.nist.healthcare.core.validation.message.MessageValidationConstants.ValidationState;
 import gov.nist.healthcare.core.validation.message.MessageValidationException;
 import gov.nist.healthcare.core.validation.message.structure.v2.FiniteStateMachine;
+import gov.nist.healthcare.core.validation.message.structure.v2.MessageStructureSchema;
 import gov.nist.healthcare.core.validation.message.structure.v2.MessageStructureValidationV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageFailureV2;
 import gov.nist.healthcare.validation.AssertionTypeV2Constants;
 import gov.nist.healthcare.validation.ErrorSeverityConstants;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.namespace.QName;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 import org.apache.xmlbeans.SchemaTypeLoader;
-import org.apache.xmlbeans.XmlBeans;
 import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlLineNumber;
@@ -52,7 +48,8 @@ import org.apache.xmlbeans.XmlValidationError;
 public class MessageStructureValidationV2Xml extends
         MessageStructureValidationV2 {
 
-    private List<ProfileContext> alPC;
+    private Map<XmlObject, ProfileContext> alPC;
+    private CompiledProfile compiledProfile;
     private List<MessageContext> alMC;
     private boolean err = false;
     private List<ProfileMessageLink> alTmp;
@@ -283,41 +280,14 @@ public class MessageStructureValidationV2Xml extends
     protected void checkMessageStructure() throws MessageValidationException {
         boolean messageStructureFailure = false;
         try {
-            // Create a schema
-            StreamSource xsltStream = new StreamSource(
-                    MessageStructureValidationV2Xml.class.getClassLoader().getResourceAsStream(
-                            MessageValidationConstants.XSLT_CHECK_STRUCTURE));
-            Transformer t = TransformerFactory.newInstance().newTransformer(
-                    xsltStream);
-            XmlObject[] rs = profile.getDocument().selectPath(
-                    "//SegGroup[@Name]");
-            if (rs.length > 0) {
-                // if (message.hasGroups()) {
-                t.setParameter("groups", "true");
-            } else {
-                t.setParameter("groups", "false");
-            }
-            t.setParameter("xml", "true");
-            StreamSource src = new StreamSource(
-                    profile.getDocument().newInputStream());
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            t.transform(src, new StreamResult(out));
-            XmlObject schemaDoc = XmlObject.Factory.parse(
-                    new ByteArrayInputStream(out.toByteArray()),
-                    (new XmlOptions()).setLoadLineNumbers());
-
-            // Load the schema
-            SchemaTypeLoader sLoader = null;
-            Collection<Object> compErrors = new ArrayList<Object>();
-            XmlOptions schemaOptions = new XmlOptions();
-            schemaOptions.setErrorListener(compErrors);
-            XmlObject[] schemas = new XmlObject[1];
-            schemas[0] = schemaDoc;
-            sLoader = XmlBeans.compileXsd(schemas, sLoader, schemaOptions);
+            // Get the schema
+            SchemaTypeLoader sLoader = MessageStructureSchema.getSchemaTypeLoader(
+                    profile, MessageStructureSchema.hasSegmentGroups(profile),
+                    true);
 
             // Remove all Z-Segments
             XmlMessage messageWithoutZSegment = (XmlMessage) ((XmlMessage) message).clone();
-            rs = messageWithoutZSegment.getDocument().selectPath(
+            XmlObject[] rs = messageWithoutZSegment.getDocument().selectPath(
                     "//*[starts-with(name(), 'Z')]");
             for (int i = rs.length - 1; i >= 0; i--) {
                 XmlObject zSegment = rs[i];
@@ -492,20 +462,21 @@ public class MessageStructureValidationV2Xml extends
     protected void mapAndCheckElements(Profile profile)
             throws MessageValidationException {
         try {
-            FiniteStateMachine fsm = new FiniteStateMachine(profile,
+            FiniteStateMachine fsm = FiniteStateMachine.getInstance(profile,
                     message.hasGroups());
             HashMap<XmlObject, ArrayList<XmlObject>> hMap = fsm.mapSegmentElements(
                     profile, (XmlMessage) message);
+            compiledProfile = profile.getCompiledProfile();
 
             alTmp = new ArrayList<ProfileMessageLink>();
             Iterator<XmlObject> itXmlObj = hMap.keySet().iterator();
-            while (itXmlObj.hasNext()) {
+            while (itXmlObj.hasNext() && !isStopped()) {
                 XmlObject pObj = itXmlObj.next();
                 ArrayList<XmlObject> mObj = hMap.get(pObj);
                 XmlCursor pCursor = pObj.newCursor();
-                alPC = new ArrayList<ProfileContext>();
+                alPC = new HashMap<XmlObject, ProfileContext>();
                 alMC = new ArrayList<MessageContext>();
-                for (int i = 0; i < mObj.size(); i++) {
+                for (int i = 0; i < mObj.size() && !isStopped(); i++) {
                     XmlCursor mCursor = mObj.get(i).newCursor();
                     // System.out.println("checkElements "
                     // + mCursor.getName().getLocalPart());
@@ -1164,64 +1135,55 @@ public class MessageStructureValidationV2Xml extends
                 && !pCursor.getName().getLocalPart().equals(
                         "HL7v2xConformanceProfile")
                 && !pCursor.getName().getLocalPart().equals("HL7v2xStaticDef")) {
-            pc = new ProfileContext(pCursor.getObject());
+            XmlObject pObj = pCursor.getObject();
             // Check if a ProfileContext already exists
-            int idx = alPC.indexOf(pc);
-            if (idx == -1) {
+            pc = alPC.get(pObj);
+            if (pc == null) {
+                pc = new ProfileContext(pObj);
                 pc.setCurrent(0);
                 pc.setMessageInstance(0);
-                // Min and Max
-                String type = pCursor.getName().getLocalPart();
-                int min = -1, max = -1;
-                if (type.equals("Component") || type.equals("SubComponent")) {
-                    min = 1;
-                    max = 1;
-                } else if (type.equals("SegGroup") || type.equals("Segment")
-                        || type.equals("Field")) {
-                    min = Integer.parseInt(pCursor.getAttributeText(QName.valueOf("Min")));
-                    String sMax = pCursor.getAttributeText(QName.valueOf("Max"));
-                    max = 1000;
-                    if (!sMax.equals("*")) {
-                        max = Integer.parseInt(sMax);
+                ProfileNode node = compiledProfile.getNode(pObj);
+                if (node != null) {
+                    // Min and Max
+                    ElementType type = node.getType();
+                    int min = -1, max = -1;
+                    if (type == ElementType.COMPONENT
+                            || type == ElementType.SUBCOMPONENT) {
+                        min = 1;
+                        max = 1;
+                    } else {
+                        min = node.getMin();
+                        max = 1000;
+                        if (!node.isUnbounded()) {
+                            max = node.getMax();
+                        }
                     }
+                    pc.setMin(min);
+                    pc.setMax(max);
+                    // Usage
+                    pc.setUsage(node.getUsage() == null ? null
+                            : node.getUsage().name());
+                    // Table
+                    pc.setTable(node.getTable());
+                    // Max Length
+                    if (node.getLength() != ProfileNode.NOT_SPECIFIED) {
+                        pc.setMaxLength(node.getLength());
+                    }
+                    // Datatype
+                    pc.setDatatype(node.getDatatype());
+                    // Constant
+                    pc.setConstant(node.getConstantValue());
+                    // Is it a primitive element?
+                    pc.setPrimitive(node.isPrimitive());
+                } else {
+                    // Not a structure element
+                    pc.setMin(-1);
+                    pc.setMax(-1);
+                    pc.setPrimitive(true);
                 }
-                pc.setMin(min);
-                pc.setMax(max);
-                // Usage
-                pc.setUsage(pCursor.getAttributeText(QName.valueOf("Usage")));
-                // Table
-                pc.setTable(pCursor.getAttributeText(QName.valueOf("Table")));
-                // Max Length
-                String length = pCursor.getAttributeText(QName.valueOf("Length"));
-                if (length != null) {
-                    pc.setMaxLength(Integer.parseInt(length));
-                }
-                // Datatype
-                pc.setDatatype(pCursor.getAttributeText(QName.valueOf("Datatype")));
-                // Constant
-                pc.setConstant(pCursor.getAttributeText(QName.valueOf("ConstantValue")));
-                // Is it a primitive element?
-                pCursor.push();
-                String nextChild = null;
-                if (type.equals("SegGroup")) {
-                    nextChild = "Segment";
-                } else if (type.equals("Segment")) {
-                    nextChild = "Field";
-                } else if (type.equals("Field")) {
-                    nextChild = "Component";
-                } else if (type.equals("Component")) {
-                    nextChild = "SubComponent";
-                } else if (type.equals("SubComponent")) {
-                    nextChild = "NotPossible";
-                }
-                boolean primitive = !pCursor.toChild(nextChild);
-                pCursor.pop();
-                pc.setPrimitive(primitive);
                 // Message Name, the get method also set the message name
                 pc.getNameInMessage(profile.getHl7VersionAsString());
-                alPC.add(pc);
-            } else {
-                pc = alPC.get(idx);
+                alPC.put(pObj, pc);
             }
         }
         return pc;
@@ -0,0 +1,511 @@
+/*
+ * NIST Healthcare Core
+ * CodeTableStore.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.data.TableLibraryDocument;
+import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition;
+import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition.TableElement;
+import gov.nist.healthcare.data.TableType;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a table library stored in a compact binary file which is
+ * memory-mapped: the codes stay out of the heap and are looked up by binary
+ * search. It is meant for the large user tables (lab compendia, LOINC
+ * subsets, ...) which are too heavy as a TableLibraryDocument. A store is
+ * created from a TableLibraryDocument with write and used with open. A store
+ * can also be created in memory with create.
+ * <p>
+ * File format (big endian): the magic number, the format version, the
+ * library name, the number of tables and for each table its id, version,
+ * type, number of codes, flags and the offsets of two arrays of entry
+ * offsets, the first sorted by code, the second sorted by case-folded code.
+ * An entry is the code followed by the display name when the table has
+ * them. A String is an unsigned short length (0xFFFF for null) followed by
+ * the UTF-8 bytes. The file can't be larger than 2 GB.
+ * <p>
+ * A store is immutable and can be used by several threads.
+ */
+public final class CodeTableStore {
+
+    private static final int MAGIC = 0x4E435453;
+    private static final int FORMAT_VERSION = 1;
+    private static final int NULL_LENGTH = 0xFFFF;
+    private static final int FLAG_DISPLAY_NAMES = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final String name;
+    private final List<CodeTable> tables;
+    private final Map<String, List<CodeTable>> tablesById;
+
+    /**
+     * Open a store. The file is mapped in memory; it must not be modified
+     * while the store is used.
+     *
+     * @param file
+     * @return the store
+     * @throws IOException
+     *         if the file can't be read or is not a store
+     */
+    public static CodeTableStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file " + file
+                        + " is too large to be a code table store.");
+            }
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return new CodeTableStore(buffer);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("The file " + file + " is truncated.");
+            }
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param buffer
+     * @throws IOException
+     */
+    private CodeTableStore(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        ByteBuffer in = buffer.duplicate();
+        if (in.getInt() != MAGIC) {
+            throw new IOException("The file is not a code table store.");
+        }
+        int formatVersion = in.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("The code table store format "
+                    + formatVersion + " is not supported.");
+        }
+        name = readString(in);
+        int count = in.getInt();
+        List<CodeTable> l = new ArrayList<CodeTable>(count);
+        Map<String, List<CodeTable>> byId = new HashMap<String, List<CodeTable>>();
+        for (int i = 0; i < count; i++) {
+            CodeTable table = new CodeTable(readString(in), readString(in),
+                    readString(in), in.getInt(), in.get(), in.getInt(),
+                    in.getInt());
+            l.add(table);
+            List<CodeTable> same = byId.get(table.id);
+            if (same == null) {
+                same = new ArrayList<CodeTable>(1);
+                byId.put(table.id, same);
+            }
+            same.add(table);
+        }
+        tables = Collections.unmodifiableList(l);
+        tablesById = byId;
+    }
+
+    /**
+     * Get the name of the library.
+     *
+     * @return the library name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the tables in the order of the library.
+     *
+     * @return the tables
+     */
+    public List<CodeTable> getTables() {
+        return tables;
+    }
+
+    /**
+     * Get the first table with an id.
+     *
+     * @param tableId
+     * @return the table; null if the table is not found
+     */
+    public CodeTable getTable(String tableId) {
+        List<CodeTable> l = tablesById.get(tableId);
+        return l == null ? null : l.get(0);
+    }
+
+    /**
+     * Get the tables with an id and a version.
+     *
+     * @param tableId
+     * @param tableVersion
+     *        the version; null or empty to get all the versions
+     * @return the tables in the order of the library (can be empty)
+     */
+    public List<CodeTable> getTables(String tableId, String tableVersion) {
+        List<CodeTable> l = tablesById.get(tableId);
+        if (l == null) {
+            return Collections.emptyList();
+        }
+        if (tableVersion == null || "".equals(tableVersion)) {
+            return Collections.unmodifiableList(l);
+        }
+        List<CodeTable> rs = new ArrayList<CodeTable>(1);
+        for (CodeTable table : l) {
+            if (tableVersion.equals(table.version)) {
+                rs.add(table);
+            }
+        }
+        return rs;
+    }
+
+    /**
+     * Convert a table library into a store. The null and duplicate codes are
+     * skipped; for a duplicate code, the first display name is kept.
+     *
+     * @param library
+     * @param file
+     *        the store file
+     * @param displayNames
+     *        true to keep the display names
+     * @throws IOException
+     */
+    public static void write(TableLibraryDocument library, File file,
+            boolean displayNames) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            write(library, os, displayNames);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Convert a table library into a store kept in memory (see write).
+     *
+     * @param library
+     * @param displayNames
+     *        true to keep the display names
+     * @return the store
+     * @throws IOException
+     */
+    public static CodeTableStore create(TableLibraryDocument library,
+            boolean displayNames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(library, bytes, displayNames);
+        return new CodeTableStore(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Write a table library as a store. The stream is not closed.
+     */
+    private static void write(TableLibraryDocument library, OutputStream os,
+            boolean displayNames) throws IOException {
+        List<TableDefinition> tds = library.getTableLibrary().getTableDefinitionList();
+        byte[] libraryName = encode(library.getTableLibrary().getName());
+        int count = tds.size();
+        byte[][][] codes = new byte[count][][];
+        byte[][][] names = new byte[count][][];
+        int[][] folded = new int[count][];
+        for (int t = 0; t < count; t++) {
+            Map<String, String> elements = new LinkedHashMap<String, String>();
+            for (TableElement te : tds.get(t).getTableElementList()) {
+                String code = te.getCode();
+                if (code != null && !elements.containsKey(code)) {
+                    elements.put(code, te.getDisplayName());
+                }
+            }
+            final String[] sorted = elements.keySet().toArray(
+                    new String[elements.size()]);
+            Arrays.sort(sorted);
+            codes[t] = new byte[sorted.length][];
+            names[t] = new byte[sorted.length][];
+            Integer[] order = new Integer[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                codes[t][i] = encode(sorted[i]);
+                names[t][i] = displayNames ? encode(elements.get(sorted[i]))
+                        : null;
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    return TableIndex.fold(sorted[i1]).compareTo(
+                            TableIndex.fold(sorted[i2]));
+                }
+            });
+            folded[t] = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                folded[t][i] = order[i];
+            }
+        }
+        // Layout: the header size doesn't depend on the offsets
+        int[] arrayOffsets = new int[count];
+        int[][] entryOffsets = new int[count][];
+        long pos = writeHeader(new DataOutputStream(
+                new ByteArrayOutputStream()), libraryName, tds, codes,
+                arrayOffsets, displayNames);
+        for (int t = 0; t < count; t++) {
+            int n = codes[t].length;
+            arrayOffsets[t] = (int) pos;
+            pos += 8L * n;
+            entryOffsets[t] = new int[n];
+            for (int i = 0; i < n; i++) {
+                entryOffsets[t][i] = (int) pos;
+                pos += 2 + codes[t][i].length;
+                if (displayNames) {
+                    pos += 2 + (names[t][i] == null ? 0 : names[t][i].length);
+                }
+            }
+            if (pos > Integer.MAX_VALUE) {
+                throw new IOException(
+                        "The library is too large for a code table store.");
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                os));
+        writeHeader(out, libraryName, tds, codes, arrayOffsets, displayNames);
+        for (int t = 0; t < count; t++) {
+            int n = codes[t].length;
+            for (int i = 0; i < n; i++) {
+                out.writeInt(entryOffsets[t][i]);
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeInt(entryOffsets[t][folded[t][i]]);
+            }
+            for (int i = 0; i < n; i++) {
+                writeString(out, codes[t][i]);
+                if (displayNames) {
+                    writeString(out, names[t][i]);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the header of a store.
+     *
+     * @return the size of the header
+     */
+    private static long writeHeader(DataOutputStream out, byte[] libraryName,
+            List<TableDefinition> tds, byte[][][] codes, int[] arrayOffsets,
+            boolean displayNames) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, libraryName);
+        out.writeInt(tds.size());
+        for (int t = 0; t < tds.size(); t++) {
+            TableDefinition td = tds.get(t);
+            int n = codes[t].length;
+            writeString(out, encode(td.getId()));
+            writeString(out, encode(td.getVersion()));
+            writeString(out, encode(td.getType() == null ? null
+                    : td.getType().toString()));
+            out.writeInt(n);
+            out.writeByte(displayNames ? FLAG_DISPLAY_NAMES : 0);
+            out.writeInt(arrayOffsets[t]);
+            out.writeInt(arrayOffsets[t] + 4 * n);
+        }
+        out.flush();
+        return out.size();
+    }
+
+    private static byte[] encode(String s) {
+        if (s == null) {
+            return null;
+        }
+        ByteBuffer bb = UTF8.encode(s);
+        byte[] bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        if (bytes.length >= NULL_LENGTH) {
+            throw new IllegalArgumentException("The value '"
+                    + s.substring(0, 32)
+                    + "...' is too long for a code table store.");
+        }
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        if (bytes == null) {
+            out.writeShort(NULL_LENGTH);
+        } else {
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return UTF8.decode(ByteBuffer.wrap(bytes)).toString();
+    }
+
+    /**
+     * Read a String at an absolute position (the buffer position is not
+     * used, so that several threads can read the store).
+     *
+     * @param pos
+     * @return the String
+     */
+    private String readString(int pos) {
+        int length = buffer.getShort(pos) & 0xFFFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(pos + 2 + i);
+        }
+        return UTF8.decode(ByteBuffer.wrap(bytes)).toString();
+    }
+
+    /**
+     * This class is a table of a store.
+     */
+    public final class CodeTable {
+
+        private final String id;
+        private final String version;
+        private final String type;
+        private final int size;
+        private final boolean displayNames;
+        private final int codeOffsets;
+        private final int foldedOffsets;
+
+        private CodeTable(String id, String version, String type, int size,
+                byte flags, int codeOffsets, int foldedOffsets) {
+            this.id = id;
+            this.version = version;
+            this.type = type;
+            this.size = size;
+            this.displayNames = (flags & FLAG_DISPLAY_NAMES) != 0;
+            this.codeOffsets = codeOffsets;
+            this.foldedOffsets = foldedOffsets;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the type of the table.
+         *
+         * @return the type; null if it is not set
+         */
+        public TableType.Enum getType() {
+            return type == null ? null : TableType.Enum.forString(type);
+        }
+
+        /**
+         * Get the number of codes.
+         *
+         * @return the number of codes
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Check if a code is in the table.
+         *
+         * @param code
+         * @param ignoreCase
+         *        true to compare the codes as String.equalsIgnoreCase does
+         * @return true if the code is in the table
+         */
+        public boolean containsCode(String code, boolean ignoreCase) {
+            if (code == null) {
+                return false;
+            }
+            if (ignoreCase) {
+                return find(TableIndex.fold(code), foldedOffsets, true) >= 0;
+            }
+            return find(code, codeOffsets, false) >= 0;
+        }
+
+        /**
+         * Get the display name of a code.
+         *
+         * @param code
+         * @return the display name; null if the code is not in the table or
+         *         the display names are not stored
+         */
+        public String getDisplayName(String code) {
+            if (code == null || !displayNames) {
+                return null;
+            }
+            int entry = find(code, codeOffsets, false);
+            if (entry < 0) {
+                return null;
+            }
+            return readString(entry + 2 + (buffer.getShort(entry) & 0xFFFF));
+        }
+
+        /**
+         * Binary search of a code.
+         *
+         * @param key
+         *        the code (folded if the array is sorted by folded code)
+         * @param offsets
+         *        the position of the sorted array of entry offsets
+         * @param fold
+         *        true if the array is sorted by folded code
+         * @return the entry offset; -1 if the code is not found
+         */
+        private int find(String key, int offsets, boolean fold) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int entry = buffer.getInt(offsets + 4 * mid);
+                String code = readString(entry);
+                int cmp = (fold ? TableIndex.fold(code) : code).compareTo(key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+    }
+
+}
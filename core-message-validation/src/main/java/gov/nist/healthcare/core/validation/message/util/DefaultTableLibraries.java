@@ -0,0 +1,132 @@
+/*
+ * NIST Healthcare Core
+ * DefaultTableLibraries.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.core.Constants;
+import gov.nist.healthcare.data.TableLibraryDocument;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.xmlbeans.XmlException;
+
+/**
+ * This class holds the default HL7 table libraries (the HL7tableV2.x.xml
+ * files). Each library is parsed once per HL7 version and converted into a
+ * CodeTableStore kept in memory, which is shared by all the validations of
+ * the JVM. A store is immutable and its lookups take no lock; the parsed
+ * document is not kept.
+ */
+public final class DefaultTableLibraries {
+
+    /**
+     * The HL7 versions with a default table library
+     */
+    public static final String[] VERSIONS = { "2.3.1", "2.4", "2.5", "2.5.1",
+            "2.6" };
+
+    private static final Map<String, CodeTableStore> STORES = new ConcurrentHashMap<String, CodeTableStore>();
+
+    private DefaultTableLibraries() {
+    }
+
+    /**
+     * Get the default tables of a version as a shared store. The library is
+     * loaded at the first call.
+     *
+     * @param version
+     *        the HL7 version
+     * @return the store
+     * @throws IllegalArgumentException
+     *         if the version is not supported
+     * @throws XmlException
+     * @throws IOException
+     */
+    public static CodeTableStore getStore(String version)
+            throws XmlException, IOException {
+        String resource = Constants.getHl7Tables(version);
+        CodeTableStore store = STORES.get(resource);
+        if (store == null) {
+            synchronized (DefaultTableLibraries.class) {
+                store = STORES.get(resource);
+                if (store == null) {
+                    store = CodeTableStore.create(load(resource), true);
+                    STORES.put(resource, store);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Get the default table library of a version. The resource is parsed at
+     * each call: the document belongs to the caller, who can modify it. Use
+     * getStore to share the tables.
+     *
+     * @param version
+     *        the HL7 version
+     * @return a new table library
+     * @throws IllegalArgumentException
+     *         if the version is not supported
+     * @throws XmlException
+     * @throws IOException
+     */
+    public static TableLibraryDocument getLibrary(String version)
+            throws XmlException, IOException {
+        return load(Constants.getHl7Tables(version));
+    }
+
+    /**
+     * Load the default table libraries in advance, typically at startup.
+     *
+     * @param versions
+     *        the HL7 versions; all the supported versions if none is given
+     * @throws XmlException
+     * @throws IOException
+     */
+    public static void warmUp(String... versions) throws XmlException,
+            IOException {
+        if (versions.length == 0) {
+            versions = VERSIONS;
+        }
+        for (String version : versions) {
+            getStore(version);
+        }
+    }
+
+    /**
+     * Release the loaded libraries.
+     */
+    public static synchronized void clear() {
+        STORES.clear();
+    }
+
+    /**
+     * Parse a table library.
+     *
+     * @param resource
+     * @return the table library
+     * @throws XmlException
+     * @throws IOException
+     */
+    private static TableLibraryDocument load(String resource)
+            throws XmlException, IOException {
+        InputStream is = DefaultTableLibraries.class.getResourceAsStream(resource);
+        if (is == null) {
+            throw new IOException("The table file " + resource
+                    + " can't be found.");
+        }
+        try {
+            return TableLibraryDocument.Factory.parse(is);
+        } finally {
+            is.close();
+        }
+    }
+
+}
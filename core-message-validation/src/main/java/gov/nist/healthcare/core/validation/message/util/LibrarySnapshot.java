@@ -0,0 +1,113 @@
+/*
+ * NIST Healthcare Core
+ * LibrarySnapshot.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.data.TableLibraryDocument;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a version of the table libraries and profiles used by the
+ * validation. A snapshot is immutable: the tables are indexed and the
+ * profiles compiled before it is published (see LibraryWatcher), and a
+ * validation which holds a snapshot keeps using it even if a newer one is
+ * published meanwhile.
+ */
+public final class LibrarySnapshot {
+
+    private final long version;
+    private final long timestamp;
+    private final List<TableLibraryDocument> tableLibraries;
+    private final List<CodeTableStore> codeTableStores;
+    private final Map<String, Profile> profiles;
+
+    /**
+     * Constructor
+     *
+     * @param version
+     *        the version of the snapshot
+     * @param tableLibraries
+     *        the table libraries in lookup order
+     * @param codeTableStores
+     *        the code table stores in lookup order
+     * @param profiles
+     *        the profiles by name
+     */
+    public LibrarySnapshot(long version,
+            List<TableLibraryDocument> tableLibraries,
+            List<CodeTableStore> codeTableStores, Map<String, Profile> profiles) {
+        this.version = version;
+        this.timestamp = System.currentTimeMillis();
+        this.tableLibraries = Collections.unmodifiableList(new ArrayList<TableLibraryDocument>(
+                tableLibraries));
+        this.codeTableStores = Collections.unmodifiableList(new ArrayList<CodeTableStore>(
+                codeTableStores));
+        this.profiles = Collections.unmodifiableMap(new LinkedHashMap<String, Profile>(
+                profiles));
+    }
+
+    /**
+     * Get the version of the snapshot. A newer snapshot has a greater
+     * version.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the creation time of the snapshot.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<TableLibraryDocument> getTableLibraries() {
+        return tableLibraries;
+    }
+
+    public List<CodeTableStore> getCodeTableStores() {
+        return codeTableStores;
+    }
+
+    /**
+     * Get the profiles.
+     *
+     * @return the profiles by name
+     */
+    public Map<String, Profile> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Get a profile.
+     *
+     * @param name
+     *        the profile name (the file name for a LibraryWatcher)
+     * @return the profile; null if it is not found
+     */
+    public Profile getProfile(String name) {
+        return profiles.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "LibrarySnapshot " + version + " (" + tableLibraries.size()
+                + " table libraries, " + codeTableStores.size()
+                + " code table stores, " + profiles.size() + " profiles)";
+    }
+
+}
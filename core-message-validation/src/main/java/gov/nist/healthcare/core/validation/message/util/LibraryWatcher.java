@@ -0,0 +1,280 @@
+/*
+ * NIST Healthcare Core
+ * LibraryWatcher.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileRegistry;
+import gov.nist.healthcare.core.profile.ProfileSnapshot;
+import gov.nist.healthcare.data.TableLibraryDocument;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class publishes LibrarySnapshot objects built from a directory. The
+ * directory contains a "tables" directory (TableLibrary documents *.xml and
+ * code table stores *.codes, used in file name order) and a "profiles"
+ * directory (profile documents *.xml, named by file name).
+ * <p>
+ * The directory is checked periodically by a background thread. When a file
+ * is added, modified or removed, a new snapshot is built: the modified files
+ * are loaded, indexed and compiled, the others are reused from the previous
+ * snapshot. The new snapshot is published at once; getSnapshot takes no
+ * lock. If a file can't be loaded, the current snapshot is kept and the
+ * error is available with getLastError.
+ * <p>
+ * The files should be replaced by renaming a complete file (a code table
+ * store which is mapped must not be modified in place).
+ * <p>
+ * When a snapshot directory is given, the profiles are loaded from their
+ * snapshots (see ProfileSnapshot): a profile document is parsed only when a
+ * message is validated against it, or when its snapshot is missing or
+ * stale.
+ */
+public class LibraryWatcher {
+
+    public static final String TABLES = "tables";
+    public static final String PROFILES = "profiles";
+
+    private final File directory;
+    private final File snapshotDirectory;
+    private volatile LibrarySnapshot snapshot;
+    private volatile Exception lastError;
+    /* The loaded files; only used under the lock of the watcher */
+    private Map<File, Source> sources;
+    private long version;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor. The first snapshot is built.
+     *
+     * @param directory
+     * @throws IOException
+     *         if a file can't be loaded
+     */
+    public LibraryWatcher(File directory) throws IOException {
+        this(directory, null);
+    }
+
+    /**
+     * Constructor. The first snapshot is built.
+     *
+     * @param directory
+     * @param snapshotDirectory
+     *        the directory of the profile snapshots (can be null)
+     * @throws IOException
+     *         if a file can't be loaded
+     */
+    public LibraryWatcher(File directory, File snapshotDirectory)
+            throws IOException {
+        this.directory = directory;
+        this.snapshotDirectory = snapshotDirectory;
+        if (snapshotDirectory != null) {
+            snapshotDirectory.mkdirs();
+        }
+        sources = new HashMap<File, Source>();
+        reload();
+    }
+
+    /**
+     * Get the current snapshot.
+     *
+     * @return the snapshot
+     */
+    public LibrarySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the error of the last reload.
+     *
+     * @return the error; null if the last reload succeeded
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Check the directory and publish a new snapshot if a file has changed.
+     *
+     * @return true if a new snapshot was published
+     * @throws IOException
+     *         if a file can't be loaded; the current snapshot is kept
+     */
+    public synchronized boolean reload() throws IOException {
+        try {
+            boolean published = doReload();
+            lastError = null;
+            return published;
+        } catch (IOException ioe) {
+            lastError = ioe;
+            throw ioe;
+        }
+    }
+
+    private boolean doReload() throws IOException {
+        File[] tableFiles = list(new File(directory, TABLES), ".xml", ".codes");
+        File[] profileFiles = list(new File(directory, PROFILES), ".xml");
+        Map<File, Source> loaded = new HashMap<File, Source>();
+        boolean changed = snapshot == null;
+        List<TableLibraryDocument> tableLibraries = new ArrayList<TableLibraryDocument>();
+        List<CodeTableStore> codeTableStores = new ArrayList<CodeTableStore>();
+        for (File file : tableFiles) {
+            Source source = getSource(file);
+            changed |= source != sources.get(file);
+            loaded.put(file, source);
+            if (source.value instanceof CodeTableStore) {
+                codeTableStores.add((CodeTableStore) source.value);
+            } else {
+                tableLibraries.add((TableLibraryDocument) source.value);
+            }
+        }
+        Map<String, Profile> profiles = new LinkedHashMap<String, Profile>();
+        for (File file : profileFiles) {
+            Source source = getSource(file);
+            changed |= source != sources.get(file);
+            loaded.put(file, source);
+            profiles.put(file.getName(), (Profile) source.value);
+        }
+        changed |= loaded.size() != sources.size();
+        if (!changed) {
+            return false;
+        }
+        sources = loaded;
+        snapshot = new LibrarySnapshot(++version, tableLibraries,
+                codeTableStores, profiles);
+        return true;
+    }
+
+    /**
+     * Get the loaded file; it is loaded again if it has changed.
+     */
+    private Source getSource(File file) throws IOException {
+        Source source = sources.get(file);
+        if (source != null && source.lastModified == file.lastModified()
+                && source.length == file.length()) {
+            return source;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Object value = null;
+        try {
+            if (file.getName().endsWith(".codes")) {
+                value = CodeTableStore.open(file);
+            } else if (file.getParentFile().getName().equals(TABLES)) {
+                TableLibraryDocument library = TableLibraryDocument.Factory.parse(file);
+                TableIndex.getInstance(library);
+                value = library;
+            } else if (snapshotDirectory != null) {
+                Profile profile = ProfileSnapshot.load(file, new File(
+                        snapshotDirectory, file.getName()
+                                + ProfileSnapshot.EXTENSION));
+                profile.setId(file.getName());
+                value = ProfileRegistry.getInstance().register(profile);
+            } else {
+                Profile profile = ProfileRegistry.getInstance().register(
+                        new Profile(file.getName(), file));
+                profile.getCompiledProfile();
+                value = profile;
+            }
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new IOException("The file " + file + " can't be loaded: "
+                    + e.getMessage());
+        }
+        return new Source(lastModified, length, value);
+    }
+
+    private static File[] list(File dir, final String... extensions) {
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                if (!file.isFile()) {
+                    return false;
+                }
+                for (String extension : extensions) {
+                    if (file.getName().endsWith(extension)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Start checking the directory in a background thread.
+     *
+     * @param periodMillis
+     *        the delay between two checks in milliseconds
+     */
+    public synchronized void start(long periodMillis) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LibraryWatcher " + directory);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    reload();
+                } catch (IOException ioe) {
+                    // Kept in lastError, the next check will try again
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * A loaded file.
+     */
+    private static final class Source {
+
+        private final long lastModified;
+        private final long length;
+        private final Object value;
+
+        private Source(long lastModified, long length, Object value) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * NIST Healthcare Core
+ * TableIndex.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.data.TableLibraryDocument;
+import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition;
+import gov.nist.healthcare.data.TableLibraryDocument.TableLibrary.TableDefinition.TableElement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.xmlbeans.XmlCursor;
+
+/**
+ * This class indexes the tables of a table library: the tables by id and by
+ * id and version, and the codes of each table in a hash set (case sensitive
+ * and case insensitive). The index is built once per library and kept as long
+ * as the library document; a library modified after it was indexed has to be
+ * invalidated.
+ * <p>
+ * An index is immutable and can be used by several threads.
+ */
+public final class TableIndex {
+
+    /* Id -> tables in document order */
+    private final Map<String, List<TableDefinition>> tablesById;
+    /* Id and version -> tables in document order */
+    private final Map<String, List<TableDefinition>> tablesByVersion;
+    private final Map<TableDefinition, Codes> codes;
+
+    /**
+     * Get the index of a library. The index is built at the first call and
+     * kept in the library document as a bookmark, so it is released with the
+     * document.
+     *
+     * @param library
+     * @return the index
+     */
+    public static TableIndex getInstance(TableLibraryDocument library) {
+        XmlCursor cursor = library.newCursor();
+        try {
+            IndexBookmark bookmark = (IndexBookmark) cursor.getBookmark(IndexBookmark.class);
+            if (bookmark == null) {
+                synchronized (TableIndex.class) {
+                    bookmark = (IndexBookmark) cursor.getBookmark(IndexBookmark.class);
+                    if (bookmark == null) {
+                        bookmark = new IndexBookmark(new TableIndex(library));
+                        cursor.setBookmark(bookmark);
+                    }
+                }
+            }
+            return bookmark.index;
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+    /**
+     * Remove the index of a library. It has to be called when a library is
+     * modified after it was used for a validation.
+     *
+     * @param library
+     */
+    public static void invalidate(TableLibraryDocument library) {
+        XmlCursor cursor = library.newCursor();
+        try {
+            cursor.clearBookmark(IndexBookmark.class);
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param library
+     */
+    private TableIndex(TableLibraryDocument library) {
+        Map<String, List<TableDefinition>> byId = new HashMap<String, List<TableDefinition>>();
+        Map<String, List<TableDefinition>> byVersion = new HashMap<String, List<TableDefinition>>();
+        Map<TableDefinition, Codes> c = new IdentityHashMap<TableDefinition, Codes>();
+        for (TableDefinition td : library.getTableLibrary().getTableDefinitionList()) {
+            add(byId, td.getId(), td);
+            add(byVersion, getKey(td.getId(), td.getVersion()), td);
+            c.put(td, new Codes(td));
+        }
+        tablesById = byId;
+        tablesByVersion = byVersion;
+        codes = c;
+    }
+
+    private static void add(Map<String, List<TableDefinition>> map,
+            String key, TableDefinition td) {
+        List<TableDefinition> l = map.get(key);
+        if (l == null) {
+            l = new ArrayList<TableDefinition>(1);
+            map.put(key, l);
+        }
+        l.add(td);
+    }
+
+    private static String getKey(String tableId, String tableVersion) {
+        return tableId + "\u0000" + tableVersion;
+    }
+
+    /**
+     * Get the first table with an id.
+     *
+     * @param tableId
+     * @return the table; null if the table is not found
+     */
+    public TableDefinition getTable(String tableId) {
+        List<TableDefinition> l = tablesById.get(tableId);
+        return l == null ? null : l.get(0);
+    }
+
+    /**
+     * Get the tables with an id and a version.
+     *
+     * @param tableId
+     * @param tableVersion
+     *        the version; null or empty to get all the versions
+     * @return the tables in document order (can be empty)
+     */
+    public List<TableDefinition> getTables(String tableId, String tableVersion) {
+        List<TableDefinition> l = null;
+        if (tableVersion == null || "".equals(tableVersion)) {
+            l = tablesById.get(tableId);
+        } else {
+            l = tablesByVersion.get(getKey(tableId, tableVersion));
+        }
+        if (l == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(l);
+    }
+
+    /**
+     * Return true if the table belongs to this index.
+     *
+     * @param table
+     * @return true if the table is indexed
+     */
+    public boolean contains(TableDefinition table) {
+        return codes.containsKey(table);
+    }
+
+    /**
+     * Check if a code is in a table.
+     *
+     * @param table
+     *        a table of this index
+     * @param code
+     * @param ignoreCase
+     *        true to compare the codes as String.equalsIgnoreCase does
+     * @return true if the code is in the table
+     */
+    public boolean containsCode(TableDefinition table, String code,
+            boolean ignoreCase) {
+        Codes c = codes.get(table);
+        if (c == null) {
+            throw new IllegalArgumentException(
+                    "The table is not part of this index.");
+        }
+        if (code == null) {
+            return false;
+        }
+        return ignoreCase ? c.folded.contains(fold(code))
+                : c.exact.contains(code);
+    }
+
+    /**
+     * Fold the case of a String so that two String are equal when
+     * String.equalsIgnoreCase is true.
+     *
+     * @param s
+     * @return the folded String
+     */
+    static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The bookmark holding the index of a library.
+     */
+    private static final class IndexBookmark extends XmlCursor.XmlBookmark {
+
+        private final TableIndex index;
+
+        private IndexBookmark(TableIndex index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * The codes of a table.
+     */
+    private static final class Codes {
+
+        private final Set<String> exact;
+        private final Set<String> folded;
+
+        private Codes(TableDefinition td) {
+            exact = new HashSet<String>();
+            folded = new HashSet<String>();
+            for (TableElement te : td.getTableElementList()) {
+                String code = te.getCode();
+                if (code != null) {
+                    exact.add(code);
+                    folded.add(fold(code));
+                }
+            }
+        }
+    }
+
+}
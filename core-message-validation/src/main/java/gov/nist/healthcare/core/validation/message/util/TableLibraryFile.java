@@ -0,0 +1,435 @@
+/*
+ * NIST Healthcare Core
+ * TableLibraryFile.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.data.TableLibraryDocument;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.xmlbeans.XmlException;
+
+/**
+ * This class is a table library file whose tables are loaded on demand. When
+ * it is opened, the file is read once to build a manifest: the id, the
+ * version and the byte offsets of each table. The library returned by
+ * getLibrary only contains the tables loaded so far; loading more tables
+ * reads their bytes only and creates a new TableLibraryDocument, so that a
+ * library which was returned is never modified and can be used by several
+ * validations at the same time.
+ * <p>
+ * The file must use an ASCII compatible encoding (UTF-8, ISO-8859-1, ...)
+ * and must not be modified while it is used.
+ */
+public class TableLibraryFile {
+
+    private final File file;
+    private final String encoding;
+    private final byte[] rootStartTag;
+    private final byte[] rootEndTag;
+    private final List<Entry> entries;
+    private volatile TableLibraryDocument library;
+    private Set<String> loadedIds;
+
+    /**
+     * Constructor. The tables are loaded by getLibrary.
+     *
+     * @param file
+     *        the TableLibrary document
+     * @throws IOException
+     * @throws XmlException
+     */
+    public TableLibraryFile(File file) throws IOException, XmlException {
+        this(file, Collections.<String> emptySet());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file
+     *        the TableLibrary document
+     * @param tableIds
+     *        the ids of the tables to load now (see
+     *        TableLibraryLoader.getTableIds)
+     * @throws IOException
+     * @throws XmlException
+     */
+    public TableLibraryFile(File file, Collection<String> tableIds)
+            throws IOException, XmlException {
+        this.file = file;
+        // Ids and versions
+        List<String[]> tables = new ArrayList<String[]>();
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            TableLibraryLoader.load(is, Collections.<String> emptySet(),
+                    tables);
+        } finally {
+            is.close();
+        }
+        // Offsets
+        Scanner scanner = new Scanner();
+        is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            scanner.scan(is);
+        } finally {
+            is.close();
+        }
+        if (scanner.offsets.size() != tables.size()) {
+            throw new IOException("The manifest of the table library " + file
+                    + " can't be built.");
+        }
+        entries = new ArrayList<Entry>(tables.size());
+        for (int i = 0; i < tables.size(); i++) {
+            long[] offsets = scanner.offsets.get(i);
+            entries.add(new Entry(tables.get(i)[0], tables.get(i)[1],
+                    offsets[0], offsets[1]));
+        }
+        encoding = scanner.encoding;
+        rootStartTag = scanner.rootStartTag;
+        rootEndTag = scanner.rootEndTag;
+        loadedIds = new LinkedHashSet<String>();
+        library = build(loadedIds);
+        getLibrary(tableIds);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the manifest of the library.
+     *
+     * @return the tables of the library in document order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Get the library with the tables loaded so far.
+     *
+     * @return the library
+     */
+    public TableLibraryDocument getLibrary() {
+        return library;
+    }
+
+    /**
+     * Get a library which contains at least the tables with the given ids
+     * (if they are in the file). The library is only rebuilt when a table has
+     * to be loaded.
+     *
+     * @param tableIds
+     *        the table ids; null for all the tables
+     * @return the library
+     * @throws IOException
+     * @throws XmlException
+     */
+    public synchronized TableLibraryDocument getLibrary(
+            Collection<String> tableIds) throws IOException, XmlException {
+        Set<String> ids = new LinkedHashSet<String>(loadedIds);
+        for (Entry entry : entries) {
+            if (tableIds == null || tableIds.contains(entry.id)) {
+                ids.add(entry.id);
+            }
+        }
+        if (ids.size() > loadedIds.size()) {
+            library = build(ids);
+            loadedIds = ids;
+        }
+        return library;
+    }
+
+    /**
+     * Create a library with the tables of the given ids. The document is made
+     * of the root element of the file and the bytes of each table.
+     *
+     * @param ids
+     * @return the library
+     * @throws IOException
+     * @throws XmlException
+     */
+    private TableLibraryDocument build(Set<String> ids) throws IOException,
+            XmlException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>").getBytes("US-ASCII"));
+        out.write(rootStartTag);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            for (Entry entry : entries) {
+                if (ids.contains(entry.id)) {
+                    byte[] bytes = new byte[(int) (entry.end - entry.start)];
+                    raf.seek(entry.start);
+                    raf.readFully(bytes);
+                    out.write(bytes);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        out.write(rootEndTag);
+        return TableLibraryDocument.Factory.parse(new ByteArrayInputStream(
+                out.toByteArray()));
+    }
+
+    /**
+     * A table of the manifest.
+     */
+    public static final class Entry {
+
+        private final String id;
+        private final String version;
+        private final long start;
+        private final long end;
+
+        private Entry(String id, String version, long start, long end) {
+            this.id = id;
+            this.version = version;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the offset of the first byte of the table.
+         *
+         * @return the offset
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Get the offset after the last byte of the table.
+         *
+         * @return the offset
+         */
+        public long getEnd() {
+            return end;
+        }
+    }
+
+    /**
+     * This class finds the byte offsets of the tables. It only reads the
+     * markup (tags, comments, CDATA sections, processing instructions); the
+     * markup characters are ASCII so the bytes don't have to be decoded.
+     */
+    private static final class Scanner {
+
+        private final List<long[]> offsets = new ArrayList<long[]>();
+        private String encoding = "UTF-8";
+        private byte[] rootStartTag;
+        private byte[] rootEndTag;
+        private InputStream is;
+        private long pos;
+        private final ByteArrayOutputStream tag = new ByteArrayOutputStream();
+
+        private int read() throws IOException {
+            int b = is.read();
+            if (b == -1) {
+                throw new IOException("Unexpected end of file.");
+            }
+            pos++;
+            tag.write(b);
+            return b;
+        }
+
+        private void scan(InputStream in) throws IOException {
+            is = in;
+            int first = in.read();
+            if (first == 0xFE || first == 0xFF || first == 0) {
+                throw new IOException(
+                        "The encoding of the table library is not supported.");
+            }
+            int depth = 0;
+            int b = first;
+            pos = first == -1 ? 0 : 1;
+            while (b != -1) {
+                if (b == '<') {
+                    long start = pos - 1;
+                    tag.reset();
+                    tag.write('<');
+                    int c = read();
+                    if (c == '!') {
+                        c = read();
+                        if (c == '-') {
+                            skipPast("-->");
+                        } else if (c == '[') {
+                            skipPast("]]>");
+                        } else {
+                            skipDoctype();
+                        }
+                    } else if (c == '?') {
+                        skipPast("?>");
+                        String pi = tag.toString("US-ASCII");
+                        if (pi.startsWith("<?xml ")) {
+                            String declared = getPseudoAttribute(pi,
+                                    "encoding");
+                            if (declared != null) {
+                                encoding = declared;
+                            }
+                        }
+                    } else if (c == '/') {
+                        skipTag();
+                        depth--;
+                        if (depth == 1 && offsets.size() > 0
+                                && offsets.get(offsets.size() - 1)[1] == -1) {
+                            offsets.get(offsets.size() - 1)[1] = pos;
+                        }
+                    } else {
+                        boolean empty = skipTag();
+                        String name = getName(tag.toString("US-ASCII"));
+                        if (depth == 0) {
+                            setRoot(tag.toByteArray(), empty);
+                        } else if (depth == 1
+                                && TableLibraryLoader.TABLE_DEFINITION.equals(getLocalName(name))) {
+                            offsets.add(new long[] { start, empty ? pos : -1 });
+                        }
+                        if (!empty) {
+                            depth++;
+                        }
+                    }
+                }
+                b = is.read();
+                if (b != -1) {
+                    pos++;
+                }
+            }
+            if (rootStartTag == null) {
+                throw new IOException("The table library is empty.");
+            }
+        }
+
+        /**
+         * Keep the start tag of the root element and create its end tag.
+         */
+        private void setRoot(byte[] startTag, boolean empty) {
+            rootStartTag = startTag;
+            if (empty) {
+                // <TableLibrary ... /> becomes <TableLibrary ... >
+                int slash = startTag.length - 2;
+                rootStartTag = new byte[startTag.length - 1];
+                System.arraycopy(startTag, 0, rootStartTag, 0, slash);
+                rootStartTag[slash] = '>';
+            }
+            int n = 1;
+            while (n < startTag.length && " \t\r\n/>".indexOf(startTag[n]) == -1) {
+                n++;
+            }
+            rootEndTag = new byte[n + 2];
+            rootEndTag[0] = '<';
+            rootEndTag[1] = '/';
+            System.arraycopy(startTag, 1, rootEndTag, 2, n - 1);
+            rootEndTag[n + 1] = '>';
+        }
+
+        /**
+         * Read up to the end of a tag.
+         *
+         * @return true for an empty element tag
+         */
+        private boolean skipTag() throws IOException {
+            int quote = 0;
+            int previous = 0;
+            int c = read();
+            while (quote != 0 || c != '>') {
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                }
+                previous = c;
+                c = read();
+            }
+            return previous == '/';
+        }
+
+        private void skipPast(String end) throws IOException {
+            int n = end.length();
+            byte[] last = new byte[n];
+            int count = 0;
+            while (true) {
+                System.arraycopy(last, 1, last, 0, n - 1);
+                last[n - 1] = (byte) read();
+                count++;
+                if (count >= n
+                        && new String(last, "US-ASCII").equals(end)) {
+                    return;
+                }
+            }
+        }
+
+        private void skipDoctype() throws IOException {
+            int brackets = 0;
+            int c = read();
+            while (brackets > 0 || c != '>') {
+                if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                }
+                c = read();
+            }
+        }
+
+        private static String getName(String startTag) {
+            int i = 1;
+            while (i < startTag.length()
+                    && " \t\r\n/>".indexOf(startTag.charAt(i)) == -1) {
+                i++;
+            }
+            return startTag.substring(1, i);
+        }
+
+        private static String getLocalName(String name) {
+            return name.substring(name.indexOf(':') + 1);
+        }
+
+        private static String getPseudoAttribute(String pi, String name) {
+            int i = pi.indexOf(name);
+            if (i == -1) {
+                return null;
+            }
+            int eq = pi.indexOf('=', i);
+            if (eq == -1) {
+                return null;
+            }
+            int q = eq + 1;
+            while (q < pi.length() && pi.charAt(q) != '"'
+                    && pi.charAt(q) != '\'') {
+                q++;
+            }
+            if (q >= pi.length()) {
+                return null;
+            }
+            int endQ = pi.indexOf(pi.charAt(q), q + 1);
+            return endQ == -1 ? null : pi.substring(q + 1, endQ);
+        }
+    }
+
+}
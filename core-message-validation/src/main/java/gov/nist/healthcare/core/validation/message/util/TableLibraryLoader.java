@@ -0,0 +1,223 @@
+/*
+ * NIST Healthcare Core
+ * TableLibraryLoader.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.util;
+
+import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileNode;
+import gov.nist.healthcare.core.validation.message.v2.MessageValidationContextV2;
+import gov.nist.healthcare.data.TableLibraryDocument;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlException;
+
+/**
+ * This class reads a TableLibrary document with StAX and only builds the
+ * tables which are needed (usually the tables referenced by the profiles and
+ * the validation contexts). The other tables are skipped without being built.
+ * For a library file, TableLibraryFile can also load the other tables later.
+ */
+public final class TableLibraryLoader {
+
+    static final String TABLE_DEFINITION = "TableDefinition";
+
+    private static final XMLInputFactory FACTORY;
+
+    static {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+    }
+
+    private TableLibraryLoader() {
+    }
+
+    /**
+     * Load the tables of a library.
+     *
+     * @param is
+     *        the TableLibrary document
+     * @param tableIds
+     *        the ids of the tables to load; null to load all the tables
+     * @return a TableLibraryDocument with the selected tables
+     * @throws XmlException
+     */
+    public static TableLibraryDocument load(InputStream is,
+            Collection<String> tableIds) throws XmlException {
+        return load(is, tableIds, null);
+    }
+
+    /**
+     * Load the tables of a library and list all its tables.
+     *
+     * @param is
+     *        the TableLibrary document
+     * @param tableIds
+     *        the ids of the tables to load; null to load all the tables
+     * @param tables
+     *        receives the id and the version of each table of the library in
+     *        document order (can be null)
+     * @return a TableLibraryDocument with the selected tables
+     * @throws XmlException
+     */
+    static TableLibraryDocument load(InputStream is,
+            Collection<String> tableIds, List<String[]> tables)
+            throws XmlException {
+        Set<String> ids = tableIds == null ? null : new HashSet<String>(
+                tableIds);
+        TableLibraryDocument library = TableLibraryDocument.Factory.newInstance();
+        XmlCursor cursor = library.newCursor();
+        XMLStreamReader reader = null;
+        try {
+            cursor.toNextToken();
+            reader = FACTORY.createXMLStreamReader(is);
+            int depth = 0;
+            // Depth of the table being built; 0 if none
+            int building = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 1) {
+                        startElement(reader, cursor);
+                    } else if (building > 0) {
+                        startElement(reader, cursor);
+                    } else if (depth == 2
+                            && TABLE_DEFINITION.equals(reader.getLocalName())) {
+                        String id = reader.getAttributeValue(null, "Id");
+                        if (tables != null) {
+                            tables.add(new String[] { id,
+                                    reader.getAttributeValue(null, "Version") });
+                        }
+                        if (ids == null || ids.contains(id)) {
+                            building = depth;
+                            startElement(reader, cursor);
+                        } else {
+                            skip(reader);
+                            depth--;
+                        }
+                    } else {
+                        // Unknown element
+                        skip(reader);
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 1 || building > 0) {
+                        cursor.toNextToken();
+                    }
+                    if (depth == building) {
+                        building = 0;
+                    }
+                    depth--;
+                } else if (building > 0
+                        && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)
+                        && !reader.isWhiteSpace()) {
+                    cursor.insertChars(reader.getText());
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new XmlException(e.getMessage(), e);
+        } finally {
+            cursor.dispose();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Ignore
+                }
+            }
+        }
+        return library;
+    }
+
+    /**
+     * Insert the current element of the reader with its attributes. The
+     * cursor is left inside the new element.
+     */
+    private static void startElement(XMLStreamReader reader, XmlCursor cursor) {
+        cursor.beginElement(reader.getName());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String ns = reader.getAttributeNamespace(i);
+            cursor.insertAttributeWithValue(new QName(ns == null ? "" : ns,
+                    reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i));
+        }
+    }
+
+    /**
+     * Skip the current element. The reader is left on its END_ELEMENT.
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Get the ids of the tables referenced by a profile.
+     *
+     * @param profile
+     * @return the table ids
+     */
+    public static Set<String> getTableIds(Profile profile) {
+        Set<String> ids = new HashSet<String>();
+        addTableIds(profile.getCompiledProfile(false).getRoot(), ids);
+        return ids;
+    }
+
+    private static void addTableIds(ProfileNode node, Set<String> ids) {
+        String table = node.getTable();
+        if (table != null && !"".equals(table)) {
+            ids.add(table);
+        }
+        for (ProfileNode child : node.getChildren()) {
+            addTableIds(child, ids);
+        }
+    }
+
+    /**
+     * Get the ids of the HL7 and user tables listed in a validation context.
+     * A context which checks all the tables adds nothing: these tables are
+     * referenced by the profile.
+     *
+     * @param context
+     * @return the table ids
+     */
+    public static Set<String> getTableIds(MessageValidationContextV2 context) {
+        Set<String> ids = new HashSet<String>();
+        for (String id : context.getHl7Tables()) {
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        for (String id : context.getUserTables()) {
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+}
@@ -15,10 +15,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.xmlbeans.XmlObject;
 
 /**
- * This class manages all the tables for the validation
+ * This class manages all the tables for the validation. The lookups use the
+ * TableIndex of each library. Large tables can also be provided as code table
+ * stores (see CodeTableStore).
  * 
  * @author Sydney Henrard (NIST)
  */
@@ -28,10 +29,27 @@ public class TableManager {
     // TODO: Check for valid TableLibrary
     private final Map<String, TableLibraryDocument> mapLibrary;
     private final List<String> orderedKeys;
+    private final Map<String, TableIndex> mapIndex;
+    private final List<CodeTableStore> stores;
 
     public TableManager() {
         mapLibrary = new HashMap<String, TableLibraryDocument>();
         orderedKeys = new ArrayList<String>();
+        mapIndex = new HashMap<String, TableIndex>();
+        stores = new ArrayList<CodeTableStore>();
+    }
+
+    /**
+     * Set the code table stores. They are used for the tables which are not
+     * found in the libraries.
+     * 
+     * @param codeTableStores
+     */
+    public void setStores(List<CodeTableStore> codeTableStores) {
+        stores.clear();
+        if (codeTableStores != null) {
+            stores.addAll(codeTableStores);
+        }
     }
 
     /**
@@ -43,6 +61,7 @@ public class TableManager {
     public void setLibraries(List<TableLibraryDocument> libraries) {
         mapLibrary.clear();
         orderedKeys.clear();
+        mapIndex.clear();
         if (libraries != null) {
             for (TableLibraryDocument library : libraries) {
                 addLibrary(library);
@@ -64,6 +83,7 @@ public class TableManager {
                         "The library can't be added because the Name attribute is not set.");
             }
             mapLibrary.put(name, library);
+            mapIndex.remove(name);
             orderedKeys.add(name);
         }
     }
@@ -79,18 +99,37 @@ public class TableManager {
      */
     public TableDefinition getTable(String tableId, String tableVersion) {
         TableDefinition table = null;
-        String xpath = String.format("//*:TableDefinition[@Id='%s']", tableId);
-        if (tableVersion != null && !"".equals(tableVersion)) {
-            xpath = String.format(
-                    "//*:TableDefinition[@Id='%s' and @Version='%s']", tableId,
+        for (String key : orderedKeys) {
+            List<TableDefinition> rs = getIndex(key).getTables(tableId,
                     tableVersion);
+            if (rs.size() > 0) {
+                if (rs.size() == 1) {
+                    table = rs.get(0);
+                } else {
+                    break;
+                }
+            }
         }
-        for (String key : orderedKeys) {
-            TableLibraryDocument library = mapLibrary.get(key);
-            XmlObject[] rs = library.selectPath(xpath);
-            if (rs.length > 0) {
-                if (rs.length == 1) {
-                    table = (TableDefinition) rs[0];
+        return table;
+    }
+
+    /**
+     * Get a table from the code table stores. The rules are the same as
+     * getTable.
+     * 
+     * @param tableId
+     * @param tableVersion
+     * @return a CodeTable object; null if the table is not found
+     */
+    public CodeTableStore.CodeTable getCodeTable(String tableId,
+            String tableVersion) {
+        CodeTableStore.CodeTable table = null;
+        for (CodeTableStore store : stores) {
+            List<CodeTableStore.CodeTable> rs = store.getTables(tableId,
+                    tableVersion);
+            if (rs.size() > 0) {
+                if (rs.size() == 1) {
+                    table = rs.get(0);
                 } else {
                     break;
                 }
@@ -107,6 +146,13 @@ public class TableManager {
      * @return true if the value is in the table; false otherwise
      */
     public boolean isValueInTable(String value, TableDefinition table) {
+        for (String key : orderedKeys) {
+            TableIndex index = getIndex(key);
+            if (index.contains(table)) {
+                return index.containsCode(table, value, false);
+            }
+        }
+        // The table is not part of the libraries
         boolean valueInTable = false;
         for (TableElement item : table.getTableElementList()) {
             if (item.getCode().equals(value)) {
@@ -116,4 +162,20 @@ public class TableManager {
         }
         return valueInTable;
     }
+
+    /**
+     * Get the index of a library.
+     * 
+     * @param key
+     *        the library name
+     * @return the index
+     */
+    private TableIndex getIndex(String key) {
+        TableIndex index = mapIndex.get(key);
+        if (index == null) {
+            index = TableIndex.getInstance(mapLibrary.get(key));
+            mapIndex.put(key, index);
+        }
+        return index;
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * NIST Healthcare Core
+ * MessageFailureListV2.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.validation.message.v2;
+
+import gov.nist.healthcare.core.validation.message.ValidationMode;
+import gov.nist.healthcare.validation.AssertionResultConstants;
+import gov.nist.healthcare.validation.ErrorSeverityConstants;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * This class collects the message failures of one validation and tells when
+ * the validation has to stop according to the validation mode. The same list
+ * is used by the structure validation, the content validation and the
+ * plugins. Once the validation is stopped, the failures are no longer added.
+ */
+public class MessageFailureListV2 extends ArrayList<MessageFailureV2> {
+
+    private final ValidationMode mode;
+    private final MessageValidationContextV2 context;
+    private final long deadline;
+    private int errorCount;
+    private boolean stopped;
+
+    /**
+     * Constructor
+     *
+     * @param mode
+     *        the validation mode
+     * @param context
+     *        the message validation context used to get the result of a
+     *        failure
+     */
+    public MessageFailureListV2(ValidationMode mode,
+            MessageValidationContextV2 context) {
+        this.mode = mode;
+        this.context = context;
+        deadline = mode.getMaxMillis() == 0 ? 0 : System.nanoTime()
+                + mode.getMaxMillis() * 1000000L;
+    }
+
+    public ValidationMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the number of failures with an ERROR result (or a FATAL severity).
+     *
+     * @return the number of errors
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    @Override
+    public boolean add(MessageFailureV2 mf) {
+        if (isStopped()) {
+            return false;
+        }
+        if (isError(mf)) {
+            errorCount++;
+        }
+        return super.add(mf);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends MessageFailureV2> c) {
+        boolean changed = false;
+        for (MessageFailureV2 mf : c) {
+            changed |= add(mf);
+        }
+        return changed;
+    }
+
+    /**
+     * Return true if the validation has to stop.
+     *
+     * @return true if the error or the time budget is exhausted
+     */
+    public boolean isStopped() {
+        if (!stopped && !mode.isFull()) {
+            stopped = mode.getMaxErrors() > 0
+                    && errorCount >= mode.getMaxErrors()
+                    || deadline != 0 && System.nanoTime() - deadline > 0;
+        }
+        return stopped;
+    }
+
+    /**
+     * Return true if no check was skipped because of the validation mode.
+     *
+     * @return true if the validation is complete
+     */
+    public boolean isComplete() {
+        return !stopped;
+    }
+
+    /**
+     * Return true if the failure is an error.
+     *
+     * @param mf
+     * @return true if the result of the failure is ERROR
+     */
+    private boolean isError(MessageFailureV2 mf) {
+        if (mf.getFailureSeverity() == ErrorSeverityConstants.FATAL) {
+            return true;
+        }
+        AssertionResultConstants.Enum result = mf.getAssertionResult();
+        if (result == null && context != null) {
+            result = context.getFailureResult(mf.getFailureType());
+        }
+        return result == AssertionResultConstants.ERROR;
+    }
+
+}
@@ -54,6 +54,7 @@ public class MessageValidationResultV2 extends
 
     // private final HL7V2Message message;
     private final Profile profile;
+    private final boolean complete;
 
     // private final List<MessageFailureV2> messageFailures;
     // private final MessageValidationContextV2 context;
@@ -73,11 +74,35 @@ public class MessageValidationResultV2 extends
     public MessageValidationResultV2(HL7V2Message message, Profile profile,
             MessageValidationContextV2 context,
             List<MessageFailureV2> messageFailures) {
+        this(message, profile, context, messageFailures, true);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param message
+     *        the message used by the validation
+     * @param profile
+     *        the profile used by the validation
+     * @param context
+     *        the message validation context used by the validation
+     * @param messageFailures
+     *        the message failures detected by the validation
+     * @param complete
+     *        false if the validation was stopped by the validation mode; the
+     *        affirmatives are not generated
+     */
+    public MessageValidationResultV2(HL7V2Message message, Profile profile,
+            MessageValidationContextV2 context,
+            List<MessageFailureV2> messageFailures, boolean complete) {
         this.message = message;
         this.profile = profile;
         this.context = context;
         this.messageFailures = messageFailures;
-        generateAffirmatives();
+        this.complete = complete;
+        if (complete) {
+            generateAffirmatives();
+        }
         count();
     }
 
@@ -192,6 +217,16 @@ public class MessageValidationResultV2 extends
     // }
     // }
 
+    /**
+     * Return false if the validation was stopped before all the checks were
+     * run (see ValidationMode).
+     * 
+     * @return true if the validation is complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
     public MessageValidationContextV2 getContext() {
         return (MessageValidationContextV2) context;
     }
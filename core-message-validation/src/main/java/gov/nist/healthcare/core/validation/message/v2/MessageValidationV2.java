@@ -8,51 +8,96 @@
  */
 package gov.nist.healthcare.core.validation.message.v2;
 
-import gov.nist.healthcare.core.Constants;
 import gov.nist.healthcare.core.message.v2.HL7V2Message;
 import gov.nist.healthcare.core.message.v2.er7.Er7Message;
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.profile.Profile;
 import gov.nist.healthcare.core.validation.message.MessageValidationException;
+import gov.nist.healthcare.core.validation.message.ValidationMode;
 import gov.nist.healthcare.core.validation.message.content.v2.MessageContentValidationV2;
 import gov.nist.healthcare.core.validation.message.structure.v2.MessageStructureValidationV2;
 import gov.nist.healthcare.core.validation.message.structure.v2.er7.MessageStructureValidationV2Er7;
 import gov.nist.healthcare.core.validation.message.structure.v2.xml.MessageStructureValidationV2Xml;
+import gov.nist.healthcare.core.validation.message.util.CodeTableStore;
+import gov.nist.healthcare.core.validation.message.util.DefaultTableLibraries;
+import gov.nist.healthcare.core.validation.message.util.LibrarySnapshot;
 import gov.nist.healthcare.data.TableLibraryDocument;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This is an abstract class for V2 message validation
+ * <p>
+ * A MessageValidationV2 has no state: each call creates its own structure
+ * and content validators, which hold the state of that validation, and the
+ * objects derived from the profile are shared through the ProfileRegistry.
+ * One instance can be used by several threads at the same time.
+ * <p>
+ * The validation mode tells whether all the checks are run or whether the
+ * validation stops early (first error, error or time budget).
+ * <p>
+ * Large tables can be provided as memory-mapped code table stores
+ * (setCodeTableStores); they are used after the table libraries.
  * 
  * @author Sydney Henrard (NIST)
  */
 public class MessageValidationV2 {
 
-    // protected Profile profile;
-    // protected HL7V2Message message;
-    // protected HL7V2Message inputMessage;
-    // protected List<TableLibraryDocument> tables;
-    // protected MessageValidationContextV2 context;
-    protected List<MessageFailureV2> messageFailures;
-    protected MessageStructureValidationV2Er7 structureValidatorEr7;
-    protected MessageStructureValidationV2Xml structureValidatorXml;
-    protected MessageContentValidationV2 contentValidator;
+    private List<CodeTableStore> codeTableStores;
 
     /**
      * Constructor
      */
     public MessageValidationV2() {
-        messageFailures = new ArrayList<MessageFailureV2>();
-        structureValidatorEr7 = new MessageStructureValidationV2Er7();
-        structureValidatorXml = new MessageStructureValidationV2Xml();
-        contentValidator = new MessageContentValidationV2();
+    }
+
+    /**
+     * Set the code table stores used for the tables which are not found in
+     * the table libraries. It has to be called before the validator is used.
+     * 
+     * @param codeTableStores
+     */
+    public void setCodeTableStores(List<CodeTableStore> codeTableStores) {
+        this.codeTableStores = codeTableStores == null ? null
+                : new ArrayList<CodeTableStore>(codeTableStores);
+    }
+
+    public List<CodeTableStore> getCodeTableStores() {
+        return codeTableStores;
+    }
+
+    /**
+     * Create the structure validator for one validation.
+     * 
+     * @param message
+     *        the message to validate
+     * @return a new structure validator
+     */
+    protected MessageStructureValidationV2 createStructureValidator(
+            HL7V2Message message) {
+        MessageStructureValidationV2 structureValidator = null;
+        if (message instanceof Er7Message) {
+            structureValidator = new MessageStructureValidationV2Er7();
+        } else if (message instanceof XmlMessage) {
+            structureValidator = new MessageStructureValidationV2Xml();
+        }
+        return structureValidator;
+    }
+
+    /**
+     * Create the content validator for one validation.
+     * 
+     * @return a new content validator
+     */
+    protected MessageContentValidationV2 createContentValidator() {
+        return new MessageContentValidationV2();
     }
 
     /**
      * Validate the message structure and content. The validation of table
      * values is done with the default table file corresponding to the version
-     * of the profile.
+     * of the profile. The default table file is loaded once and shared as a
+     * code table store (see DefaultTableLibraries).
      * 
      * @param message
      *        the message to validate
@@ -66,15 +111,41 @@ public class MessageValidationV2 {
     public MessageValidationResultV2 validate(HL7V2Message message,
             Profile profile, MessageValidationContextV2 context)
             throws MessageValidationException {
-        List<TableLibraryDocument> tableLibraryDocuments = new ArrayList<TableLibraryDocument>();
+        return validate(message, profile, context, ValidationMode.FULL);
+    }
+
+    /**
+     * Validate the message structure and content. The validation of table
+     * values is done with the default table file corresponding to the version
+     * of the profile. The default table file is loaded once and shared as a
+     * code table store (see DefaultTableLibraries).
+     * 
+     * @param message
+     *        the message to validate
+     * @param profile
+     *        the profile
+     * @param context
+     *        the message validation context
+     * @param mode
+     *        the validation mode
+     * @return the message validation result
+     * @throws MessageValidationException
+     */
+    public MessageValidationResultV2 validate(HL7V2Message message,
+            Profile profile, MessageValidationContextV2 context,
+            ValidationMode mode) throws MessageValidationException {
+        List<CodeTableStore> stores = new ArrayList<CodeTableStore>();
         try {
-            // Use default TableLibraryDocument
-            TableLibraryDocument tableLibraryDocument = TableLibraryDocument.Factory.parse(MessageValidationV2.class.getResourceAsStream(Constants.getHl7Tables(profile.getHl7VersionAsString())));
-            tableLibraryDocuments.add(tableLibraryDocument);
+            // Use the default tables (shared store)
+            stores.add(DefaultTableLibraries.getStore(profile.getHl7VersionAsString()));
         } catch (Exception e) {
             throw new MessageValidationException(e.getMessage());
         }
-        return validate(message, profile, context, tableLibraryDocuments);
+        if (codeTableStores != null) {
+            stores.addAll(codeTableStores);
+        }
+        return validate(message, profile, context,
+                new ArrayList<TableLibraryDocument>(), stores, mode);
     }
 
     /**
@@ -98,24 +169,105 @@ public class MessageValidationV2 {
             Profile profile, MessageValidationContextV2 context,
             List<TableLibraryDocument> tableLibraryDocuments)
             throws MessageValidationException {
-        messageFailures = new ArrayList<MessageFailureV2>();
-        // Structure Validation
-        MessageStructureValidationV2 structureValidator = null;
-        if (message instanceof Er7Message) {
-            structureValidator = structureValidatorEr7;
-        } else if (message instanceof XmlMessage) {
-            structureValidator = structureValidatorXml;
+        return validate(message, profile, context, tableLibraryDocuments,
+                ValidationMode.FULL);
+    }
+
+    /**
+     * Validate the message structure and content. The validation of table
+     * values is done with the list of TableLibraryDocument provided as a
+     * parameter. The default table file is not included if not provided in the
+     * list.
+     * 
+     * @param message
+     *        the message to validate
+     * @param profile
+     *        the profile
+     * @param context
+     *        the message validation context
+     * @param tableLibraryDocuments
+     *        a list of TableLibraryDocument
+     * @param mode
+     *        the validation mode
+     * @return the message validation result
+     * @throws MessageValidationException
+     */
+    public MessageValidationResultV2 validate(HL7V2Message message,
+            Profile profile, MessageValidationContextV2 context,
+            List<TableLibraryDocument> tableLibraryDocuments,
+            ValidationMode mode) throws MessageValidationException {
+        return validate(message, profile, context, tableLibraryDocuments,
+                codeTableStores, mode);
+    }
+
+    /**
+     * Validate the message structure and content with the tables and the
+     * code table stores of a snapshot. The snapshot is used for the whole
+     * validation even if a newer one is published meanwhile. The default
+     * table file is not included if not provided in the snapshot.
+     * 
+     * @param message
+     *        the message to validate
+     * @param profile
+     *        the profile (usually a profile of the snapshot)
+     * @param context
+     *        the message validation context
+     * @param snapshot
+     *        the library snapshot
+     * @param mode
+     *        the validation mode
+     * @return the message validation result
+     * @throws MessageValidationException
+     */
+    public MessageValidationResultV2 validate(HL7V2Message message,
+            Profile profile, MessageValidationContextV2 context,
+            LibrarySnapshot snapshot, ValidationMode mode)
+            throws MessageValidationException {
+        List<CodeTableStore> stores = new ArrayList<CodeTableStore>(
+                snapshot.getCodeTableStores());
+        if (codeTableStores != null) {
+            stores.addAll(codeTableStores);
         }
-        List<MessageFailureV2> structureFailures = structureValidator.validate(
-                message, profile, context, tableLibraryDocuments);
-        messageFailures.addAll(structureFailures);
+        return validate(message, profile, context,
+                snapshot.getTableLibraries(), stores, mode);
+    }
+
+    /**
+     * Validate the message structure and content.
+     * 
+     * @param message
+     * @param profile
+     * @param context
+     * @param tableLibraryDocuments
+     * @param stores
+     *        the code table stores (can be null)
+     * @param mode
+     * @return the message validation result
+     * @throws MessageValidationException
+     */
+    private MessageValidationResultV2 validate(HL7V2Message message,
+            Profile profile, MessageValidationContextV2 context,
+            List<TableLibraryDocument> tableLibraryDocuments,
+            List<CodeTableStore> stores, ValidationMode mode)
+            throws MessageValidationException {
+        MessageFailureListV2 messageFailures = new MessageFailureListV2(mode,
+                context);
+        // Structure Validation
+        MessageStructureValidationV2 structureValidator = createStructureValidator(message);
+        structureValidator.setCodeTableStores(stores);
+        structureValidator.validate(message, profile, context,
+                tableLibraryDocuments, messageFailures);
         // Content Validation
-        List<MessageFailureV2> contentFailures = contentValidator.validate(
-                message, context, profile, tableLibraryDocuments);
-        messageFailures.addAll(contentFailures);
+        if (!messageFailures.isStopped()) {
+            MessageContentValidationV2 contentValidator = createContentValidator();
+            contentValidator.setCodeTableStores(stores);
+            contentValidator.validate(message, context, profile,
+                    tableLibraryDocuments, messageFailures);
+        }
         // Create the results
         MessageValidationResultV2 result = new MessageValidationResultV2(
-                message, profile, context, messageFailures);
+                message, profile, context, messageFailures,
+                messageFailures.isComplete());
         return result;
     }
 
@@ -130,19 +282,25 @@ public class MessageValidationV2 {
      *        the profile
      * @param tableLibraryDocuments
      *        a list of TableLibraryDocument
+     * @param mode
+     *        the validation mode
      * @return the message validation result
      */
     private MessageValidationResultV2 validate(HL7V2Message message,
             MessageValidationContextV2 context, Profile profile,
-            List<TableLibraryDocument> tableLibraryDocuments) {
-        messageFailures = new ArrayList<MessageFailureV2>();
+            List<TableLibraryDocument> tableLibraryDocuments,
+            ValidationMode mode) {
+        MessageFailureListV2 messageFailures = new MessageFailureListV2(mode,
+                context);
         // Content Validation
-        List<MessageFailureV2> contentFailures = contentValidator.validate(
-                message, context, profile, tableLibraryDocuments);
-        messageFailures.addAll(contentFailures);
+        MessageContentValidationV2 contentValidator = createContentValidator();
+        contentValidator.setCodeTableStores(codeTableStores);
+        contentValidator.validate(message, context, profile,
+                tableLibraryDocuments, messageFailures);
         // Create the results
         MessageValidationResultV2 result = new MessageValidationResultV2(
-                message, context, messageFailures);
+                message, null, context, messageFailures,
+                messageFailures.isComplete());
         return result;
     }
 
@@ -157,7 +315,8 @@ public class MessageValidationV2 {
      */
     public MessageValidationResultV2 validate(HL7V2Message message,
             MessageValidationContextV2 context) {
-        return this.validate(message, context, null, null);
+        return this.validate(message, context, null, null,
+                ValidationMode.FULL);
     }
 
     /**
@@ -174,7 +333,29 @@ public class MessageValidationV2 {
     public MessageValidationResultV2 validate(HL7V2Message message,
             MessageValidationContextV2 context,
             List<TableLibraryDocument> tableLibraryDocuments) {
-        return this.validate(message, context, null, tableLibraryDocuments);
+        return this.validate(message, context, null, tableLibraryDocuments,
+                ValidationMode.FULL);
+    }
+
+    /**
+     * Validate the message content.
+     * 
+     * @param message
+     *        the message to validate
+     * @param context
+     *        the message validation context
+     * @param tableLibraryDocuments
+     *        a list of TableLibraryDocument
+     * @param mode
+     *        the validation mode
+     * @return the message validation result
+     */
+    public MessageValidationResultV2 validate(HL7V2Message message,
+            MessageValidationContextV2 context,
+            List<TableLibraryDocument> tableLibraryDocuments,
+            ValidationMode mode) {
+        return this.validate(message, context, null, tableLibraryDocuments,
+                mode);
     }
 
     /**
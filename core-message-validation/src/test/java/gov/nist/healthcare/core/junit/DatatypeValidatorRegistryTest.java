@@ -0,0 +1,121 @@
+/*
+ * NIST Healthcare Core
+ * DatatypeValidatorRegistryTest.java
+ *
+ * This code was produced by the National Institute of Standards and
+ * Technology (NIST). See the "nist.disclaimer" file given in the distribution
+ * for information on the use and redistribution of this software.
+ */
+package gov.nist.healthcare.core.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import gov.nist.healthcare.core.validation.message.structure.v2.DatatypeValidator;
+import gov.nist.healthcare.core.validation.message.structure.v2.DatatypeValidatorRegistry;
+import java.util.regex.Pattern;
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+/**
+ * This class is a JUnit test class for the datatype validators. The
+ * validators are compared with the regular expressions they replace.
+ */
+public class DatatypeValidatorRegistryTest {
+
+    private static final String DTM_REGEX = "([12]\\d\\d\\d((0[1-9]|1[0-2])(([0-2]\\d|3[01])(([01]\\d|2[0-4])([0-5]\\d([0-5]\\d(.\\d\\d?\\d?\\d?)?)?)?)?)?)?((\\+|\\-)([01]\\d|2[0-4])[0-5]\\d)?)?";
+    private static final String TM_REGEX = "((((([01]\\d|2[0-4])([0-5]\\d([0-5]\\d(.\\d\\d?\\d?\\d?)?)?)?)?)?)?((\\+|\\-)([01]\\d|2[0-4])[0-5]\\d)?)?";
+    private static final String DT_REGEX = "([12]\\d\\d\\d((0[1-9]|1[0-2])([0-2]\\d|3[01])?)?)";
+    private static final String SI_REGEX = "[0-9][0-9]{0,3}";
+    private static final String NM_REGEX = "(\\+|\\-)?\\d*(\\.?\\d+)?";
+
+    private static final String[] DTM_VALUES = { "", "+0500", "-1200",
+            "+2500", "2020", "2020+0500", "2020-0560", "202012", "202000",
+            "202013", "20201231", "20201232", "20201200", "2020123124",
+            "2020123125", "202012312359", "202012312360", "20201231235959",
+            "20201231235959.1", "20201231235959.12", "20201231235959.123",
+            "20201231235959.1234", "20201231235959.12345",
+            "20201231235959.1234+0500", "20201231235959.+0500",
+            "20201231235959X1", "20201231235959\n1", "20201231235959.",
+            "2020123123+0500", "3020", "202", "20201", "2020123", "+", "-",
+            ".5", "+05", "2020+05001" };
+    private static final String[] TM_VALUES = { "", "+0500", "-1200",
+            "+2500", "00", "24", "25", "2400", "2460", "235959", "235960",
+            "235959.1", "235959.12", "235959.123", "235959.1234",
+            "235959.12345", "235959.1234-0500", "235959X1", "235959\n1",
+            "235959.", "2+0500", "2", "123", "12345", "+", "-", ".5" };
+    private static final String[] DT_VALUES = { "", "2020", "20201", "202012",
+            "2020123", "20201231", "202012310", "202000", "202013",
+            "20201232", "20201200", "30201231", "2020+0500", "+", "-" };
+    private static final String[] SI_VALUES = { "", "0", "1234", "12345",
+            "-1", "+1", "1.5", "a", " 1" };
+    private static final String[] NM_VALUES = { "", "+", "-", "1", "-1",
+            "+1.5", ".5", "-.5", "1.", "1.5.3", "..5", "1e5", "+-1", " 1",
+            "12345678901234567890" };
+
+    @Test
+    public void testDTM() {
+        checkValues("DTM", DTM_REGEX, DTM_VALUES);
+    }
+
+    @Test
+    public void testTM() {
+        checkValues("TM", TM_REGEX, TM_VALUES);
+    }
+
+    @Test
+    public void testDT() {
+        checkValues("DT", DT_REGEX, DT_VALUES);
+    }
+
+    @Test
+    public void testSI() {
+        checkValues("SI", SI_REGEX, SI_VALUES);
+    }
+
+    @Test
+    public void testNM() {
+        checkValues("NM", NM_REGEX, NM_VALUES);
+    }
+
+    @Test
+    public void testVersionOverride() {
+        DatatypeValidator common = DatatypeValidatorRegistry.get("SI", null);
+        assertNotNull(common);
+        DatatypeValidator override = DatatypeValidatorRegistry.pattern("[0-9]{1,6}");
+        DatatypeValidatorRegistry.register("SI", "2.3.1", override);
+        try {
+            assertSame(override, DatatypeValidatorRegistry.get("SI", "2.3.1"));
+            assertSame(common, DatatypeValidatorRegistry.get("SI", "2.5"));
+            assertSame(common, DatatypeValidatorRegistry.get("SI", null));
+            assertTrue(DatatypeValidatorRegistry.get("SI", "2.3.1").isValid(
+                    "123456"));
+            assertFalse(DatatypeValidatorRegistry.get("SI", "2.5").isValid(
+                    "123456"));
+        } finally {
+            DatatypeValidatorRegistry.register("SI", "2.3.1", null);
+        }
+        assertSame(common, DatatypeValidatorRegistry.get("SI", "2.3.1"));
+        assertNull(DatatypeValidatorRegistry.get("ST", "2.5"));
+        assertNull(DatatypeValidatorRegistry.get(null, "2.5"));
+    }
+
+    private void checkValues(String datatype, String regex, String[] values) {
+        Pattern pattern = Pattern.compile(regex);
+        DatatypeValidator validator = DatatypeValidatorRegistry.get(datatype,
+                null);
+        assertNotNull(validator);
+        for (String value : values) {
+            assertEquals(datatype + " '" + value + "'",
+                    pattern.matcher(value).matches(), validator.isValid(value));
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DatatypeValidatorRegistryTest.class);
+    }
+
+}
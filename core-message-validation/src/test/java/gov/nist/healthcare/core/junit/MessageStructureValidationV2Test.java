@@ -9,6 +9,12 @@
 package gov.nist.healthcare.core.junit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import gov.nist.healthcare.core.Constants;
 import gov.nist.healthcare.core.MalformedMessageException;
 import gov.nist.healthcare.core.MalformedProfileException;
@@ -16,7 +22,17 @@ import gov.nist.healthcare.core.message.v2.HL7V2Message;
 import gov.nist.healthcare.core.message.v2.er7.Er7Message;
 import gov.nist.healthcare.core.message.v2.xml.XmlMessage;
 import gov.nist.healthcare.core.profile.Profile;
+import gov.nist.healthcare.core.profile.ProfileNode;
 import gov.nist.healthcare.core.validation.message.MessageValidationException;
+import gov.nist.healthcare.core.validation.message.ValidationMode;
+import gov.nist.healthcare.core.validation.message.structure.v2.SegmentSequenceAutomaton;
+import gov.nist.healthcare.core.validation.message.util.CodeTableStore;
+import gov.nist.healthcare.core.validation.message.util.DefaultTableLibraries;
+import gov.nist.healthcare.core.validation.message.util.LibrarySnapshot;
+import gov.nist.healthcare.core.validation.message.util.LibraryWatcher;
+import gov.nist.healthcare.core.validation.message.util.TableIndex;
+import gov.nist.healthcare.core.validation.message.util.TableLibraryFile;
+import gov.nist.healthcare.core.validation.message.util.TableLibraryLoader;
 import gov.nist.healthcare.core.validation.message.v2.MessageFailureV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageValidationContextV2;
 import gov.nist.healthcare.core.validation.message.v2.MessageValidationResultV2;
@@ -25,11 +41,22 @@ import gov.nist.healthcare.data.TableLibraryDocument;
 import gov.nist.healthcare.validation.AssertionResultConstants;
 import gov.nist.healthcare.validation.AssertionTypeV2Constants;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import junit.framework.JUnit4TestAdapter;
+import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -1611,6 +1638,20 @@ public class MessageStructureValidationV2Test {
                 mvr.getMessageFailure(AssertionResultConstants.ALERT).size(), 0);
     }
 
+    @Test
+    public void testER7CETableNotInProfileDocument()
+            throws MalformedMessageException, MessageValidationException,
+            XmlException, IOException {
+        String document = profile.getDocument().xmlText();
+        testER7CETable();
+        // The table of the field applies to CE.1 in the compiled profile only
+        assertEquals(document, profile.getDocument().xmlText());
+        ProfileNode qpd1 = profile.getCompiledProfile().getRoot().getChild(
+                Constants.ElementType.SEGMENT, "QPD", 1).getChildAt(1);
+        assertEquals("0471", qpd1.getChildAt(1).getTable());
+        assertEquals("0396", qpd1.getChildAt(3).getTable());
+    }
+
     @Test
     public void testER7UserTable() throws MalformedMessageException,
             MessageValidationException, XmlException, IOException {
@@ -1690,6 +1731,254 @@ public class MessageStructureValidationV2Test {
                 mvr.getMessageFailure(AssertionResultConstants.ALERT).size(), 0);
     }
 
+    @Test
+    public void testER7ValidationMode() throws MalformedMessageException,
+            MessageValidationException, XmlException, IOException {
+        List<TableLibraryDocument> tableLibraryDocuments = new ArrayList<TableLibraryDocument>();
+        tableLibraryDocuments.add(tableLibraryDocument);
+        tableLibraryDocuments.add(TableLibraryDocument.Factory.parse(MessageStructureValidationV2Test.class.getResourceAsStream(Constants.getHl7Tables(profile.getHl7VersionAsString()))));
+        Er7Message er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestMissingRequiredSegment.er7").getFile()));
+        MessageValidationResultV2 mvr = validator.validate(er7, profile,
+                context, tableLibraryDocuments, ValidationMode.FULL);
+        assertEquals(mvr.isComplete(), true);
+        assertEquals(
+                mvr.getMessageFailure(AssertionResultConstants.ERROR).size(), 4);
+
+        mvr = validator.validate(er7, profile, context, tableLibraryDocuments,
+                ValidationMode.FIRST_ERROR);
+        List<MessageFailureV2> al = mvr.getMessageFailure(AssertionResultConstants.ERROR);
+        assertEquals(mvr.isValid(), false);
+        assertEquals(mvr.isComplete(), false);
+        assertEquals(al.size(), 1);
+        assertEquals(al.get(0).getFailureType(),
+                AssertionTypeV2Constants.MESSAGE_STRUCTURE);
+
+        mvr = validator.validate(er7, profile, context, tableLibraryDocuments,
+                ValidationMode.budget(2, 0));
+        assertEquals(mvr.isComplete(), false);
+        assertEquals(
+                mvr.getMessageFailure(AssertionResultConstants.ERROR).size(), 2);
+
+        er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestValid.er7").getFile()));
+        mvr = validator.validate(er7, profile, context, tableLibraryDocuments,
+                ValidationMode.FIRST_ERROR);
+        assertEquals(mvr.isValid(), true);
+        assertEquals(mvr.isComplete(), true);
+    }
+
+    @Test
+    public void testDefaultTableLibraries() throws XmlException, IOException,
+            MalformedMessageException, MessageValidationException {
+        String version = profile.getHl7VersionAsString();
+        CodeTableStore store = DefaultTableLibraries.getStore(version);
+        assertSame(store, DefaultTableLibraries.getStore(version));
+        assertNotNull(store.getTable("0001"));
+        // getLibrary gives a document which is not shared
+        TableLibraryDocument library = DefaultTableLibraries.getLibrary(version);
+        assertNotSame(library, DefaultTableLibraries.getLibrary(version));
+        assertNotNull(TableIndex.getInstance(library).getTable("0001"));
+        Er7Message er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestValid.er7").getFile()));
+        // The second validation uses the same store
+        MessageValidationResultV2 mvr1 = validator.validate(er7, profile,
+                context);
+        MessageValidationResultV2 mvr2 = validator.validate(er7, profile,
+                context);
+        assertEquals(mvr1.getMessageFailure(AssertionResultConstants.ERROR).size(),
+                mvr2.getMessageFailure(AssertionResultConstants.ERROR).size());
+    }
+
+    @Test
+    public void testER7CodeTableStore() throws MalformedMessageException,
+            MessageValidationException, XmlException, IOException {
+        // The local tables are given as a code table store
+        File file = File.createTempFile("LocalTable", ".codes");
+        file.deleteOnExit();
+        CodeTableStore.write(tableLibraryDocument, file, true);
+        CodeTableStore store = CodeTableStore.open(file);
+        assertEquals(store.getTable("0300").containsCode("sa", true), true);
+        assertEquals(store.getTable("0300").containsCode("sa", false), false);
+        MessageValidationV2 storeValidator = new MessageValidationV2();
+        storeValidator.setCodeTableStores(Arrays.asList(store));
+        List<TableLibraryDocument> tableLibraryDocuments = new ArrayList<TableLibraryDocument>();
+        tableLibraryDocuments.add(DefaultTableLibraries.getLibrary(profile.getHl7VersionAsString()));
+        Er7Message er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestTable.er7").getFile()));
+        MessageValidationResultV2 mvr = storeValidator.validate(er7, profile,
+                context, tableLibraryDocuments);
+        List<MessageFailureV2> al = mvr.getMessageFailure(AssertionResultConstants.ERROR);
+        assertEquals(mvr.isValid(), false);
+        assertEquals(al.size(), 1);
+        assertEquals(al.get(0).getFailureType(), AssertionTypeV2Constants.DATA);
+    }
+
+    @Test
+    public void testER7SelectiveTables() throws MalformedMessageException,
+            MessageValidationException, XmlException, IOException {
+        // Only the tables referenced by the profile are loaded
+        Set<String> tableIds = TableLibraryLoader.getTableIds(profile);
+        TableLibraryDocument hl7Tables = TableLibraryLoader.load(
+                MessageStructureValidationV2Test.class.getResourceAsStream(Constants.getHl7Tables(profile.getHl7VersionAsString())),
+                tableIds);
+        TableLibraryFile localTables = new TableLibraryFile(new File(
+                getClass().getResource("/structure/v2/LocalTable.xml").getFile()),
+                tableIds);
+        List<TableLibraryDocument> tableLibraryDocuments = new ArrayList<TableLibraryDocument>();
+        tableLibraryDocuments.add(localTables.getLibrary());
+        tableLibraryDocuments.add(hl7Tables);
+        Er7Message er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestTable.er7").getFile()));
+        MessageValidationResultV2 mvr = validator.validate(er7, profile,
+                context, tableLibraryDocuments);
+        List<MessageFailureV2> al = mvr.getMessageFailure(AssertionResultConstants.ERROR);
+        assertEquals(mvr.isValid(), false);
+        assertEquals(al.size(), 1);
+        assertEquals(al.get(0).getFailureType(), AssertionTypeV2Constants.DATA);
+        // The other tables are loaded on demand
+        assertEquals(localTables.getEntries().size(), 3);
+        TableLibraryDocument all = localTables.getLibrary((Set<String>) null);
+        assertEquals(all.getTableLibrary().sizeOfTableDefinitionArray(), 3);
+        assertEquals(TableIndex.getInstance(all).getTable("0300").getName(),
+                "");
+    }
+
+    @Test
+    public void testLibraryWatcher() throws MalformedMessageException,
+            MessageValidationException, IOException {
+        File dir = File.createTempFile("library", "");
+        dir.delete();
+        File tables = new File(dir, LibraryWatcher.TABLES);
+        File profiles = new File(dir, LibraryWatcher.PROFILES);
+        tables.mkdirs();
+        profiles.mkdirs();
+        File localTable = new File(tables, "LocalTable.xml");
+        copy("/structure/v2/LocalTable.xml", localTable);
+        copy(Constants.getHl7Tables(profile.getHl7VersionAsString()),
+                new File(tables, "ZHL7Tables.xml"));
+        copy("/structure/v2/RSP_K22.xml", new File(profiles, "RSP_K22.xml"));
+        LibraryWatcher watcher = new LibraryWatcher(dir);
+        LibrarySnapshot snapshot = watcher.getSnapshot();
+        assertEquals(snapshot.getTableLibraries().size(), 2);
+        assertNotNull(snapshot.getProfile("RSP_K22.xml"));
+        assertEquals(watcher.reload(), false);
+        Er7Message er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestTable.er7").getFile()));
+        MessageValidationResultV2 mvr = validator.validate(er7,
+                snapshot.getProfile("RSP_K22.xml"), context, snapshot,
+                ValidationMode.FULL);
+        List<MessageFailureV2> al = mvr.getMessageFailure(AssertionResultConstants.ERROR);
+        assertEquals(al.size(), 1);
+        assertEquals(al.get(0).getFailureType(), AssertionTypeV2Constants.DATA);
+        // A new snapshot is published, the old one is unchanged
+        localTable.delete();
+        assertEquals(watcher.reload(), true);
+        assertEquals(watcher.getSnapshot().getVersion(),
+                snapshot.getVersion() + 1);
+        assertEquals(watcher.getSnapshot().getTableLibraries().size(), 1);
+        assertEquals(snapshot.getTableLibraries().size(), 2);
+    }
+
+    private void copy(String resource, File file) throws IOException {
+        InputStream is = getClass().getResourceAsStream(resource);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read = 0;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void testER7Concurrent() throws Exception {
+        // The validator is shared, each thread has its own message
+        final File valid = new File(getClass().getResource(
+                "/structure/v2/er7/TestValid.er7").getFile());
+        final File length = new File(getClass().getResource(
+                "/structure/v2/er7/TestLength.er7").getFile());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<MessageValidationResultV2>> results = new ArrayList<Future<MessageValidationResultV2>>();
+            for (int i = 0; i < 32; i++) {
+                final File file = i % 2 == 0 ? valid : length;
+                results.add(executor.submit(new Callable<MessageValidationResultV2>() {
+                    public MessageValidationResultV2 call() throws Exception {
+                        return validate(new Er7Message(file));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                MessageValidationResultV2 mvr = results.get(i).get();
+                List<MessageFailureV2> al = mvr.getMessageFailure(AssertionResultConstants.ERROR);
+                if (i % 2 == 0) {
+                    assertEquals(mvr.isValid(), true);
+                    assertEquals(al.size(), 0);
+                } else {
+                    assertEquals(mvr.isValid(), false);
+                    assertEquals(al.size(), 1);
+                    assertEquals(al.get(0).getFailureType(),
+                            AssertionTypeV2Constants.LENGTH);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testER7SegmentSequence() {
+        SegmentSequenceAutomaton automaton = SegmentSequenceAutomaton.getInstance(profile);
+        SegmentSequenceAutomaton.Run run = automaton.start();
+        for (String segment : new String[] { "MSH", "SFT", "SFT", "MSA",
+                "QAK", "QPD", "PID", "NK1", "NK1", "PID", "DSC" }) {
+            assertNull(run.next(segment));
+        }
+        assertNull(run.end());
+
+        run = automaton.start();
+        for (String segment : new String[] { "MSH", "MSA", "QAK", "QPD" }) {
+            assertNull(run.next(segment));
+        }
+        assertEquals(Arrays.asList("PID"), run.next("DSC"));
+        assertEquals(Arrays.asList("PID"), run.end());
+    }
+
+    @Test
+    public void testER7AmbiguousProfile() throws Exception {
+        assertFalse(SegmentSequenceAutomaton.getInstance(profile).isAmbiguous());
+        // A second SFT after the optional repeating SFT
+        Profile ambiguous = (Profile) profile.clone();
+        XmlObject sft = ambiguous.getDocument().selectPath(
+                "//Segment[@Name='SFT']")[0];
+        XmlCursor from = sft.newCursor();
+        XmlCursor to = sft.newCursor();
+        to.toEndToken();
+        to.toNextToken();
+        from.copyXml(to);
+        from.dispose();
+        to.dispose();
+        assertTrue(SegmentSequenceAutomaton.getInstance(ambiguous).isAmbiguous());
+        Er7Message er7 = new Er7Message(new File(getClass().getResource(
+                "/structure/v2/er7/TestValid.er7").getFile()));
+        MessageValidationResultV2 mvr = validateWithOtherProfile(ambiguous,
+                er7);
+        assertEquals(mvr.isValid(), false);
+        boolean ambiguousProfile = false;
+        for (MessageFailureV2 mf : mvr.getMessageFailure(AssertionResultConstants.ERROR)) {
+            if (mf.getFailureType() == AssertionTypeV2Constants.AMBIGUOUS_PROFILE) {
+                ambiguousProfile = true;
+            }
+        }
+        assertTrue(ambiguousProfile);
+    }
+
     @AfterClass
     public static void tearDown() {
         profile = null;